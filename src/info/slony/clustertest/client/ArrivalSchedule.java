@@ -0,0 +1,230 @@
+/* ----
+ * ArrivalSchedule
+ *
+ *	Open-loop pacing for a ClientGroup launched with launchRate().
+ *
+ *	The schedule releases transactions at a fixed global arrival rate,
+ *	or with exponentially distributed gaps (a Poisson process), no
+ *	matter how fast the server answers. Every idle worker of the group
+ *	claims the next arrival and waits for its intended start time. If
+ *	all workers are busy, arrivals pile up and are started late, which
+ *	is counted here instead of silently lowering the offered load.
+ *
+ *	Idle workers claim arrivals ahead of time, up to one per worker.
+ *	When a load profile changes the rate, those claims were made at
+ *	the old rate. setRate() therefore lays out the arrivals that are
+ *	not due yet anew from now on and starts a new generation. Workers
+ *	waiting for an arrival of an older generation give it up and
+ *	claim again, so a ramp or spike takes effect right away. A rate of
+ *	0 pauses the schedule until the rate goes up again.
+ * ----
+ */
+package info.slony.clustertest.client;
+
+class ArrivalSchedule {
+	/* ----
+	 * An arrival that starts more than this late is counted as late.
+	 * ----
+	 */
+	static final long	LATE_NANOS = 1000000L;
+
+	private final long		startNanos;		// nanoTime() of arrival 0
+	private double			intervalNanos;	// (mean) time between arrivals
+	private boolean			paused = false;	// rate 0
+	private volatile long	generation = 0;	// bumped by setRate()
+	private final boolean	poisson;		// exponential gaps
+	private final FastRandom	random;
+	private double			nextOffset;		// next arrival, relative
+	private double			lastOffset = -1.0; // last one claimed
+	private long			numIssued;		// arrivals claimed by workers
+	private long			numLate;		// ... started late
+	private long			maxLag;			// worst start lag in nanos
+
+	ArrivalSchedule (double tps, boolean poisson, long seed) {
+		if (tps <= 0.0) {
+			throw new IllegalArgumentException("rate must be positive");
+		}
+		this.startNanos		= System.nanoTime();
+		this.intervalNanos	= 1000000000.0 / tps;
+		this.poisson		= poisson;
+		this.random			= new FastRandom(FastRandom.mix(seed));
+		this.nextOffset		= 0.0;
+	}
+
+	/* ----
+	 * Claim
+	 *
+	 *	An arrival claimed by a worker, reused for all its claims.
+	 * ----
+	 */
+	static class Claim {
+		long	intended;		// start time in System.nanoTime() units
+		long	generation;		// of the schedule when claimed
+	}
+
+	/* ----
+	 * next()
+	 *
+	 *	Claim the next arrival. Returns false, without claiming, while
+	 *	the schedule is paused; claim.generation is set either way.
+	 * ----
+	 */
+	synchronized boolean
+	next(Claim claim) {
+		claim.generation = generation;
+		if (paused) {
+			return false;
+		}
+		claim.intended = startNanos + (long)nextOffset;
+		lastOffset = nextOffset;
+
+		numIssued++;
+		nextOffset += gap();
+		return true;
+	}
+
+	long
+	getGeneration() {
+		return generation;
+	}
+
+	/* ----
+	 * abandoned()
+	 *
+	 *	A worker gave up a claim of an older generation.
+	 * ----
+	 */
+	synchronized void
+	abandoned() {
+		numIssued--;
+	}
+
+	private double
+	gap() {
+		return poisson ? random.nextExponential() * intervalNanos :
+				intervalNanos;
+	}
+
+	/* ----
+	 * started()
+	 *
+	 *	Report that the arrival intended for the given time actually
+	 *	started now.
+	 * ----
+	 */
+	synchronized void
+	started(long intended, long now) {
+		long	lag = now - intended;
+
+		if (lag > LATE_NANOS) {
+			numLate++;
+		}
+		if (lag > maxLag) {
+			maxLag = lag;
+		}
+	}
+
+	/* ----
+	 * getBacklog()
+	 *
+	 *	Number of arrivals that are due by now but have not been
+	 *	claimed by any worker yet.
+	 * ----
+	 */
+	synchronized long
+	getBacklog() {
+		double	due = (double)(System.nanoTime() - startNanos) - nextOffset;
+
+		if (due < 0.0 || paused) {
+			return 0;
+		}
+		return (long)(due / intervalNanos) + 1;
+	}
+
+	synchronized long
+	getNumIssued() {
+		return numIssued;
+	}
+
+	synchronized long
+	getNumLate() {
+		return numLate;
+	}
+
+	synchronized long
+	getMaxLagMillis() {
+		return maxLag / 1000000L;
+	}
+
+	synchronized double
+	getRate() {
+		return paused ? 0.0 : 1000000000.0 / intervalNanos;
+	}
+
+	/* ----
+	 * setRate()
+	 *
+	 *	Change the arrival rate. Arrivals that are due already stay
+	 *	as they are. The next one that is not due yet moves to the
+	 *	same fraction of the new interval (for Poisson arrivals to a
+	 *	fresh gap, which is the same in distribution), and those
+	 *	after it follow at the new rate. A rate of 0 pauses arrivals.
+	 *	Returns true if claims of waiting workers became invalid, in
+	 *	which case the caller must wake them up.
+	 * ----
+	 */
+	synchronized boolean
+	setRate(double tps) {
+		double	now = (double)(System.nanoTime() - startNanos);
+		double	ahead = nextOffset - now;
+
+		if (tps <= 0.0) {
+			if (paused) {
+				return false;
+			}
+			paused = true;
+			generation++;
+			return true;
+		}
+
+		double	newInterval = 1000000000.0 / tps;
+
+		if (paused) {
+			/* ----
+			 * Workers waiting while paused hold no claim, but wake
+			 * them up to claim one now.
+			 * ----
+			 */
+			paused = false;
+			intervalNanos = newInterval;
+			nextOffset = now + gap();
+			generation++;
+			return true;
+		}
+		if (newInterval == intervalNanos) {
+			return false;
+		}
+		double	oldInterval = intervalNanos;
+
+		intervalNanos = newInterval;
+		if (ahead <= 0.0) {
+			return false;			// behind, catch up at the new rate
+		}
+		if (poisson) {
+			nextOffset = now + gap();
+		} else {
+			nextOffset = now + (ahead % oldInterval) / oldInterval *
+					newInterval;
+		}
+		if (lastOffset <= now) {
+			return false;			// nothing claimed ahead of time
+		}
+		generation++;
+		return true;
+	}
+
+	boolean
+	isPoisson() {
+		return poisson;
+	}
+}
@@ -1,11 +1,14 @@
 package info.slony.clustertest.client;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.log4j.PropertyConfigurator;
 
@@ -15,6 +18,8 @@ public class ClientCoordinator {
 		int		optIdx = 0;
 		String	optArg = null;
 		int		serverPort = -1;
+		int		nioThreads = -1;
+		int		jobs = 1;
 		int		errors = 0;
 		
 		/*
@@ -64,6 +69,52 @@ public class ClientCoordinator {
 				}
 				continue;
 			}
+			else if (opt.equals("-nio")) {
+				/* ----
+				 * Serve all sessions from one selector thread and
+				 * evaluate their scripts on a pool of threads.
+				 * ----
+				 */
+				nioThreads = 4 * Runtime.getRuntime().availableProcessors();
+				if (val != null) {
+					try {
+						nioThreads = Integer.parseInt(val);
+					} catch (Exception e) {
+						System.err.println("Value for option -nio not a number");
+						errors++;
+						continue;
+					}
+					if (nioThreads < 1) {
+						System.err.println("Value for option -nio must be at least 1");
+						errors++;
+					}
+				}
+				continue;
+			}
+			else if (opt.equals("-jobs")) {
+				/* ----
+				 * With -coordinator: run up to this many jobs at once
+				 * over the one connection, see Multiplexer.
+				 * ----
+				 */
+				if (val == null) {
+					System.err.println("Option -jobs requires a number");
+					errors++;
+					continue;
+				}
+				try {
+					jobs = Integer.parseInt(val);
+				} catch (Exception e) {
+					System.err.println("Value for option -jobs not a number");
+					errors++;
+					continue;
+				}
+				if (jobs < 1) {
+					System.err.println("Value for option -jobs must be at least 1");
+					errors++;
+				}
+				continue;
+			}
 			else if(opt.equals("-coordinator")) {
 				//Invoking as a client.  Requires a server:port to connect to.
 				if(val == null) {
@@ -92,6 +143,16 @@ public class ClientCoordinator {
 			errors++;
 		}
 
+		if (nioThreads > 0 && serverPort < 0) {
+			System.err.println("Option -nio requires -server");
+			errors++;
+		}
+
+		if (jobs > 1 && coordinatorAddress == null) {
+			System.err.println("Option -jobs requires -coordinator");
+			errors++;
+		}
+
 		if (optIdx != args.length) {
 			System.err.println("Extra command line arguments");
 			errors++;
@@ -103,7 +164,11 @@ public class ClientCoordinator {
 			System.err.println("");
 			System.err.println("Options:");
 			System.err.println("  -server=<portNumber>");
+			System.err.println("  -nio[=<threads>]     with -server: one I/O thread and");
+			System.err.println("                       <threads> script threads for all sessions");
 			System.err.println("  -coordinator=<host>:<port>");
+			System.err.println("  -jobs=<n>            with -coordinator: run up to <n> jobs");
+			System.err.println("                       at once over the one connection");
 			System.exit(1);
 		}
 
@@ -128,6 +193,11 @@ public class ClientCoordinator {
 					InetSocketAddress socketAddress = new InetSocketAddress(address,coordinatorPort);
 					Socket socket = new Socket();
 					socket.connect(socketAddress);
+					if (jobs > 1) {
+						runJobs(socket, jobs);
+						socket.close();
+						continue;
+					}
 					ClientTelnetConnection conn;
 					conn = new ClientTelnetConnection(socket.getInputStream(), socket.getOutputStream());
 					conn.waitfor();
@@ -154,6 +224,19 @@ public class ClientCoordinator {
 			conn = new ClientTelnetConnection(System.in, System.out);
 			conn.waitfor();
 		}
+		else if (nioThreads > 0) {
+			/* ----
+			 * Run in server mode with one selector thread for all
+			 * sessions, see NioClientServer.
+			 * ----
+			 */
+			try {
+				new NioClientServer(serverPort, nioThreads).run();
+			} catch (IOException iox) {
+				System.err.println(iox.getMessage());
+				System.exit(2);
+			}
+		}
 		else {
 			/* ----
 			 * Run in server mode. Create the server socket, accept
@@ -179,4 +262,54 @@ public class ClientCoordinator {
 			}
 		}
 	}
+
+	/* ----
+	 * runJobs()
+	 *
+	 *	Tell the test coordinator how many jobs we take and run each
+	 *	one it sends over the connection in a ClientTelnetConnection of
+	 *	its own, until the coordinator closes the connection.
+	 * ----
+	 */
+	private static void
+	runJobs(Socket socket, int jobs)
+			throws IOException {
+		List<ClientTelnetConnection>	running =
+				new ArrayList<ClientTelnetConnection>();
+		OutputStream					out = socket.getOutputStream();
+
+		out.write((Multiplexer.HELLO + jobs + "\n").getBytes("UTF-8"));
+		out.flush();
+
+		final Multiplexer mux = new Multiplexer(socket.getInputStream(),
+				out, jobs, false, null);
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				mux.run();
+			}
+		}, "Multiplexer");
+		reader.setDaemon(true);
+		reader.start();
+
+		try {
+			Multiplexer.Channel channel;
+			while ((channel = mux.accept()) != null) {
+				running.add(new ClientTelnetConnection(
+						channel.getInputStream(),
+						channel.getOutputStream()));
+				if (running.size() > jobs) {
+					for (int i = running.size() - 1; i >= 0; i--) {
+						if (running.get(i).isDone()) {
+							running.remove(i);
+						}
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			mux.close();
+		}
+		for (ClientTelnetConnection conn : running) {
+			conn.waitfor();
+		}
+	}
 }
@@ -9,6 +9,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
@@ -18,6 +20,7 @@ import org.apache.log4j.Logger;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
 
 public class ClientEngine {
 	
@@ -28,6 +31,11 @@ public class ClientEngine {
 	private int					gaUsed;
 	private BufferedReader		in;
 	protected PrintWriter		out;
+	protected PrintWriter		scriptOut;		// What test scripts print
+	protected PrintWriter		errorOut;		// ERROR: and FATAL: messages
+	protected PrintWriter		statsOut;		// STATS lines
+	protected PrintWriter		controlOut;		// PHASE lines
+	protected PrintWriter		lockOut;		// Lock requests and releases
 	protected Scriptable		shellScope;
 	private ClientTelnetConnection.Shell	shell;
 	
@@ -35,6 +43,29 @@ public class ClientEngine {
 	
 	private static ThreadLocal<ClientEngine> localEngine =
 				new ThreadLocal<ClientEngine>();
+
+	/**
+	 * The random number generator used by the random() and nurand()
+	 * functions of the calling thread. ClientWorkers install their
+	 * own, other threads get one on first use.
+	 */
+	private static ThreadLocal<FastRandom> localRandom =
+				new ThreadLocal<FastRandom>();
+
+	/**
+	 * The connection pool of the group the calling worker belongs to,
+	 * and the connection it borrowed for the current transaction.
+	 */
+	private static ThreadLocal<ConnectionPool> localPool =
+				new ThreadLocal<ConnectionPool>();
+	private static ThreadLocal<Connection> localConnection =
+				new ThreadLocal<Connection>();
+
+	/**
+	 * The sealed standard objects all shell scopes of this JVM are
+	 * built on, so they are created only once.
+	 */
+	private static ScriptableObject	sharedScope = null;
 	
 	
 	/**
@@ -43,6 +74,27 @@ public class ClientEngine {
 	 */
 	private Map<String,Semaphore> lockMap = new HashMap<String,Semaphore>();
 
+	/**
+	 * The statements created with sql() and their caches on the
+	 * connections of the workers.
+	 */
+	protected final SqlStatement.Registry sqlStatements =
+				new SqlStatement.Registry();
+
+	/**
+	 * Milliseconds between the STATS lines sent for every running
+	 * group, 0 turns them off. They are off by default, so that an
+	 * interactive session does not get them in its terminal. A test
+	 * coordinator speaking the framed protocol gets them every
+	 * DEFAULT_STATS_INTERVAL ms, unless the script sets its own
+	 * interval with setStatsInterval().
+	 */
+	static final long			DEFAULT_STATS_INTERVAL = 1000;
+	private long				statsInterval = 0;
+	private boolean				statsIntervalSet = false;
+	private Thread				statsThread = null;
+	private boolean				statsShutdown = false;
+
 	
 	
 		
@@ -54,6 +106,11 @@ public class ClientEngine {
 
 		in = newIn;
 		out = newOut;
+		scriptOut = newOut;
+		errorOut = newOut;
+		statsOut = newOut;
+		controlOut = newOut;
+		lockOut = newOut;
 		shellScope = scope;
 
 		if (localEngine.get() != null) {
@@ -67,6 +124,11 @@ public class ClientEngine {
 			throws Exception {
 		this(newIn, newOut, scope);
 		this.shell = shell;
+		scriptOut = shell.getScriptOut();
+		errorOut = shell.getErrorOut();
+		statsOut = shell.getStatsOut();
+		controlOut = shell.getControlOut();
+		lockOut = shell.getLockOut();
 	}
 
 	public static ClientEngine
@@ -74,6 +136,54 @@ public class ClientEngine {
 		return localEngine.get();
 	}
 
+	/* ----
+	 * newScriptOut()
+	 *
+	 *	A writer for script output of one worker thread. Writers
+	 *	of their own let workers commit into the output ring without
+	 *	meeting at the lock of one shared PrintWriter. Without a
+	 *	shell there is no ring and all share scriptOut.
+	 * ----
+	 */
+	PrintWriter
+	newScriptOut() {
+		if (shell == null) {
+			return scriptOut;
+		}
+		return shell.newWriter(FramedProtocol.OUTPUT, true, null);
+	}
+
+	/* ----
+	 * newErrorOut()
+	 *
+	 *	The same for ERROR: and FATAL: messages.
+	 * ----
+	 */
+	PrintWriter
+	newErrorOut() {
+		if (shell == null) {
+			return errorOut;
+		}
+		return shell.newWriter(FramedProtocol.ERROR, false, null);
+	}
+
+	/* ----
+	 * setLocalEngine()
+	 *
+	 *	Make engine the one of the calling thread, or none. For the
+	 *	executor threads of the NioClientServer, which evaluate the
+	 *	input of many sessions.
+	 * ----
+	 */
+	static void
+	setLocalEngine(ClientEngine engine) {
+		if (engine == null) {
+			localEngine.remove();
+		} else {
+			localEngine.set(engine);
+		}
+	}
+
 	/* ----
 	 * registerGroup()
 	 *
@@ -94,10 +204,28 @@ public class ClientEngine {
 		}
 
 		groupArray[gaUsed++] = group;
+
+		if (statsThread == null && !statsShutdown) {
+			startStatsReporter();
+		}
 	}
 
 	protected void
 	shutdown() {
+		Thread st;
+		synchronized (this) {
+			statsShutdown = true;
+			st = statsThread;
+			statsThread = null;
+			notifyAll();
+		}
+		if (st != null) {
+			try {
+				st.join();
+			} catch (InterruptedException e) {
+			}
+		}
+
 		for (int idx = 0; idx < gaUsed; idx++) {
 			ClientGroup group = groupArray[idx];
 
@@ -107,6 +235,405 @@ public class ClientEngine {
 				group.stop();
 			}
 		}
+		sqlStatements.clear();
+	}
+
+	/* ----
+	 * startStatsReporter()
+	 *
+	 *	Start the thread that sends a STATS line for every running
+	 *	group each statsInterval milliseconds, so the coordinator can
+	 *	follow throughput and latency while the groups run.
+	 * ----
+	 */
+	private void
+	startStatsReporter() {
+		statsThread = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					ClientGroup[] groups;
+					synchronized (ClientEngine.this) {
+						long wait = statsInterval;
+						try {
+							if (wait <= 0) {
+								ClientEngine.this.wait();
+							} else {
+								ClientEngine.this.wait(wait);
+							}
+						} catch (InterruptedException e) {
+						}
+						if (statsShutdown) {
+							break;
+						}
+						if (statsInterval <= 0) {
+							continue;
+						}
+						groups = new ClientGroup[gaUsed];
+						System.arraycopy(groupArray, 0, groups, 0, gaUsed);
+					}
+					for (ClientGroup group : groups) {
+						reportStats(group);
+					}
+				}
+			}
+		}, "ClientEngine_stats");
+		statsThread.setDaemon(true);
+		statsThread.start();
+	}
+
+	/* ----
+	 * reportStats()
+	 *
+	 *	Send the STATS line of one group, if it has one. Groups call
+	 *	this when they finish so the final interval is not lost.
+	 * ----
+	 */
+	void
+	reportStats(ClientGroup group) {
+		synchronized (this) {
+			if (statsInterval <= 0) {
+				return;
+			}
+		}
+		String line = group.statsLine();
+		if (line != null) {
+			statsOut.println(line);
+			statsOut.flush();
+		}
+	}
+
+	/* ----
+	 * enableStats()
+	 *
+	 *	Turn STATS lines on at the default interval, unless the
+	 *	script chose an interval already.
+	 * ----
+	 */
+	synchronized void
+	enableStats() {
+		if (!statsIntervalSet) {
+			statsInterval = DEFAULT_STATS_INTERVAL;
+			notifyAll();
+		}
+	}
+
+	public static Object
+	setStatsInterval (Context cx, Scriptable thisObj, Object[] args,
+			Function funObj)
+			throws Exception {
+		if (args.length != 1) {
+			throw new Exception ("wrong number of arguments");
+		}
+		long	ms = (long)(Context.toNumber(args[0]));
+		ClientEngine myEngine = getLocalEngine();
+
+		if (myEngine != null) {
+			synchronized (myEngine) {
+				myEngine.statsInterval = ms;
+				myEngine.statsIntervalSet = true;
+				myEngine.notifyAll();
+			}
+		}
+		return Context.getUndefinedValue();
+	}
+
+	/* ----
+	 * setOutputOverflow()
+	 *
+	 *	What happens to output of test scripts when the coordinator
+	 *	does not keep up and the output buffer is full: "block" the
+	 *	workers (the default) or "drop" the output.
+	 * ----
+	 */
+	public static Object
+	setOutputOverflow (Context cx, Scriptable thisObj, Object[] args,
+			Function funObj)
+			throws Exception {
+		if (args.length != 1) {
+			throw new Exception ("wrong number of arguments");
+		}
+		String	policy = Context.toString(args[0]);
+		ClientEngine myEngine = getLocalEngine();
+
+		if (myEngine == null || myEngine.shell == null) {
+			throw new Exception ("setOutputOverflow() needs a client session");
+		}
+		if (policy.equals("block")) {
+			myEngine.shell.getOutputRing().setOverflowPolicy(OutputRing.BLOCK);
+		} else if (policy.equals("drop")) {
+			myEngine.shell.getOutputRing().setOverflowPolicy(OutputRing.DROP);
+		} else {
+			throw new Exception ("output overflow must be block or drop");
+		}
+		return Context.getUndefinedValue();
+	}
+
+	/* ----
+	 * getSharedScope()
+	 *
+	 *	Return the JVM wide sealed standard scope. All lazily loaded
+	 *	standard objects are resolved up front, so that the scope is
+	 *	never modified after it is shared between threads.
+	 * ----
+	 */
+	static synchronized ScriptableObject
+	getSharedScope() {
+		if (sharedScope == null) {
+			Context cx = Context.enter();
+			try {
+				ScriptableObject scope = cx.initStandardObjects(null, true);
+				Object[] ids = scope.getAllIds();
+				for (int i = 0; i < ids.length; i++) {
+					if (!(ids[i] instanceof String)) {
+						continue;
+					}
+					try {
+						ScriptableObject.getProperty(scope, (String)ids[i]);
+					} catch (RuntimeException e) {
+						log.debug("standard object " + ids[i] +
+								" not available: " + e.getMessage());
+					}
+				}
+				sharedScope = scope;
+			} finally {
+				Context.exit();
+			}
+		}
+		return sharedScope;
+	}
+
+	/* ----
+	 * setOptimizationLevel()
+	 *
+	 *	Select the Rhino optimization level for code the shell
+	 *	compiles from now on: -1 interprets, 0 to 9 compile to Java
+	 *	classes. Test classes defined afterwards run at that level
+	 *	in all workers.
+	 * ----
+	 */
+	public static Object
+	setOptimizationLevel (Context cx, Scriptable thisObj, Object[] args,
+			Function funObj)
+			throws Exception {
+		if (args.length != 1) {
+			throw new Exception ("wrong number of arguments");
+		}
+		int		level = (int)(Context.toNumber(args[0]));
+
+		if (!Context.isValidOptimizationLevel(level)) {
+			throw new Exception ("invalid optimization level " + level);
+		}
+		cx.setOptimizationLevel(level);
+		return Context.getUndefinedValue();
+	}
+
+	/* ----
+	 * getConnection()
+	 *
+	 *	The connection of the calling worker. In a group with a
+	 *	connection pool the first call of a transaction borrows it
+	 *	from the pool, the worker gives it back when the transaction
+	 *	is done. Otherwise it is the one the test class passed to
+	 *	setConnection().
+	 * ----
+	 */
+	public Connection
+	getConnection()
+			throws SQLException {
+		Connection conn = localConnection.get();
+		if (conn == null) {
+			ConnectionPool pool = localPool.get();
+			if (pool == null) {
+				throw new SQLException("no connection - call " +
+						"myEngine.setConnection() in connect() or give " +
+						"the group a connection pool");
+			}
+			conn = pool.borrow();
+			localConnection.set(conn);
+		}
+		return conn;
+	}
+
+	/* ----
+	 * setConnection()
+	 *
+	 *	For workers without a connection pool: make the connection
+	 *	the test class opened in connect() the one sql() statements
+	 *	and getConnection() use. Statements prepared on the previous
+	 *	one are closed.
+	 * ----
+	 */
+	public void
+	setConnection(Connection conn)
+			throws SQLException {
+		if (localPool.get() != null) {
+			throw new SQLException("setConnection() cannot be used " +
+					"in a group with a connection pool");
+		}
+		Connection old = localConnection.get();
+		if (old != null && old != conn) {
+			sqlStatements.forget(old);
+		}
+		if (conn == null) {
+			localConnection.remove();
+		} else {
+			localConnection.set(conn);
+		}
+	}
+
+	/* ----
+	 * sql()
+	 *
+	 *	Return the statement handle of the given name, creating it on
+	 *	first use. Workers of all groups share the handle, so test
+	 *	classes can create theirs in the constructor or connect().
+	 * ----
+	 */
+	public Scriptable
+	sql(String name, String sql)
+			throws Exception {
+		return sqlStatements.define(this, name, sql);
+	}
+
+	/* ----
+	 * getSqlStats()
+	 *
+	 *	The timings of all sql() statements so far, in the form of
+	 *	ClientGroup.getStats().
+	 * ----
+	 */
+	public static Object
+	getSqlStats (Context cx, Scriptable thisObj, Object[] args,
+			Function funObj) {
+		ClientEngine myEngine = getLocalEngine();
+		Scriptable	scope = ScriptableObject.getTopLevelScope(thisObj);
+		Scriptable	result = cx.newObject(scope);
+		SqlStatement[] statements;
+
+		if (myEngine == null) {
+			return result;
+		}
+		statements = myEngine.sqlStatements.getAll();
+		for (int i = 0; i < statements.length; i++) {
+			Scriptable	entry = cx.newObject(scope);
+			LatencyHistogram h = statements[i].collectStats();
+
+			ScriptableObject.putProperty(entry, "count",
+					Double.valueOf(h.getCount()));
+			ScriptableObject.putProperty(entry, "errors",
+					Double.valueOf(h.getErrors()));
+			ScriptableObject.putProperty(entry, "mean",
+					Double.valueOf(h.getMean() / 1000.0));
+			ScriptableObject.putProperty(entry, "p50",
+					Double.valueOf(LatencyHistogram.millis(h.getPercentile(50.0))));
+			ScriptableObject.putProperty(entry, "p90",
+					Double.valueOf(LatencyHistogram.millis(h.getPercentile(90.0))));
+			ScriptableObject.putProperty(entry, "p99",
+					Double.valueOf(LatencyHistogram.millis(h.getPercentile(99.0))));
+			ScriptableObject.putProperty(entry, "p999",
+					Double.valueOf(LatencyHistogram.millis(h.getPercentile(99.9))));
+			ScriptableObject.putProperty(entry, "max",
+					Double.valueOf(LatencyHistogram.millis(h.getMax())));
+			ScriptableObject.putProperty(entry, "summary", h.format());
+			ScriptableObject.putProperty(result, statements[i].getName(), entry);
+		}
+		return result;
+	}
+
+	/* ----
+	 * copyLoad()
+	 *
+	 *	Bulk load generated rows into a table with COPY, see
+	 *	CopyLoader for the spec. Returns when all rows are loaded.
+	 * ----
+	 */
+	public static Object
+	copyLoad (Context cx, Scriptable thisObj, Object[] args,
+			Function funObj)
+			throws Exception {
+		if (args.length != 1 || !(args[0] instanceof Scriptable)) {
+			throw new Exception ("copyLoad() needs a spec object");
+		}
+		ClientEngine myEngine = getLocalEngine();
+		if (myEngine == null) {
+			throw new Exception ("copyLoad() needs a client engine");
+		}
+		CopyLoader loader = new CopyLoader(myEngine.out,
+				ScriptableObject.getTopLevelScope(thisObj),
+				(Scriptable)args[0]);
+		return loader.run();
+	}
+
+	static void
+	setLocalPool(ConnectionPool pool) {
+		if (pool == null) {
+			localPool.remove();
+		} else {
+			localPool.set(pool);
+		}
+	}
+
+	/* ----
+	 * takeLocalConnection()
+	 *
+	 *	Return and forget the connection the current transaction
+	 *	borrowed, if any.
+	 * ----
+	 */
+	static Connection
+	takeLocalConnection() {
+		Connection conn = localConnection.get();
+		if (conn != null) {
+			localConnection.remove();
+		}
+		return conn;
+	}
+
+	/* ----
+	 * getLocalRandom() & setLocalRandom()
+	 *
+	 *	The per thread generator behind the random() and nurand()
+	 *	JS functions.
+	 * ----
+	 */
+	static FastRandom
+	getLocalRandom() {
+		FastRandom r = localRandom.get();
+		if (r == null) {
+			r = new FastRandom(FastRandom.mix(System.nanoTime() ^
+					Thread.currentThread().getId()));
+			localRandom.set(r);
+		}
+		return r;
+	}
+
+	/* ----
+	 * setRandomSeed()
+	 *
+	 *	Seed random() and nurand() of the calling thread, normally
+	 *	the shell. Workers get theirs from the group seed.
+	 * ----
+	 */
+	public static Object
+	setRandomSeed (Context cx, Scriptable thisObj, Object[] args,
+			Function funObj)
+			throws Exception {
+		if (args.length != 1) {
+			throw new Exception ("wrong number of arguments");
+		}
+		long	seed = ClientGroup.parseSeed(args[0]);
+
+		localRandom.set(new FastRandom(FastRandom.mix(seed)));
+		return Context.getUndefinedValue();
+	}
+
+	static void
+	setLocalRandom(FastRandom r) {
+		if (r == null) {
+			localRandom.remove();
+		} else {
+			localRandom.set(r);
+		}
 	}
 
 	public static Object
@@ -129,7 +656,7 @@ public class ClientEngine {
 		int		min = (int)(cx.toNumber(args[0]));
 		int		max = (int)(cx.toNumber(args[1]));
 
-		return (Object)((int)Math.floor(Math.random() * (max - min + 1) + min));
+		return (Object)((int)getLocalRandom().nextInt(min, max));
 	}
 
 	public static Object
@@ -142,32 +669,70 @@ public class ClientEngine {
 		int		min = (int)(cx.toNumber(args[1]));
 		int		max = (int)(cx.toNumber(args[2]));
 
-		int r1 = (int)Math.floor(Math.random() * (a + 1));
-		int r2 = (int)Math.floor(Math.random() * (max - min + 1) + min);
-		return (Object)(((r1 | r2) % (max - min + 1)) + min);
+		return (Object)nonUniformRandom(getLocalRandom(), a, min, max);
+	}
+
+	/* ----
+	 * nonUniformRandom()
+	 *
+	 *	The NURand(A, x, y) function of TPC-C behind nurand().
+	 * ----
+	 */
+	static int
+	nonUniformRandom(FastRandom random, int a, int min, int max) {
+		int r1 = (int)random.nextInt(0, a);
+		int r2 = (int)random.nextInt(min, max);
+		return ((r1 | r2) % (max - min + 1)) + min;
 	}
 
+	private static final String[] DIGSYL_SYLLABLES = {
+		"BA", "OG", "AL", "RI", "RE", "SE", "AT", "UL", "IN", "NG"
+	};
+
 	public static Object
 	digsyl (Context cx, Scriptable thisObj, Object[] args, Function funObj)
 			throws Exception {
 		if (args.length != 2) {
 			throw new Exception ("wrong number of arguments");
 		}
-		int		num = (int)(cx.toNumber(args[0]));
-		int		len = (int)(cx.toNumber(args[1]));
-		String[] syl = {"BA", "OG", "AL", "RI", "RE",
-						"SE", "AT", "UL", "IN", "NG" };
+		int		num = (int)(Context.toNumber(args[0]));
+		int		len = (int)(Context.toNumber(args[1]));
+		if (num < 0) {
+			throw new Exception ("digsyl() needs a non-negative number");
+		}
 
-		String fmt = String.format("%%0%dd", len);
-		String digits = String.format(fmt, num);
-		byte[] bytes = digits.getBytes();
+		StringBuilder result = new StringBuilder(len * 2);
+		appendDigsyl(result, num, len);
+		return (Object)result.toString();
+	}
 
-		String result = "";
-		for (int i = 0; i < len; i++) {
-			result += syl[bytes[i] - '0'];
+	/* ----
+	 * appendDigsyl()
+	 *
+	 *	Append the syllables of a non negative number.
+	 * ----
+	 */
+	static void
+	appendDigsyl(StringBuilder result, int num, int len) {
+		/* ----
+		 * Build the syllables from the number zero padded to len
+		 * digits. Like the %0<len>d format it replaces, a number
+		 * with more digits uses its leading ones.
+		 * ----
+		 */
+		for (int n = num / 10, digits = 1; n > 0; n /= 10, digits++) {
+			if (digits >= len) {
+				num /= 10;
+			}
+		}
+		int start = result.length();
+		result.setLength(start + len * 2);
+		for (int i = len - 1; i >= 0; i--) {
+			String s = DIGSYL_SYLLABLES[num % 10];
+			result.setCharAt(start + i * 2, s.charAt(0));
+			result.setCharAt(start + i * 2 + 1, s.charAt(1));
+			num /= 10;
 		}
-
-		return (Object)result;
 	}
 
 	public static Object
@@ -198,22 +763,32 @@ public class ClientEngine {
 	public static Object lockObtained(Context cx, Scriptable thisObj, Object[] args,
 			Function funObj) throws Exception {
 		
-		Semaphore lock=null;
 		String lockName = cx.toString(args[0]);
 		ClientEngine myEngine = localEngine.get();
-		synchronized(myEngine.lockMap) {
-			lock = myEngine.lockMap.get(lockName);
+		myEngine.lockGranted(lockName);
+		
+		return cx.getUndefinedValue();
+	}
+	
+	/**
+	 * Wakes up the worker waiting for the named lock. In framed mode
+	 * the ClientTelnetConnection calls this directly for a LOCK frame.
+	 * 
+	 * @param lockName
+	 */
+	void lockGranted(String lockName) {
+		Semaphore lock=null;
+		synchronized(lockMap) {
+			lock = lockMap.get(lockName);
 			if(lock == null) {
 				//This is an error
 				//We should not be receiving notifications of obtaining a lock
 				//that was not requested.
-				return cx.getUndefinedValue();
+				return;
 			}
 			
 		}
 		lock.release();
-		
-		return cx.getUndefinedValue();
 	}
 	
 	/**
@@ -238,8 +813,8 @@ public class ClientEngine {
 			
 		}//synchronized
 		
-		out.write("REQUEST_LOCK:" + lockName + "\n");
-		out.flush();
+		lockOut.write(FramedProtocol.LOCK_REQUEST + lockName + "\n");
+		lockOut.flush();
 		lock.acquire();	
 		
 		
@@ -254,8 +829,8 @@ public class ClientEngine {
 	 * @param lockName
 	 */
 	public void releaseLock(String lockName) {
-		out.write("RELEASE_LOCK:" + lockName + "\n");
-		out.flush();
+		lockOut.write(FramedProtocol.LOCK_RELEASE + lockName + "\n");
+		lockOut.flush();
 	}
 			
 	
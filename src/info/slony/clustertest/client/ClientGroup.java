@@ -8,6 +8,14 @@ package info.slony.clustertest.client;
 import java.io.PrintWriter;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.sql.Connection;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.log4j.Logger;
 import org.mozilla.javascript.Context;
@@ -20,28 +28,84 @@ import org.mozilla.javascript.Undefined;
 public class ClientGroup extends ScriptableObject {
 	private static Logger log = Logger.getLogger(ClientGroup.class);
         static final long serialVersionUID = - 123456L;	
+	private static final long	SMALL_STACK_SIZE = 256L * 1024L;
+	private static Method	virtualBuilder = null;	// Thread.ofVirtual()
+	private static Method	virtualUnstarted = null; // Builder.unstarted()
+	private static Method	virtualName = null;		// Builder.name()
+	private static boolean	virtualChecked = false;
+
+	/* ----
+	 * Every worker derives one random stream per purpose from the
+	 * group seed and its sequence number, so that for example extra
+	 * random() calls in a transaction don't change which transactions
+	 * are picked.
+	 * ----
+	 */
+	private static final long	STREAM_MIX = 0;		// Transaction choice
+	private static final long	STREAM_THINK = 1;	// Think time, backoff
+	private static final long	STREAM_SCRIPT = 2;	// random(), nurand()
+	private static final long	STREAM_ARRIVALS = -1; // Poisson arrivals
+
 	protected String			groupName;		// Name of this group
 	private ClientEngine	engine;			// Beck reference to engine
 	private int				numWorkers;		// Number of worker threads
 	private String			className;		// JS Class to use for this group
-	private String			transactionMix;	// Original form of transactions
-	private String[]		transactions;	// List of transactions to run
+	private Class<? extends ClientWorkload> workloadClass = null; // ... or
+											 // the Java class of that name
+	private Function		testClass = null; // JS constructor, resolved
+											 // at launch
+	private TransactionMix	transactionMix;	// Transactions to run
+	private boolean			deckMode;		// Deal the mix in order
+	private LatencyHistogram[] lastStats;	// Stats of the last run
+	private LatencyHistogram statsReported = null; // Live totals as of
+											 // the last STATS line
+	private int				statsSeq = 0;
 	private String			dbUri;			// DB connection string
 	private String			dbUser;			// DB username
 	private String			dbPass;			// DB password
+	private int				poolSize = 0;	// Shared connections, 0 if
+											// every worker connects
+	private String			poolValidation = "SELECT 1";
+	private ConnectionPool	pool = null;	// of the current run
+	private RetryPolicy		retryPolicy = null; // null never retries
+	private long[]			lastErrorStats = null; // Per error class of
+											 // the last run
 	private int				numTransWorker;	// # of transactions to run
 	private long			runUntil;		// Time to run
-	private long			minSleep;		// Nap time between transactions
-	private long			maxSleep;		// ditto
-	private long			reconnectSleep;	// Nap after errors
+	private volatile ThinkTime thinkTime;	// Nap time between transactions,
+											// null for none
+	private volatile long	reconnectSleep;	// Nap after errors
+	private long			seed;			// Base of the worker generators
 	private Boolean			isRunning;		// Group is active
 	private PrintWriter		out;			// Output for debugging
-	private ClientWorker[]	workers;
-	private Thread[]		threads;
+	private PrintWriter		err;			// ERROR: and FATAL: messages
+	private List<ClientWorker> workers;		// All workers of this run
+	private List<ClientWorker> liveWorkers;	// ... that are not retired
+	private int				workerSeq;		// Counter for worker names
 	private String			timingDir = null; // Directory where to place 
 											  // the CSV files with the
 											  // transaction timing data.
 	private Boolean			timingAppend = false;
+	private boolean			timingBinary = false; // TimingLog instead
+											  // of CSV
+	private boolean			virtualThreads = false; // Run workers on
+											 // virtual threads
+	private boolean			backfill = false; // Add the samples a stalled
+											 // worker failed to send
+	private ArrivalSchedule	schedule = null; // Open-loop pacing, if the
+											 // group was launched with
+											 // launchRate()
+	private LoadProfile		profile = null;	// Load changes over time
+	private Thread			controlThread = null; // Applies profile
+											 // and phases
+	private long			launchNanos;	// nanoTime() of launch
+	private long			warmupNanos = 0; // Phase lengths, all 0
+	private long			measureNanos = 0; // if not phased
+	private long			cooldownNanos = 0;
+	private int				lastPhase;		// Last phase announced
+	private volatile int	activeWorkers;	// Workers allowed to run
+	private final Object	activeGate = new Object(); // Idle workers
+											 // wait here
 
 	public ClientGroup ()
 			throws Exception {
@@ -58,11 +122,13 @@ public class ClientGroup extends ScriptableObject {
 		numWorkers		= 1;
 		numTransWorker	= -1;
 		runUntil		= -1;
-		minSleep		= 0;
-		maxSleep		= 0;
+		thinkTime		= null;
 		reconnectSleep	= 1000;
+		seed			= FastRandom.mix(System.nanoTime() ^
+								System.identityHashCode(this));
 		isRunning		= false;
 		out				= engine.out;
+		err				= engine.errorOut;
 
 		engine.registerGroup(this);
 	}
@@ -103,7 +169,17 @@ public class ClientGroup extends ScriptableObject {
 	}
 
 	/* ----
-	 * numWorkers - readonly while running
+	 * numWorkers
+	 *
+	 *	Changing it while the group is running starts additional
+	 *	workers, which join the current mix and run time, or retires
+	 *	the most recently started ones. A retired worker finishes its
+	 *	current transaction and disconnects.
+	 *
+	 *	While a profile controls the number of workers, the value is
+	 *	only the profile's base, the number before its first step.
+	 *	Workers are then added if the profile's peak with the new base
+	 *	needs them, but none are retired.
 	 * ----
 	 */
 	public synchronized int
@@ -114,15 +190,40 @@ public class ClientGroup extends ScriptableObject {
 	public synchronized void
 	jsFunction_setNumWorkers(int n) 
 			throws Exception {
-		if (isRunning) {
-			throw new Exception("Number of workers cannot be changed " +
-					"while group is running");
+		if (n < 0) {
+			throw new Exception("Number of workers cannot be negative");
 		}
 		numWorkers = n;
+		if (!isRunning) {
+			return;
+		}
+
+		if (profile != null && profile.has(LoadProfile.WORKERS)) {
+			addProfileWorkers();
+			return;
+		}
+		if (n > liveWorkers.size()) {
+			addWorkers(n - liveWorkers.size());
+		} else {
+			long now = System.currentTimeMillis();
+			while (liveWorkers.size() > n) {
+				ClientWorker w = liveWorkers.remove(liveWorkers.size() - 1);
+				log.info("INFO worker " + w.workerName + " retired");
+				w.setRunUntil(now);
+				LockSupport.unpark(w.thread);
+			}
+			synchronized (activeGate) {
+				activeGate.notifyAll();
+			}
+		}
 	}
 
 	/* ----
 	 * className - readonly while running
+	 *
+	 *	Either a JS class defined in the client script or the fully
+	 *	qualified name of a Java class on the client's classpath that
+	 *	implements ClientWorkload.
 	 * ----
 	 */
 	public synchronized String
@@ -137,7 +238,71 @@ public class ClientGroup extends ScriptableObject {
 					"while group is running");
 			return;
 		}
+
+		/* ----
+		 * A JS class name has no dots. If it has and names a Java
+		 * class, that must be a ClientWorkload.
+		 * ----
+		 */
+		Class<? extends ClientWorkload> cls = null;
+		if (c.indexOf('.') > 0) {
+			try {
+				Class<?> found = Class.forName(c);
+				if (!ClientWorkload.class.isAssignableFrom(found)) {
+					Context.reportRuntimeError("class " + c +
+							" does not implement ClientWorkload");
+					return;
+				}
+				cls = found.asSubclass(ClientWorkload.class);
+			} catch (ClassNotFoundException e) {
+				cls = null;
+			}
+		}
 		className = c;
+		workloadClass = cls;
+	}
+
+	/* ----
+	 * setExecutor()
+	 *
+	 *	Select what the workers run on. "platform" (the default) starts
+	 *	one regular Thread per worker. "virtual" runs the workers on
+	 *	virtual threads, so that think times and arrival waits park the
+	 *	worker instead of tying up an OS thread. This allows thousands
+	 *	of mostly idle sessions per client.
+	 *
+	 *	Waits inside synchronized code still hold on to the carrier
+	 *	thread on JVMs before 24: the JDBC driver's query execution,
+	 *	ConnectionPool.borrow(), the gate idle workers of a WORKERS
+	 *	profile wait at, and a full output ring. Sessions blocked there
+	 *	count against the carrier pool
+	 *	(-Djdk.virtualThreadScheduler.parallelism), so for workloads
+	 *	that spend their time waiting on the database the benefit is
+	 *	mostly the smaller footprint per worker.
+	 *
+	 *	On a JVM without virtual threads the workers fall back to
+	 *	platform threads with a reduced stack size.
+	 * ----
+	 */
+	public synchronized void
+	jsFunction_setExecutor(String executor)
+			throws Exception {
+		if (isRunning) {
+			throw new Exception("executor cannot be changed " +
+					"while group is running");
+		}
+		if (executor.equals("platform")) {
+			virtualThreads = false;
+		} else if (executor.equals("virtual")) {
+			virtualThreads = true;
+		} else {
+			throw new Exception("unknown executor '" + executor + "'");
+		}
+	}
+
+	public synchronized String
+	jsGet_executor() {
+		return virtualThreads ? "virtual" : "platform";
 	}
 
 	/* ----
@@ -150,6 +315,34 @@ public class ClientGroup extends ScriptableObject {
 		timingAppend = append;
 	}
 
+	/* ----
+	 * setTimingFormat()
+	 *
+	 *	"csv" (the default) writes one text line per transaction
+	 *	from the worker thread. "binary" writes compact fixed width
+	 *	records through a background writer into <worker>.tlog
+	 *	files, which costs the workers far less at high rates.
+	 *	TimingLogConverter turns those into the same CSV.
+	 * ----
+	 */
+	public synchronized void
+	jsFunction_setTimingFormat(String format)
+			throws Exception {
+		if (format.equals("csv")) {
+			timingBinary = false;
+		} else if (format.equals("binary")) {
+			timingBinary = true;
+		} else {
+			throw new Exception("unknown timing format " + format +
+					" - expected csv or binary");
+		}
+	}
+
+	public synchronized String
+	jsGet_timingFormat() {
+		return timingBinary ? "binary" : "csv";
+	}
+
 	/* ----
 	 * dbUri  - read only attribute (use setDb() to change)
 	 * dbUser - read only attribute (use setDb() to change)
@@ -195,6 +388,9 @@ public class ClientGroup extends ScriptableObject {
 		dbUri	= uri;
 		dbUser	= user;
 		dbPass	= pass;
+		if (pool != null) {
+			pool.setDb(uri, user, pass);
+		}
 	}
 
 	public void
@@ -202,10 +398,80 @@ public class ClientGroup extends ScriptableObject {
 		setDb(uri, user, pass);
 	}
 
+	/* ----
+	 * setPool()
+	 *
+	 *	Have the workers share size connections instead of each
+	 *	keeping its own. The test class then gets no connect() and
+	 *	disconnect() calls; its transactions call
+	 *	myEngine.getConnection() (this.engine in the test object) to
+	 *	borrow a connection that is given back when the transaction
+	 *	ends; myEngine.sql() statements use it as well. After a failed
+	 *	transaction the connection is checked with validationQuery
+	 *	(default "SELECT 1") and only replaced if that fails.
+	 *	setPool(0) goes back to one connection per worker.
+	 * ----
+	 */
+	public synchronized void
+	jsFunction_setPool(int size, Object validationQuery)
+			throws Exception {
+		if (isRunning) {
+			throw new Exception("pool cannot be changed " +
+					"while group is running");
+		}
+		if (size < 0) {
+			throw new Exception("pool size cannot be negative");
+		}
+		poolSize = size;
+		if (validationQuery != null && !(validationQuery instanceof Undefined)) {
+			poolValidation = Context.toString(validationQuery);
+		}
+	}
+
+	public synchronized int
+	jsGet_poolSize() {
+		return poolSize;
+	}
+
+	/* ----
+	 * setRetry()
+	 *
+	 *	Run transactions that fail with one of the given error classes
+	 *	(see RetryPolicy, default "serialization,deadlock") again, up
+	 *	to retries times, with a randomized exponential backoff from
+	 *	baseMs up to maxMs. Retried failures are logged but not
+	 *	reported as ERROR:, only a transaction that fails for good is.
+	 *	The latency of a retried transaction includes all of its
+	 *	attempts. setRetry(0) turns retrying off.
+	 *
+	 *	Before a retry the test object's rollback() function is called
+	 *	if it has one, and the connection is reopened if it has not or
+	 *	the connection failed.
+	 * ----
+	 */
+	public synchronized void
+	jsFunction_setRetry(int retries, int baseMs, int maxMs, Object classes)
+			throws Exception {
+		if (retries == 0) {
+			retryPolicy = null;
+			return;
+		}
+		String classList = "serialization,deadlock";
+		if (classes != null && !(classes instanceof Undefined)) {
+			classList = Context.toString(classes);
+		}
+		retryPolicy = new RetryPolicy(retries, baseMs, maxMs, classList);
+	}
+
+	public synchronized String
+	jsGet_retry() {
+		return (retryPolicy == null) ? null : retryPolicy.toString();
+	}
+
 	/* ----
 	 * setTransactionMix()
 	 *
-	 *	Expand the given string into the transaction mix array
+	 *	Parse the given string into the transaction mix
 	 * ----
 	 */
 	public void setTransactionMix(String transString)
@@ -215,38 +481,7 @@ public class ClientGroup extends ScriptableObject {
 					"while group is running");
 		}
 
-		/* ----
-		 * Expand the comma separated transaction mix list
-		 * ----
-		 */
-		String[] tmpList = transString.split(",");
-		int n = 0;
-		for (int i = 0; i < tmpList.length; i++) {
-			String[] tmpTrans = tmpList[i].split("=");
-			if (tmpTrans.length > 1) {
-				n += Integer.parseInt(tmpTrans[1]);
-			} else {
-				n++;
-			}
-		}
-		if (n == 0)
-			throw new Exception ("transaction list cannot be empty");
-		transactions = new String[n];
-		n = 0;
-		for (int i = 0; i < tmpList.length; i++) {
-			int m;
-			String[] tmpTrans = tmpList[i].split("=");
-			if (tmpTrans.length > 1) {
-				m = Integer.parseInt(tmpTrans[1]);
-			} else {
-				m = 1;
-			}
-			for (int j = 0; j < m; j++) {
-				transactions[n++] = tmpTrans[0].trim();
-			}
-		}
-
-		transactionMix = transString;
+		transactionMix = new TransactionMix(transString);
 	}
 
 	public void
@@ -257,7 +492,85 @@ public class ClientGroup extends ScriptableObject {
 
 	public String
 	jsGet_transactions() {
-		return transactionMix;
+		return (transactionMix == null) ? null : transactionMix.toString();
+	}
+
+	/* ----
+	 * setSeed() & seed
+	 *
+	 *	Seed all random streams of the group: the transaction choice,
+	 *	think times, retry backoff and Poisson arrivals, and in the
+	 *	workers the random() and nurand() functions. Two launches with
+	 *	the same seed and settings give every worker the same
+	 *	sequences. Without setSeed() a group picks a random seed; the
+	 *	seed is printed with the results either way, so a run can be
+	 *	repeated. It is a number or, for the full 64 bit range, a
+	 *	string.
+	 * ----
+	 */
+	public synchronized void
+	jsFunction_setSeed(Object newSeed)
+			throws Exception {
+		if (isRunning) {
+			throw new Exception("seed cannot be changed " +
+					"while group is running");
+		}
+		seed = parseSeed(newSeed);
+	}
+
+	/* ----
+	 * parseSeed()
+	 *
+	 *	A seed given to setSeed() or setRandomSeed(): a number, or a
+	 *	string in decimal or 0x hex for seeds of more than 53 bits.
+	 * ----
+	 */
+	static long
+	parseSeed(Object value)
+			throws Exception {
+		if (value instanceof String) {
+			try {
+				return Long.decode(((String)value).trim()).longValue();
+			} catch (NumberFormatException e) {
+				throw new Exception("seed '" + value + "' is not a number");
+			}
+		}
+		double number = Context.toNumber(value);
+		if (number != Math.rint(number) || Math.abs(number) > 9007199254740992.0) {
+			throw new Exception("seed must be an integer, use a string " +
+					"for more than 53 bits");
+		}
+		return (long)number;
+	}
+
+	public synchronized String
+	jsGet_seed() {
+		return Long.toString(seed);
+	}
+
+	/* ----
+	 * setMixMode()
+	 *
+	 *	"random" (the default) picks every transaction at random
+	 *	according to the weights of the mix. "deck" deals them in a
+	 *	fixed, evenly interleaved order that exactly matches the
+	 *	weights, each worker starting at a different position.
+	 * ----
+	 */
+	public synchronized void
+	jsFunction_setMixMode(String mode)
+			throws Exception {
+		if (isRunning) {
+			throw new Exception("mix mode cannot be changed " +
+					"while group is running");
+		}
+		if (mode.equals("random")) {
+			deckMode = false;
+		} else if (mode.equals("deck")) {
+			deckMode = true;
+		} else {
+			throw new Exception("unknown mix mode '" + mode + "'");
+		}
 	}
 
 	/* ----
@@ -267,9 +580,15 @@ public class ClientGroup extends ScriptableObject {
 	 *	this group.
 	 * ----
 	 */
-	public synchronized void
+	public void
 	launch (int nTransWorker, long mSeconds) 
 			throws Exception {
+		launch(nTransWorker, mSeconds, null);
+	}
+
+	private synchronized void
+	launch (int nTransWorker, long mSeconds, ArrivalSchedule arrivals) 
+			throws Exception {
 		if (isRunning) {
 			throw new Exception("group is already running");
 		}
@@ -278,9 +597,17 @@ public class ClientGroup extends ScriptableObject {
 			throw new Exception("no className set");
 		}
 
-		if (transactions == null || transactions.length == 0) {
+		if (transactionMix == null) {
 			throw new Exception("no transaction mix set");
 		}
+		testClass = (workloadClass == null) ? resolveClass(className) : null;
+		pool = null;
+		if (poolSize > 0) {
+			pool = new ConnectionPool(poolSize, poolValidation,
+					ConnectionPool.DEFAULT_MAX_WAIT_MILLIS,
+					engine.sqlStatements);
+			pool.setDb(dbUri, dbUser, dbPass);
+		}
 
 		numTransWorker	= nTransWorker;
 		if (mSeconds >= 0) {
@@ -288,18 +615,53 @@ public class ClientGroup extends ScriptableObject {
 		} else {
 			runUntil = -1;
 		}
+		schedule = arrivals;
+		launchNanos = System.nanoTime();
+		statsReported = new LatencyHistogram();
+		lastPhase = PHASE_NONE;
 
-		workers = new ClientWorker[numWorkers];
-		threads = new Thread[numWorkers];
-		for (int i = 0; i < numWorkers; i++) {
-			workers[i] = new ClientWorker(this, nTransWorker, runUntil,
-						groupName + "_" + i);
-			threads[i] = new Thread(workers[i]);
-
-			threads[i].start();
+		/* ----
+		 * With a load profile, launch enough workers for its peak
+		 * and activate as many as it asks for at the start.
+		 * ----
+		 */
+		int numLaunch = numWorkers;
+		activeWorkers = Integer.MAX_VALUE;
+		if (profile != null && profile.has(LoadProfile.WORKERS)) {
+			numLaunch = (int)Math.ceil(profile.maxValue(LoadProfile.WORKERS,
+					numWorkers));
+			activeWorkers = (int)Math.round(profile.value(LoadProfile.WORKERS,
+					0.0, numWorkers));
 		}
 
+		workers = new CopyOnWriteArrayList<ClientWorker>();
+		liveWorkers = new ArrayList<ClientWorker>();
+		workerSeq = 0;
+		addWorkers(numLaunch);
+
 		isRunning = true;
+		if (profile != null || isPhased()) {
+			startController();
+		}
+	}
+
+	/* ----
+	 * addWorkers()
+	 *
+	 *	Create and start n more workers for the current run.
+	 * ----
+	 */
+	private synchronized void
+	addWorkers(int n) {
+		for (int i = 0; i < n; i++) {
+			int seq = workerSeq++;
+			ClientWorker w = new ClientWorker(this, numTransWorker, runUntil,
+					groupName + "_" + seq, seq, liveWorkers.size());
+			w.thread = newWorkerThread(w, w.workerName);
+			workers.add(w);
+			liveWorkers.add(w);
+			w.thread.start();
+		}
 	}
 
 	public void
@@ -326,6 +688,51 @@ public class ClientGroup extends ScriptableObject {
 		launch(n, -1L);
 	}
 
+	/* ----
+	 * launchRate() & launchPoissonRate()
+	 *
+	 *	Open-loop launch. Instead of every worker napping between its
+	 *	own transactions, transactions are released at a global rate
+	 *	of tps per second (evenly spaced or as a Poisson process) to
+	 *	whichever worker is idle. numWorkers must be large enough to
+	 *	absorb the response time of the server at that rate, otherwise
+	 *	arrivals queue up and are counted as late. The sleep settings
+	 *	are not used in this mode.
+	 * ----
+	 */
+	public void
+	jsFunction_launchRate(double tps, int s)
+			throws Exception {
+		launch(-1, s < 0 ? -1L : (long)s * 1000L,
+				new ArrivalSchedule(tps, false,
+						FastRandom.deriveSeed(seed, STREAM_ARRIVALS)));
+	}
+
+	public void
+	jsFunction_launchPoissonRate(double tps, int s)
+			throws Exception {
+		launch(-1, s < 0 ? -1L : (long)s * 1000L,
+				new ArrivalSchedule(tps, true,
+						FastRandom.deriveSeed(seed, STREAM_ARRIVALS)));
+	}
+
+	/* ----
+	 * getBacklog() & getLateArrivals()
+	 *
+	 *	Arrivals that are due but not started yet and arrivals that
+	 *	were started late. Both are 0 unless launched with a rate.
+	 * ----
+	 */
+	public synchronized double
+	jsFunction_getBacklog() {
+		return (schedule == null) ? 0 : schedule.getBacklog();
+	}
+
+	public synchronized double
+	jsFunction_getLateArrivals() {
+		return (schedule == null) ? 0 : schedule.getNumLate();
+	}
+
 	/* ----
 	 * running() & jsFunction_running()
 	 *
@@ -355,18 +762,83 @@ public class ClientGroup extends ScriptableObject {
 			return;
 		}
 
-		for (int i = 0; i < numWorkers; i++) {
+		/* ----
+		 * Workers can be added while we wait, so keep going until
+		 * we have seen all of them finish.
+		 * ----
+		 */
+		int joined = 0;
+		while (true) {
+			while (joined < workers.size()) {
+				try {
+					workers.get(joined).thread.join();
+				} catch (InterruptedException e) {
+					log.error("ERROR group " + groupName + 
+							" thread " + joined + e.getMessage(),e);
+				}
+				joined++;
+			}
+			synchronized (this) {
+				if (joined == workers.size()) {
+					break;
+				}
+			}
+		}
+
+		engine.reportStats(this);
+		if (isPhased()) {
+			announcePhase(PHASE_DONE);
+		}
+		String[] transNames = transactionMix.getNames();
+		lastStats = collectStats();
+		for (int i = 0; i < transNames.length; i++) {
+			out.println("group " + groupName + " " + transNames[i] +
+					(isPhased() ? " (measure phase)" : "") + ": " +
+					lastStats[i].format());
+		}
+		out.println("group " + groupName + ": seed " + seed);
+		if (schedule != null) {
+			out.println("group " + groupName + ": " +
+					(schedule.isPoisson() ? "poisson " : "") +
+					"rate " + schedule.getRate() + " tps, " +
+					schedule.getNumIssued() + " arrivals, " +
+					schedule.getNumLate() + " late, " +
+					"max lag " + schedule.getMaxLagMillis() + " ms");
+		}
+		if (pool != null) {
+			out.println("group " + groupName + ": " + pool.format());
+			pool.close();
+		}
+		lastErrorStats = collectErrorStats();
+		if (hasErrors(lastErrorStats)) {
+			StringBuilder line = new StringBuilder("group " + groupName +
+					" errors:");
+			for (int i = 0; i < RetryPolicy.NUM_CLASSES; i++) {
+				line.append(" " + RetryPolicy.CLASS_NAMES[i] + " " +
+						lastErrorStats[i * 2] + " retried " +
+						lastErrorStats[i * 2 + 1] + " failed");
+				if (i < RetryPolicy.NUM_CLASSES - 1) {
+					line.append(",");
+				}
+			}
+			out.println(line.toString());
+		}
+
+		Thread pt;
+		synchronized (this) {
+			isRunning = false;
+			pt = controlThread;
+			controlThread = null;
+		}
+		if (pt != null) {
+			pt.interrupt();
 			try {
-				threads[i].join();
+				pt.join();
 			} catch (InterruptedException e) {
-				log.error("ERROR group " + groupName + 
-						" thread " + i + e.getMessage(),e);
 			}
 		}
-
-		isRunning = false;
 		workers = null;
-		threads = null;
+		liveWorkers = null;
 	}
 
 	public void
@@ -375,116 +847,695 @@ public class ClientGroup extends ScriptableObject {
 	}
 
 	/* ----
-	 * setSleep()
+	 * setProfile()
+	 *
+	 *	Set a load profile (see LoadProfile for the format), or
+	 *	remove it with null. The profile changes the number of active
+	 *	workers and, for a group launched with launchRate(), the
+	 *	arrival rate over time while the group keeps running. Enough
+	 *	workers for the highest point of the profile are launched;
+	 *	those above the current target wait with their connection
+	 *	open. A profile set while the group is running takes effect
+	 *	immediately, with its times counted from the launch.
 	 * ----
 	 */
 	public synchronized void
-	setSleep (long min, long max, long reconnect) {
-		minSleep		= min;
-		maxSleep		= max;
-		reconnectSleep	= reconnect;
+	jsFunction_setProfile(Object steps)
+			throws Exception {
+		if (steps == null || steps instanceof Undefined) {
+			profile = null;
+		} else if (steps instanceof Scriptable) {
+			profile = new LoadProfile((Scriptable)steps);
+		} else {
+			throw new Exception("profile must be an array of steps");
+		}
+		if (isRunning && profile != null) {
+			if (profile.has(LoadProfile.WORKERS)) {
+				addProfileWorkers();
+			}
+			if (controlThread == null) {
+				startController();
+			}
+		}
 	}
 
-	public synchronized void
-	jsFunction_setSleep (int min, int max, int reconnect) {
-		minSleep		= (long)min;
-		maxSleep		= (long)max;
-		reconnectSleep	= (long)reconnect;
+	/* ----
+	 * addProfileWorkers()
+	 *
+	 *	Start as many more workers as the highest point of the
+	 *	profile needs while the group is running.
+	 * ----
+	 */
+	private synchronized void
+	addProfileWorkers() {
+		int peak = (int)Math.ceil(profile.maxValue(LoadProfile.WORKERS,
+				numWorkers));
+		if (peak > liveWorkers.size()) {
+			addWorkers(peak - liveWorkers.size());
+		}
+	}
+
+	public int
+	jsGet_activeWorkers() {
+		return activeWorkers;
 	}
 
 	/* ----
-	 * getRandomSleep()
+	 * startController()
+	 *
+	 *	Start the thread that applies the profile and announces
+	 *	phase changes while the group is running. It reevaluates the
+	 *	targets ten times per second.
 	 * ----
 	 */
-	private synchronized long
-	getRandomSleep() {
-		if (minSleep == 0 || maxSleep < minSleep)
-			return 0;;
-		return random(minSleep, maxSleep);
+	private void
+	startController() {
+		final double baseRate = (schedule == null) ? 0.0 : schedule.getRate();
+
+		controlThread = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					LoadProfile p;
+					int baseWorkers;
+					synchronized (ClientGroup.this) {
+						if (!isRunning || controlThread != Thread.currentThread())
+							break;
+						p = profile;
+						baseWorkers = numWorkers;
+					}
+					long now = System.nanoTime();
+					if (p != null) {
+						double t = (now - launchNanos) / 1e9;
+						if (p.has(LoadProfile.WORKERS)) {
+							setActiveWorkers((int)Math.round(p.value(
+									LoadProfile.WORKERS, t, baseWorkers)));
+						}
+						if (p.has(LoadProfile.RATE) && schedule != null &&
+								schedule.setRate(p.value(LoadProfile.RATE, t,
+									baseRate))) {
+							wakeWorkers();
+						}
+					}
+					if (isPhased()) {
+						announcePhase(phaseOf(now));
+					}
+					try {
+						Thread.sleep(100);
+					} catch (InterruptedException e) {
+					}
+				}
+			}
+		}, groupName + "_control");
+		controlThread.start();
 	}
 
 	/* ----
-	 * getReconnectSleep()
+	 * wakeWorkers()
+	 *
+	 *	Unpark all workers, so that those waiting for an arrival
+	 *	notice that the schedule changed.
 	 * ----
 	 */
-	private synchronized long
-	getReconnectSleep() {
-		return reconnectSleep;
+	private synchronized void
+	wakeWorkers() {
+		if (liveWorkers != null) {
+			for (ClientWorker w : liveWorkers) {
+				LockSupport.unpark(w.thread);
+			}
+		}
 	}
 
-	protected void
-	stop () {
-		if (!running()) {
-			return;
-		}
+	/* ----
+	 * setPhases() & launchPhased()
+	 *
+	 *	Split the run into a warmup, a measurement and a cooldown
+	 *	phase of the given number of seconds. Only transactions that
+	 *	were due to start in the measurement phase go into the
+	 *	statistics, the timing file tags every transaction with its
+	 *	phase, and every phase change is announced to the coordinator
+	 *	with a "PHASE: <group> <phase>" line ("warmup", "measure",
+	 *	"cooldown" and finally "done"). setPhases(0, 0, 0) turns
+	 *	phases off again. launchPhased() runs for the sum of the
+	 *	three; with setPhases() any other launch can be used, for
+	 *	example launchRate().
+	 * ----
+	 */
+	static final int		PHASE_NONE = -1;
+	static final int		PHASE_WARMUP = 0;
+	static final int		PHASE_MEASURE = 1;
+	static final int		PHASE_COOLDOWN = 2;
+	static final int		PHASE_DONE = 3;
+	private static final String[] PHASE_NAMES = {
+		"warmup", "measure", "cooldown", "done"
+	};
 
-		long now = System.currentTimeMillis();
-		for (int i = 0; i < numWorkers; i++) {
-			workers[i].setRunUntil(now);
+	public synchronized void
+	jsFunction_setPhases(double warmupSec, double measureSec,
+			double cooldownSec)
+			throws Exception {
+		if (isRunning) {
+			throw new Exception("phases cannot be changed " +
+					"while group is running");
 		}
-
-		waitfor();
+		if (warmupSec < 0 || measureSec < 0 || cooldownSec < 0) {
+			throw new Exception("phase lengths cannot be negative");
+		}
+		warmupNanos = (long)(warmupSec * 1e9);
+		measureNanos = (long)(measureSec * 1e9);
+		cooldownNanos = (long)(cooldownSec * 1e9);
 	}
+
 	public void
-	jsFunction_stop () {
-		stop();
+	jsFunction_launchPhased(double warmupSec, double measureSec,
+			double cooldownSec)
+			throws Exception {
+		jsFunction_setPhases(warmupSec, measureSec, cooldownSec);
+		launch(-1, (long)((warmupSec + measureSec + cooldownSec) * 1000.0));
 	}
 
-	private long random (long min, long max) {
-		return (long)(Math.random() * (max - min + 1) + min);
+	public synchronized String
+	jsGet_phase() {
+		if (!isPhased()) {
+			return null;
+		}
+		if (!isRunning) {
+			return PHASE_NAMES[PHASE_DONE];
+		}
+		return PHASE_NAMES[phaseOf(System.nanoTime())];
 	}
 
-	private class ClientWorker implements Runnable {
-		ClientGroup		group;
-		int				numTransWorker;
-		long			runUntil;
-		String			workerName;
-		String			className;
-		String[]		transactions;
-		int				transIdx;
-		long			transStart;
-		long			transEnd;
-		Boolean			transError;
+	private boolean
+	isPhased() {
+		return warmupNanos + measureNanos + cooldownNanos > 0;
+	}
 
-		String			timingFileName;
-		PrintWriter		timingWriter = null;
+	/* ----
+	 * phaseOf()
+	 *
+	 *	The phase a System.nanoTime() value of the current run
+	 *	belongs to.
+	 * ----
+	 */
+	int
+	phaseOf(long nanos) {
+		if (!isPhased()) {
+			return PHASE_NONE;
+		}
+		long t = nanos - launchNanos;
+		if (t < warmupNanos) {
+			return PHASE_WARMUP;
+		}
+		if (t < warmupNanos + measureNanos) {
+			return PHASE_MEASURE;
+		}
+		if (t < warmupNanos + measureNanos + cooldownNanos) {
+			return PHASE_COOLDOWN;
+		}
+		return PHASE_DONE;
+	}
 
-		ClientWorker (ClientGroup myGroup, int nTransWorker, 
-				long rUntil, String wName) {
-			group			= myGroup;
-			numTransWorker	= nTransWorker;
-			runUntil		= rUntil;
-			workerName		= wName;
-			className		= group.className;
-			transactions	= new String[group.transactions.length];
-			System.arraycopy(group.transactions, 0, transactions, 0,
-					group.transactions.length);
-			randomizeTransactions();
-			transIdx		= 0;
+	static String
+	phaseName(int phase) {
+		return (phase == PHASE_NONE) ? "" : PHASE_NAMES[phase];
+	}
+
+	/* ----
+	 * announcePhase()
+	 *
+	 *	Tell the coordinator about a phase change. Phases only move
+	 *	forward, and a zero length phase is skipped.
+	 * ----
+	 */
+	private synchronized void
+	announcePhase(int phase) {
+		if (phase <= lastPhase) {
+			return;
 		}
+		lastPhase = phase;
+		engine.controlOut.println("PHASE: " + groupName + " " +
+				PHASE_NAMES[phase]);
+	}
 
-		public void run() {
-			int numDoneWorker	= 0;
-			String connectCmd	= "";
+	/* ----
+	 * setActiveWorkers()
+	 *
+	 *	Change how many workers may run transactions and wake up
+	 *	those that are now allowed to.
+	 * ----
+	 */
+	private void
+	setActiveWorkers(int n) {
+		if (n == activeWorkers) {
+			return;
+		}
+		synchronized (activeGate) {
+			activeWorkers = n;
+			activeGate.notifyAll();
+		}
+	}
 
-			log.info("INFO worker " + workerName + " start");
+	/* ----
+	 * setBackfill()
+	 *
+	 *	Latencies are measured from the time a transaction was
+	 *	supposed to start according to the pacing (the arrival time
+	 *	of launchRate(), or the end of the previous nap), not from
+	 *	when a worker got around to starting it. In closed-loop mode
+	 *	a worker stuck on a stalled server does not send the
+	 *	transactions it was supposed to send during the stall. With
+	 *	backfill enabled, a transaction that took longer than its nap
+	 *	interval also records the latencies those missing
+	 *	transactions would have seen.
+	 * ----
+	 */
+	public synchronized void
+	jsFunction_setBackfill(boolean enable) {
+		backfill = enable;
+	}
+
+	/* ----
+	 * collectStats()
+	 *
+	 *	Merge the latency histograms of all workers into one
+	 *	histogram per transaction name.
+	 * ----
+	 */
+	private synchronized LatencyHistogram[]
+	collectStats() {
+		LatencyHistogram[] stats =
+				new LatencyHistogram[transactionMix.getNames().length];
+
+		for (int i = 0; i < stats.length; i++) {
+			stats[i] = new LatencyHistogram();
+		}
+		if (workers != null) {
+			for (ClientWorker w : workers) {
+				for (int i = 0; i < stats.length; i++) {
+					stats[i].add(w.histograms[i]);
+				}
+			}
+		}
+		return stats;
+	}
+
+	/* ----
+	 * collectErrorStats()
+	 *
+	 *	Sum up the per error class counters of all workers: retried
+	 *	and failed for each class, in that order.
+	 * ----
+	 */
+	private synchronized long[]
+	collectErrorStats() {
+		long[] result = new long[RetryPolicy.NUM_CLASSES * 2];
+		if (workers != null) {
+			for (ClientWorker w : workers) {
+				for (int i = 0; i < RetryPolicy.NUM_CLASSES; i++) {
+					result[i * 2] += w.errorsRetried[i];
+					result[i * 2 + 1] += w.errorsFailed[i];
+				}
+			}
+		}
+		return result;
+	}
+
+	private static boolean
+	hasErrors(long[] errorStats) {
+		for (int i = 0; i < errorStats.length; i++) {
+			if (errorStats[i] != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* ----
+	 * getErrorStats()
+	 *
+	 *	Return an object with one entry per error class
+	 *	(serialization, deadlock, connection, other), holding how many
+	 *	failures were retried and how many transactions failed for
+	 *	good. Like getStats(), the numbers so far while running and
+	 *	those of the last run after waitfor().
+	 * ----
+	 */
+	public Object
+	jsFunction_getErrorStats() {
+		long[] stats;
+
+		synchronized (this) {
+			stats = isRunning ? collectErrorStats() : lastErrorStats;
+		}
+
+		Context		cx = Context.getCurrentContext();
+		Scriptable	scope = ScriptableObject.getTopLevelScope(this);
+		Scriptable	result = cx.newObject(scope);
+		if (stats == null) {
+			return result;
+		}
+		for (int i = 0; i < RetryPolicy.NUM_CLASSES; i++) {
+			Scriptable	entry = cx.newObject(scope);
+
+			ScriptableObject.putProperty(entry, "retried",
+					Double.valueOf(stats[i * 2]));
+			ScriptableObject.putProperty(entry, "failed",
+					Double.valueOf(stats[i * 2 + 1]));
+			ScriptableObject.putProperty(result, RetryPolicy.CLASS_NAMES[i],
+					entry);
+		}
+		return result;
+	}
+
+	/* ----
+	 * statsLine()
+	 *
+	 *	The STATS line for everything the workers finished since the
+	 *	previous call, regardless of phase and backfill:
+	 *
+	 *		<group> <seq> <ms since launch> <phase>
+	 *				<count> <errors> <sum us> <max us> <buckets>
+	 *
+	 *	See LatencyHistogram.encode() for the last five fields. In
+	 *	text mode the line goes out with a "STATS: " prefix.
+	 *	Returns null if the group never ran or finished and has
+	 *	nothing left to report.
+	 * ----
+	 */
+	synchronized String
+	statsLine() {
+		if (statsReported == null) {
+			return null;
+		}
+		LatencyHistogram total = new LatencyHistogram();
+		if (workers != null) {
+			for (ClientWorker w : workers) {
+				total.add(w.liveHistogram);
+			}
+		}
+		LatencyHistogram delta = total.subtract(statsReported);
+		if (!isRunning && delta.getCount() == 0 && delta.getErrors() == 0) {
+			return null;
+		}
+		statsReported = total;
+		String phase = isPhased() ?
+				PHASE_NAMES[isRunning ? phaseOf(System.nanoTime()) : PHASE_DONE] :
+				"-";
+		return groupName + " " + (statsSeq++) + " " +
+				(System.nanoTime() - launchNanos) / 1000000L + " " +
+				phase + " " + delta.encode();
+	}
+
+	/* ----
+	 * getStats()
+	 *
+	 *	Return an object with one entry per transaction name, holding
+	 *	count, errors and the mean, p50, p90, p99, p99.9 and max
+	 *	latency in milliseconds. While the group is running these are
+	 *	the numbers so far, after waitfor() those of the last run.
+	 * ----
+	 */
+	public Object
+	jsFunction_getStats() {
+		LatencyHistogram[] stats;
+		String[] names;
+
+		synchronized (this) {
+			names = transactionMix.getNames();
+			stats = isRunning ? collectStats() : lastStats;
+		}
+
+		Context		cx = Context.getCurrentContext();
+		Scriptable	scope = ScriptableObject.getTopLevelScope(this);
+		Scriptable	result = cx.newObject(scope);
+		if (stats == null) {
+			return result;
+		}
+		for (int i = 0; i < names.length; i++) {
+			Scriptable	entry = cx.newObject(scope);
+			LatencyHistogram h = stats[i];
+
+			ScriptableObject.putProperty(entry, "count",
+					Double.valueOf(h.getCount()));
+			ScriptableObject.putProperty(entry, "errors",
+					Double.valueOf(h.getErrors()));
+			ScriptableObject.putProperty(entry, "mean",
+					Double.valueOf(h.getMean() / 1000.0));
+			ScriptableObject.putProperty(entry, "p50",
+					Double.valueOf(LatencyHistogram.millis(h.getPercentile(50.0))));
+			ScriptableObject.putProperty(entry, "p90",
+					Double.valueOf(LatencyHistogram.millis(h.getPercentile(90.0))));
+			ScriptableObject.putProperty(entry, "p99",
+					Double.valueOf(LatencyHistogram.millis(h.getPercentile(99.0))));
+			ScriptableObject.putProperty(entry, "p999",
+					Double.valueOf(LatencyHistogram.millis(h.getPercentile(99.9))));
+			ScriptableObject.putProperty(entry, "max",
+					Double.valueOf(LatencyHistogram.millis(h.getMax())));
+			ScriptableObject.putProperty(result, names[i], entry);
+		}
+		return result;
+	}
+
+	/* ----
+	 * setSleep()
+	 *
+	 *	Uniformly distributed think time between min and max ms, none
+	 *	if min is 0, and the nap after a failed connect.
+	 * ----
+	 */
+	public synchronized void
+	setSleep (long min, long max, long reconnect) {
+		thinkTime		= (min == 0 || max < min) ? null :
+								ThinkTime.uniform(min, max);
+		reconnectSleep	= reconnect;
+	}
+
+	public synchronized void
+	jsFunction_setSleep (int min, int max, int reconnect) {
+		setSleep((long)min, (long)max, (long)reconnect);
+	}
+
+	/* ----
+	 * setThinkTime()
+	 *
+	 *	Set the think time distribution (see ThinkTime for the
+	 *	format), or remove it with null. Can be changed while the
+	 *	group is running.
+	 * ----
+	 */
+	public synchronized void
+	jsFunction_setThinkTime(Object spec)
+			throws Exception {
+		if (spec == null || spec instanceof Undefined) {
+			thinkTime = null;
+		} else if (spec instanceof Scriptable) {
+			thinkTime = ThinkTime.fromSpec((Scriptable)spec);
+		} else {
+			throw new Exception("think time must be an object");
+		}
+	}
+
+	public synchronized String
+	jsGet_thinkTime() {
+		return (thinkTime == null) ? null : thinkTime.toString();
+	}
+
+	/* ----
+	 * getThinkNanos()
+	 *
+	 *	Called by the workers with their own generator. The think
+	 *	time is volatile, so this doesn't need the group lock.
+	 * ----
+	 */
+	private long
+	getThinkNanos(FastRandom random) {
+		ThinkTime t = thinkTime;
+
+		if (t == null)
+			return 0;
+		return t.nextNanos(random);
+	}
+
+	/* ----
+	 * getReconnectSleep()
+	 * ----
+	 */
+	private long
+	getReconnectSleep() {
+		return reconnectSleep;
+	}
+
+	protected void
+	stop () {
+		if (!running()) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			runUntil = now;
+			if (workers != null) {
+				for (ClientWorker w : workers) {
+					w.setRunUntil(now);
+					LockSupport.unpark(w.thread);
+				}
+			}
+		}
+		synchronized (activeGate) {
+			activeGate.notifyAll();
+		}
+
+		waitfor();
+	}
+	public void
+	jsFunction_stop () {
+		stop();
+	}
+
+	/* ----
+	 * newWorkerThread()
+	 *
+	 *	Create the (unstarted) thread for one worker according to the
+	 *	selected executor. Virtual threads are created through
+	 *	reflection so that the client still builds and runs on JVMs
+	 *	that don't have them. The first check also creates one, as
+	 *	on JVMs where they are a preview feature the methods exist
+	 *	but fail unless previews are enabled; either way there is
+	 *	one warning and all workers get platform threads.
+	 * ----
+	 */
+	private static synchronized boolean
+	haveVirtualThreads() {
+		if (!virtualChecked) {
+			virtualChecked = true;
+			try {
+				Class<?> builder = Class.forName("java.lang.Thread$Builder");
+				virtualBuilder = Thread.class.getMethod("ofVirtual");
+				virtualUnstarted = builder.getMethod("unstarted",
+						Runnable.class);
+				virtualName = builder.getMethod("name", String.class);
+				virtualUnstarted.invoke(virtualBuilder.invoke(null),
+						new Runnable() {
+							public void run() {
+							}
+						});
+			} catch (Exception e) {
+				Throwable cause = (e instanceof InvocationTargetException) ?
+						e.getCause() : e;
+				log.warn("virtual threads are not supported by this JVM (" +
+						cause + "), using platform threads");
+				virtualBuilder = null;
+			}
+		}
+		return virtualBuilder != null;
+	}
+
+	private Thread
+	newWorkerThread(Runnable worker, String name) {
+		if (!virtualThreads) {
+			return new Thread(worker, name);
+		}
+		if (haveVirtualThreads()) {
+			try {
+				Object builder = virtualBuilder.invoke(null);
+				builder = virtualName.invoke(builder, name);
+				return (Thread)virtualUnstarted.invoke(builder, worker);
+			} catch (Exception e) {
+				log.error("cannot create virtual thread for " + name +
+						": " + e.getMessage(), e);
+				synchronized (ClientGroup.class) {
+					virtualBuilder = null;
+				}
+			}
+		}
+		return new Thread(null, worker, name, SMALL_STACK_SIZE);
+	}
+
+	/* ----
+	 * resolveClass()
+	 *
+	 *	Find the constructor of a JS test class (a dotted name is
+	 *	looked up property by property) in the shell scope. Workers
+	 *	call it directly instead of evaluating a "new" expression
+	 *	each.
+	 * ----
+	 */
+	private Function
+	resolveClass(String name)
+			throws Exception {
+		Object obj = engine.shellScope;
+		String[] parts = name.split("\\.");
+		for (int i = 0; i < parts.length; i++) {
+			if (!(obj instanceof Scriptable)) {
+				obj = null;
+				break;
+			}
+			obj = ScriptableObject.getProperty((Scriptable)obj, parts[i].trim());
+		}
+		if (!(obj instanceof Function)) {
+			throw new Exception("class " + name + " is not defined");
+		}
+		return (Function)obj;
+	}
+
+	/* ----
+	 * WorkloadDriver
+	 *
+	 *	How a worker calls into its instance of the test class. All
+	 *	calls come from the worker thread.
+	 * ----
+	 */
+	private interface WorkloadDriver {
+		void connect(String uri, String user, String pass) throws Exception;
+		void disconnect() throws Exception;
+		void call(int transId) throws Exception;
+		boolean hasRollback();
+		void rollback() throws Exception;
+		void close();
+	}
+
+	/* ----
+	 * ScriptDriver
+	 *
+	 *	Runs a JS test class through Rhino, in a scope of its own on
+	 *	top of the shell scope. The functions themselves were compiled
+	 *	once when the shell evaluated the class definition.
+	 * ----
+	 */
+	private class ScriptDriver implements WorkloadDriver {
+		Context		jsContext;
+		Scriptable	jsScope;
+		Scriptable	testObject;
+		Function	connectFunc;	// null with a connection pool
+		Function	disconnectFunc;
+		Function[]	transFuncs;
+		Function	rollbackFunc;	// null if the class has none
+		String		className;
+		PrintWriter	scriptOut;		// The worker's own "out"
+
+		ScriptDriver (String cName, String workerName, String[] transNames)
+				throws Exception {
+			className = cName;
 
 			/* ----
 			 * Setup the JS engine to execute our test transactions
 			 * ----
 			 */
-			Context		jsContext = Context.enter();
-			Scriptable	jsScope = jsContext.newObject(group.engine.shellScope);
-			jsScope.setPrototype(group.engine.shellScope);
+			jsContext = Context.enter();
+			jsScope = jsContext.newObject(engine.shellScope);
+			jsScope.setPrototype(engine.shellScope);
 			jsScope.setParentScope(null);
-			Object		result;
 
 			/* ----
 			 * Expose the output channel. Maybe someone wants to send
-			 * messages to the terminal or test coordinator.
+			 * messages to the terminal or test coordinator. Each
+			 * worker has a writer of its own, which the test object
+			 * gets as this.out too: its methods were compiled in the
+			 * shell scope, where a free out is the shell's writer
+			 * shared by all workers.
 			 * ----
 			 */
-			Object wrappedOut = Context.javaToJS(group.out, jsScope);
+			scriptOut = engine.newScriptOut();
+			Object wrappedOut = Context.javaToJS(scriptOut, jsScope);
 			ScriptableObject.putProperty(jsScope, "out", wrappedOut);
 			
 			/**
@@ -493,9 +1544,8 @@ public class ClientGroup extends ScriptableObject {
 			 * A worker script might need to make calls back to the
 			 * group.
 			 */
-			Object wrappedGroup = Context.javaToJS(group.engine, jsScope);
+			Object wrappedGroup = Context.javaToJS(engine, jsScope);
 			ScriptableObject.putProperty(jsScope, "myEngine", wrappedGroup);
-			
 
 			/* ----
 			 * Tell it its NAME and create one instance of the
@@ -503,33 +1553,327 @@ public class ClientGroup extends ScriptableObject {
 			 * ----
 			 */
 			try {
-				jsContext.evaluateString(jsScope,
-						"testObject = new " + className + 
-								"(\"" + workerName + "\");",
-						"<init>", 1, null);
+				testObject = testClass.construct(jsContext, jsScope,
+						new Object[] {workerName});
+				ScriptableObject.putProperty(jsScope, "testObject", testObject);
+				ScriptableObject.putProperty(testObject, "engine", wrappedGroup);
+				ScriptableObject.putProperty(testObject, "out", wrappedOut);
+
+				/* ----
+				 * Resolve the functions once, so that the main loop
+				 * only has to call them instead of having Rhino parse
+				 * and compile a new string for every transaction.
+				 * ----
+				 */
+				if (pool == null) {
+					connectFunc = getMethod(testObject, "connect");
+					disconnectFunc = getMethod(testObject, "disconnect");
+				}
+				Object f = ScriptableObject.getProperty(testObject, "rollback");
+				rollbackFunc = (f instanceof Function) ? (Function)f : null;
+				transFuncs = new Function[transNames.length];
+				for (int i = 0; i < transNames.length; i++) {
+					transFuncs[i] = getMethod(testObject, transNames[i]);
+				}
+			} catch (Exception e) {
+				Context.exit();
+				throw e;
+			}
+		}
+
+		public void
+		connect(String uri, String user, String pass)
+				throws Exception {
+			connectFunc.call(jsContext, jsScope, testObject,
+					new Object[] {uri, user, pass});
+		}
+
+		public void
+		disconnect()
+				throws Exception {
+			disconnectFunc.call(jsContext, jsScope, testObject,
+					Context.emptyArgs);
+		}
+
+		public void
+		call(int transId)
+				throws Exception {
+			transFuncs[transId].call(jsContext, jsScope, testObject,
+					Context.emptyArgs);
+		}
+
+		public boolean
+		hasRollback() {
+			return rollbackFunc != null;
+		}
+
+		public void
+		rollback()
+				throws Exception {
+			rollbackFunc.call(jsContext, jsScope, testObject,
+					Context.emptyArgs);
+		}
+
+		public void
+		close() {
+			scriptOut.flush();
+			Context.exit();
+		}
+
+		/* ----
+		 * getMethod()
+		 *
+		 *	Look up a method of the test object, failing if the
+		 *	test class does not define it.
+		 * ----
+		 */
+		private Function
+		getMethod(Scriptable obj, String name)
+				throws Exception {
+			Object f = ScriptableObject.getProperty(obj, name);
+			if (!(f instanceof Function)) {
+				throw new Exception(" class " + className +
+						" has no function " + name + "()");
+			}
+			return (Function)f;
+		}
+	}
+
+	/* ----
+	 * JavaDriver
+	 *
+	 *	Calls a ClientWorkload directly.
+	 * ----
+	 */
+	private class JavaDriver implements WorkloadDriver {
+		ClientWorkload		workload;
+		ClientTransaction[]	transactions;
+		ClientTransaction	rollbackTrans;	// null if there is none
+
+		JavaDriver (Class<? extends ClientWorkload> cls, String workerName,
+				String[] transNames)
+				throws Exception {
+			workload = cls.getConstructor().newInstance();
+			workload.init(workerName, engine);
+			transactions = new ClientTransaction[transNames.length];
+			for (int i = 0; i < transNames.length; i++) {
+				transactions[i] = workload.getTransaction(transNames[i]);
+				if (transactions[i] == null) {
+					transactions[i] = methodTransaction(cls, transNames[i]);
+				}
+			}
+			try {
+				rollbackTrans = methodTransaction(cls, "rollback");
+			} catch (Exception e) {
+				rollbackTrans = null;
+			}
+		}
+
+		public void
+		connect(String uri, String user, String pass)
+				throws Exception {
+			workload.connect(uri, user, pass);
+		}
+
+		public void
+		disconnect()
+				throws Exception {
+			workload.disconnect();
+		}
+
+		public void
+		call(int transId)
+				throws Exception {
+			transactions[transId].run();
+		}
+
+		public boolean
+		hasRollback() {
+			return rollbackTrans != null;
+		}
+
+		public void
+		rollback()
+				throws Exception {
+			rollbackTrans.run();
+		}
+
+		public void
+		close() {
+		}
+
+		/* ----
+		 * methodTransaction()
+		 *
+		 *	Wrap the public no argument method of the given name.
+		 * ----
+		 */
+		private ClientTransaction
+		methodTransaction(Class<?> cls, String name)
+				throws Exception {
+			final Method m;
+			try {
+				m = cls.getMethod(name);
+			} catch (NoSuchMethodException e) {
+				throw new Exception(" class " + cls.getName() +
+						" has no transaction " + name + "()");
+			}
+			return new ClientTransaction() {
+				public void run()
+						throws Exception {
+					try {
+						m.invoke(workload);
+					} catch (InvocationTargetException e) {
+						Throwable cause = e.getCause();
+						if (cause instanceof Exception) {
+							throw (Exception)cause;
+						}
+						throw e;
+					}
+				}
+			};
+		}
+	}
+
+	private class ClientWorker implements Runnable {
+		static final long	PAUSE_RECHECK_NANOS = 1000000000L;
+
+		ClientGroup		group;
+		int				numTransWorker;
+		volatile long	runUntil;
+		ArrivalSchedule	arrivals;		// null in closed-loop mode
+		ArrivalSchedule.Claim claim = new ArrivalSchedule.Claim();
+										// the arrival we wait for
+		ConnectionPool	pool;			// null if we connect ourselves
+		RetryPolicy		retryPolicy;	// null if we don't retry
+		long[]			errorsRetried = new long[RetryPolicy.NUM_CLASSES];
+		long[]			errorsFailed = new long[RetryPolicy.NUM_CLASSES];
+		boolean			connected;		// We have a DB connection
+		boolean			connValid;		// ... and it is still usable
+		String			connUri;		// Parameters it was made with
+		String			connUser;
+		String			connPass;
+		boolean			backfill;
+		String			workerName;
+		String			className;
+		Class<? extends ClientWorkload> workloadClass;
+		TransactionMix	mix;
+		String[]		transNames;
+		boolean			deckMode;
+		long			deckPos;		// Next position in the deck
+		FastRandom		random;			// Transaction choice
+		FastRandom		thinkRandom;	// Think time and backoff
+		FastRandom		scriptRandom;	// random() and nurand()
+		int				workerIndex;	// Slot for the load profile
+		Thread			thread;
+		LatencyHistogram[] histograms;	// One per transaction name
+		LatencyHistogram liveHistogram;	// Everything, for STATS lines
+		long			transIntended;	// All times in System.nanoTime()
+		long			transStart;
+		long			transEnd;
+		long			nextIntended;	// Paced start of the next one
+		long			nextInterval;	// ... and the nap leading to it
+		long			nanoBase;		// nanoTime() at wallBase
+		long			wallBase;		// currentTimeMillis() at nanoBase
+		Boolean			transError;
+
+		String			timingFileName;
+		PrintWriter		timingWriter = null;
+		TimingLog		timingLog = null;
+		PrintWriter		err;			// The worker's own errors
+
+		ClientWorker (ClientGroup myGroup, int nTransWorker, 
+				long rUntil, String wName, int wSeq, int wIndex) {
+			group			= myGroup;
+			numTransWorker	= nTransWorker;
+			runUntil		= rUntil;
+			arrivals		= group.schedule;
+			pool			= group.pool;
+			retryPolicy		= group.retryPolicy;
+			backfill		= group.backfill;
+			workerName		= wName;
+			className		= group.className;
+			workloadClass	= group.workloadClass;
+			mix				= group.transactionMix;
+			transNames		= mix.getNames();
+			deckMode		= group.deckMode;
+			deckPos			= wSeq;
+			workerIndex		= wIndex;
+			long workerSeed	= FastRandom.deriveSeed(group.seed, wSeq);
+			random			= new FastRandom(
+									FastRandom.deriveSeed(workerSeed, STREAM_MIX));
+			thinkRandom		= new FastRandom(
+									FastRandom.deriveSeed(workerSeed, STREAM_THINK));
+			scriptRandom	= new FastRandom(
+									FastRandom.deriveSeed(workerSeed, STREAM_SCRIPT));
+			nextIntended	= 0;
+			nextInterval	= 0;
+			nanoBase		= System.nanoTime();
+			wallBase		= System.currentTimeMillis();
+			err				= engine.newErrorOut();
+			histograms		= new LatencyHistogram[transNames.length];
+			liveHistogram	= new LatencyHistogram();
+			for (int i = 0; i < histograms.length; i++) {
+				histograms[i] = new LatencyHistogram();
+			}
+		}
+
+		public void run() {
+			int numDoneWorker	= 0;
+			connected			= false;
+			connValid			= false;
+			connUri				= null;
+			connUser			= null;
+			connPass			= null;
+
+			log.info("INFO worker " + workerName + " start");
+			ClientEngine.setLocalRandom(scriptRandom);
+			ClientEngine.setLocalPool(pool);
+
+			/* ----
+			 * Create our instance of the test class, and resolve
+			 * its connect(), disconnect() and every transaction of
+			 * the mix once.
+			 * ----
+			 */
+			WorkloadDriver driver;
+			try {
+				if (workloadClass != null) {
+					driver = new JavaDriver(workloadClass, workerName,
+							transNames);
+				} else {
+					driver = new ScriptDriver(className, workerName,
+							transNames);
+				}
 			} catch (Exception e) {
 				log.error("FATAL worker " + workerName +
 						e.getMessage(),e);
-				out.println("FATAL: worker " + workerName + e.getMessage());
+				err.println("FATAL: worker " + workerName + e.getMessage());
 				return;
 			}
 
-			jsContext.evaluateString(jsScope,"testObject.engine=myEngine","<init>",1,null);
-
 			/* ----
-			 * If requested, create the timing CSV file
+			 * If requested, create the timing CSV or binary file
 			 * ----
 			 */
 			if (timingDir != null) {
-				timingFileName = timingDir + "/" + workerName + ".csv";
 				try {
-					timingWriter = new PrintWriter(new BufferedWriter(
-						new FileWriter(timingFileName, timingAppend)));
-												
+					if (timingBinary) {
+						timingFileName = timingDir + "/" + workerName +
+								TimingLog.FILE_SUFFIX;
+						timingLog = new TimingLog(timingFileName,
+								timingAppend, workerName, transNames);
+					} else {
+						timingFileName = timingDir + "/" + workerName + ".csv";
+						timingWriter = new PrintWriter(new BufferedWriter(
+							new FileWriter(timingFileName, timingAppend)));
+					}
+
 				} catch (Exception e) {
 					log.error("FATAL worker " + workerName +
 							e.getMessage(),e);
-					out.println("FATAL: worker " + workerName + e.getMessage());
+					err.println("FATAL: worker " + workerName + e.getMessage());
+					driver.close();
 					return;
 				}
 			}
@@ -544,94 +1888,182 @@ public class ClientGroup extends ScriptableObject {
 				if (runUntil > 0 && System.currentTimeMillis() >= runUntil)
 					break;
 
+				/* ----
+				 * If the load profile currently doesn't want this
+				 * worker, wait until it does. The time spent idle
+				 * doesn't count as latency of the next transaction.
+				 * ----
+				 */
+				if (workerIndex >= group.activeWorkers) {
+					waitUntilActive();
+					nextIntended = 0;
+					continue;
+				}
+
 				/* ----
 				 * We try to connect to the database any time we
 				 * either don't have a connection, or if some of
 				 * the connection parameters have changed. The test
 				 * coordinator may do this while the test is running.
-				 * connectCmd is an empty string if we don't have a
-				 * connection or the connect() JS string we used last
-				 * to establish a connection.
+				 * connUri, connUser and connPass remember the
+				 * parameters we used last to establish a connection.
+				 * With a pool, the transactions borrow connections
+				 * from it instead.
 				 * ----
 				 */
-				String connectTmp;
-				connectTmp = "testObject.connect(\"" + group.getDbUri() +
-						"\", \"" + group.getDbUser() +
-						"\", \"" + group.getDbPass() + "\");";
-				if (!connectCmd.equals(connectTmp)) {
+				String dbUri	= group.getDbUri();
+				String dbUser	= group.getDbUser();
+				String dbPass	= group.getDbPass();
+				if (pool == null && (!connected || !connValid ||
+						!sameString(connUri, dbUri) ||
+						!sameString(connUser, dbUser) ||
+						!sameString(connPass, dbPass))) {
 					/* ----
 					 * Need to (re)connect. Disconnect first if we have
 					 * a connection.
 					 * ----
 					 */
-					if (!connectCmd.equals("")) {
+					if (connected) {
 						try {
-							jsContext.evaluateString(jsScope,
-									"testObject.disconnect();",
-									"<disconnect>", 1, null);
+							driver.disconnect();
 							log.info("INFO worker " + workerName +
 								" disconnect");
 						} catch (Exception e) {
 							log.error("ERROR worker " + workerName +
 								" disconnect: " + e.getMessage(),e);
-							out.println("ERROR: worker " + workerName + " disconnect:" + e.getMessage() );
+							err.println("ERROR: worker " + workerName + " disconnect:" + e.getMessage() );
 						}
-						connectCmd = "";
+						connected = false;
 					}
 					try {
-						jsContext.evaluateString(jsScope,
-								connectTmp,
-								"<connect>", 1, null);
+						driver.connect(dbUri, dbUser, dbPass);
 					} catch (Exception e) {
 						String message ="ERROR worker " + workerName +
 						" connect: " + e.getMessage();
 						log.error(message,e);
 						out.println(message);
-						try {
-							Thread.sleep(group.getReconnectSleep());
-						} catch (InterruptedException e2) {
-						}
+						parkUntil(System.nanoTime() +
+								group.getReconnectSleep() * 1000000L);
 						continue;
 					}
-					connectCmd = connectTmp;
+					connected	= true;
+					connValid	= true;
+					connUri		= dbUri;
+					connUser	= dbUser;
+					connPass	= dbPass;
 					log.info("INFO worker " + workerName +
 						" connect");
 				}
 
-				if (transIdx == transactions.length) {
-					randomizeTransactions();
-					transIdx = 0;
+				/* ----
+				 * Figure out when this transaction was supposed to
+				 * start. In open-loop mode claim the next arrival and
+				 * wait for it. Otherwise it was due at the end of the
+				 * previous nap, even if the previous transaction took
+				 * longer than that.
+				 * ----
+				 */
+				long interval = 0;
+				if (arrivals != null) {
+					if (!waitForArrival())
+						break;
+					transIntended = claim.intended;
+					transStart = System.nanoTime();
+					arrivals.started(transIntended, transStart);
+				} else {
+					transStart = System.nanoTime();
+					transIntended = transStart;
+					if (nextIntended != 0 && nextIntended < transStart) {
+						transIntended = nextIntended;
+						interval = nextInterval;
+					}
 				}
 
-				transStart = System.currentTimeMillis();
-				try {
-					jsContext.evaluateString(jsScope,
-							"testObject." + transactions[transIdx] + "();",
-							"<work>", 1, null);
-					transEnd = System.currentTimeMillis();
-					transError = false;
-				} catch (Exception e) {
-					transEnd = System.currentTimeMillis();
-					transError = true;
+				int transId = deckMode ? mix.deal(deckPos++) :
+						mix.select(random.nextDouble());
+				LatencyHistogram histogram = histograms[transId];
+				Exception	failure = null;
+				int			errorClass = RetryPolicy.OTHER;
+				for (int retries = 0; ; retries++) {
+					try {
+						driver.call(transId);
+						failure = null;
+					} catch (Exception e) {
+						failure = e;
+						errorClass = RetryPolicy.classify(e);
+					}
+					if (failure == null || retryPolicy == null ||
+							!retryPolicy.shouldRetry(errorClass, retries)) {
+						break;
+					}
+
+					/* ----
+					 * Retry: clean up the connection, back off and
+					 * go again, unless the run ends meanwhile.
+					 * ----
+					 */
+					errorsRetried[errorClass]++;
+					log.info("INFO worker " + workerName + " " +
+							transNames[transId] + "() " +
+							RetryPolicy.CLASS_NAMES[errorClass] +
+							" failure, retry " + (retries + 1) + ": " +
+							failure.getMessage());
+					if (!recover(driver, errorClass)) {
+						break;
+					}
+					long backoff = retryPolicy.backoffMillis(retries, thinkRandom);
+					if (runUntil > 0 && System.currentTimeMillis() + backoff >=
+							runUntil) {
+						break;
+					}
+					if (!parkUntil(System.nanoTime() + backoff * 1000000L)) {
+						break;
+					}
+				}
+				transEnd = System.nanoTime();
+				transError = (failure != null);
+				if (failure != null) {
+					errorsFailed[errorClass]++;
+					liveHistogram.recordError();
+					if (group.phaseOf(transIntended) == PHASE_MEASURE ||
+							!group.isPhased()) {
+						histogram.recordError();
+					}
 					System.err.println("ERROR: worker " + workerName + " " +
-							transactions[transIdx] + "() FAILED: " +
-							e.getMessage());
-					out.println("ERROR: worker " + workerName + " " +
-							transactions[transIdx] + "() FAILED: " +
-							e.getMessage());
+							transNames[transId] + "() FAILED: " +
+							failure.getMessage());
+					err.println("ERROR: worker " + workerName + " " +
+							transNames[transId] + "() FAILED: " +
+							failure.getMessage());
 					log.error("ERROR: worker " + workerName + " " +
-							transactions[transIdx] + "() ",
-							e);
+							transNames[transId] + "() ",
+							failure);
 
 					/* ----
-					 * Setting connectCmd to invalid will cause the
-					 * code above to reconnect to the DB
+					 * Setting connValid to false will cause the
+					 * code above to reconnect to the DB. After a
+					 * serialization failure or deadlock a rollback()
+					 * of the test class is enough. A pooled
+					 * connection is checked when it is given back.
 					 * ----
 					 */
-					log.info("INFO worker " + workerName + " connection set to invalid");
-					connectCmd = "invalid";
+					if (pool == null && !rollback(driver, errorClass)) {
+						log.info("INFO worker " + workerName + " connection set to invalid");
+						connValid = false;
+					}
+				}
+				if (pool != null) {
+					Connection conn = ClientEngine.takeLocalConnection();
+					if (conn != null) {
+						pool.giveBack(conn, transError &&
+								errorClass >= RetryPolicy.CONNECTION);
+					}
+				}
+				liveHistogram.record((transEnd - transIntended) / 1000L);
+				int phase = group.phaseOf(transIntended);
+				if (phase == PHASE_NONE || phase == PHASE_MEASURE) {
+					recordLatency(histogram, transEnd - transIntended, interval);
 				}
-				
 				numDoneWorker++;
 
 				/* ----
@@ -641,9 +2073,20 @@ public class ClientGroup extends ScriptableObject {
 				 * of the servers performance.
 				 * ----
 				 */
-				long ms = group.getRandomSleep() - (transEnd - transStart);
-				if (ms < 0) {
-					ms = 0;
+				long napUntil = 0;
+				long ms = 0;
+				long transMs = (transEnd - transStart) / 1000000L;
+				nextIntended = 0;
+				if (arrivals == null) {
+					long think = group.getThinkNanos(thinkRandom);
+					if (think > 0) {
+						nextIntended = transStart + think;
+						nextInterval = think;
+						if (nextIntended > transEnd) {
+							napUntil = nextIntended;
+							ms = (napUntil - transEnd) / 1000000L;
+						}
+					}
 				}
 				/* ----
 				 * If requested, write the timing record
@@ -651,55 +2094,62 @@ public class ClientGroup extends ScriptableObject {
 				 */
 				if (timingWriter != null) {
 					timingWriter.println(workerName + "," +
-						transactions[transIdx] + "," +
+						transNames[transId] + "," +
 						transError + "," +
-						transStart + "," +
-						transEnd + "," +
-						(transEnd - transStart) + "," +
-						ms);
+						wallClock(transStart) + "," +
+						wallClock(transEnd) + "," +
+						transMs + "," +
+						ms +
+						(phase == PHASE_NONE ? "" : "," + phaseName(phase)));
+				} else if (timingLog != null) {
+					try {
+						timingLog.record(transId, transError, phase,
+								epochNanos(transStart), transEnd - transStart,
+								ms);
+					} catch (IOException e) {
+						String message = "ERROR:worker " + workerName +
+						" timing: " + e.getMessage();
+						err.println(message);
+						log.error(message,e);
+						timingLog = null;
+					}
 				}
 
 				/* ----
 				 * Nap.
 				 * ----
 				 */
-				if (ms > 0) {
-					try {
-						while (ms > 0) {
-							Thread.sleep(ms >= 5000 ? 5000 : ms);
-							ms -= 5000;
-							if (ms > 0 && runUntil > 0 && 
-									System.currentTimeMillis() >= runUntil)
-								break;
-						}
-					} catch (InterruptedException e) {
-					}
-				} else {
-					ms = 0;
+				if (napUntil != 0) {
+					parkUntil(napUntil);
 				}
-
-				transIdx++;
 			}
 
 			/* ----
 			 * Close DB connection if we still have one.
 			 * ----
 			 */
-			if (!connectCmd.equals("")) {
+			if (connected) {
 				try {
-					jsContext.evaluateString(jsScope,
-							"testObject.disconnect();",
-							"<disconnect>", 1, null);
+					driver.disconnect();
 					log.info("INFO worker " + workerName +
 						" disconnect");
 				} catch (Exception e) {
 					String message = "ERROR:worker " + workerName +
 					" disconnect: " + e.getMessage();
-					out.println(message);
+					err.println(message);
 					log.error(message,e);
 				}
 			}
+			driver.close();
+			if (pool == null) {
+				Connection conn = ClientEngine.takeLocalConnection();
+				if (conn != null) {
+					engine.sqlStatements.forget(conn);
+				}
+			}
 			log.info("INFO worker " + workerName + " exit");
+			ClientEngine.setLocalRandom(null);
+			ClientEngine.setLocalPool(null);
 
 			/* ----
 			 * Close the timing output file
@@ -711,34 +2161,231 @@ public class ClientGroup extends ScriptableObject {
 				} catch (Exception e) {
 					String message = "ERROR:worker " + workerName +
 					" close timing: " + e.getMessage();
-					out.println(message);
+					err.println(message);
 					log.error(message,e);
 				}
 				timingWriter = null;
 			}
+			if (timingLog != null) {
+				try {
+					timingLog.close();
+				} catch (Exception e) {
+					String message = "ERROR:worker " + workerName +
+					" close timing: " + e.getMessage();
+					err.println(message);
+					log.error(message,e);
+				}
+				timingLog = null;
+			}
 		}
 
+		/* ----
+		 * rollback()
+		 *
+		 *	Try to recover from a serialization failure or deadlock
+		 *	with the rollback() function of the test class. Returns
+		 *	false if the connection needs to be reopened instead.
+		 * ----
+		 */
+		private boolean
+		rollback(WorkloadDriver driver, int errorClass) {
+			if (errorClass > RetryPolicy.DEADLOCK || !driver.hasRollback()) {
+				return false;
+			}
+			try {
+				driver.rollback();
+				return true;
+			} catch (Exception e) {
+				log.info("INFO worker " + workerName + " rollback failed: " +
+						e.getMessage());
+				return false;
+			}
+		}
+
+		/* ----
+		 * recover()
+		 *
+		 *	Get the connection ready for a retry: a pooled connection
+		 *	is given back (the retry borrows one again), otherwise it
+		 *	is rolled back or reopened. Returns false if reconnecting
+		 *	failed, which ends the retries.
+		 * ----
+		 */
+		private boolean
+		recover(WorkloadDriver driver, int errorClass) {
+			if (pool != null) {
+				Connection conn = ClientEngine.takeLocalConnection();
+				if (conn != null) {
+					pool.giveBack(conn, errorClass >= RetryPolicy.CONNECTION);
+				}
+				return true;
+			}
+			if (rollback(driver, errorClass)) {
+				return true;
+			}
+			try {
+				driver.disconnect();
+			} catch (Exception e) {
+				log.info("INFO worker " + workerName + " disconnect: " +
+						e.getMessage());
+			}
+			connected = false;
+			try {
+				driver.connect(connUri, connUser, connPass);
+			} catch (Exception e) {
+				log.info("INFO worker " + workerName + " reconnect: " +
+						e.getMessage());
+				connValid = false;
+				return false;
+			}
+			connected = true;
+			return true;
+		}
+
+		/* ----
+		 * recordLatency()
+		 *
+		 *	Record a latency in nanoseconds. With backfill, a latency
+		 *	longer than the pacing interval also records the
+		 *	transactions that would have been sent in the meantime.
+		 * ----
+		 */
 		private void
-		randomizeTransactions() {
-			int		len;
-			int		numLoops;
-			int		trans1;
-			int		trans2;
-			String	tmp;
+		recordLatency(LatencyHistogram histogram, long nanos, long interval) {
+			histogram.record(nanos / 1000L);
+			if (!backfill || interval <= 0) {
+				return;
+			}
+			for (long missing = nanos - interval; missing >= interval;
+					missing -= interval) {
+				histogram.record(missing / 1000L);
+			}
+		}
+
+		/* ----
+		 * wallClock()
+		 *
+		 *	Convert a System.nanoTime() value into milliseconds since
+		 *	the epoch for the timing file.
+		 * ----
+		 */
+		private long
+		wallClock(long nanos) {
+			return wallBase + (nanos - nanoBase) / 1000000L;
+		}
+
+		private long
+		epochNanos(long nanos) {
+			return wallBase * 1000000L + (nanos - nanoBase);
+		}
+
+		/* ----
+		 * waitUntilActive()
+		 *
+		 *	Wait until the group has this worker active again or
+		 *	the run time is over.
+		 * ----
+		 */
+		private void
+		waitUntilActive() {
+			synchronized (group.activeGate) {
+				while (workerIndex >= group.activeWorkers) {
+					long wait = 1000;
+					if (runUntil > 0) {
+						wait = Math.min(wait,
+								runUntil - System.currentTimeMillis());
+						if (wait <= 0)
+							return;
+					}
+					try {
+						group.activeGate.wait(wait);
+					} catch (InterruptedException e) {
+					}
+				}
+			}
+		}
 
-			len = transactions.length;
-			for (long i = 0; i < len / 2; i++) {
-				trans1 = (int)random(0, len - 1);
-				trans2 = (int)random(0, len - 1);
+		/* ----
+		 * waitForArrival()
+		 *
+		 *	Claim the next arrival and sleep until its intended start
+		 *	time. If the rate changes meanwhile, give the claim up and
+		 *	claim again; while the schedule is paused, wait for it to
+		 *	resume. Returns false if the worker's run time ends first.
+		 * ----
+		 */
+		private boolean
+		waitForArrival() {
+			while (true) {
+				boolean claimed = arrivals.next(claim);
+				long deadline = claimed ? claim.intended :
+						System.nanoTime() + PAUSE_RECHECK_NANOS;
 
-				if (trans1 != trans2) {
-					tmp = transactions[trans1];
-					transactions[trans1] = transactions[trans2];
-					transactions[trans2] = tmp;
+				if (!parkUntil(deadline, claim.generation)) {
+					if (claimed) {
+						arrivals.abandoned();
+					}
+					return false;
+				}
+				if (arrivals.getGeneration() == claim.generation) {
+					if (claimed) {
+						return true;
+					}
+				} else if (claimed) {
+					arrivals.abandoned();
 				}
 			}
 		}
 
+		/* ----
+		 * parkUntil()
+		 *
+		 *	Wait until the given System.nanoTime(). Returns false,
+		 *	possibly early, if the worker's run time ends first;
+		 *	stop() and retiring the worker unpark it for that.
+		 * ----
+		 */
+		private boolean
+		parkUntil(long deadline) {
+			return parkUntil(deadline, -1);
+		}
+
+		/* ----
+		 * parkUntil() with a generation
+		 *
+		 *	The same, but also return true early once the arrival
+		 *	schedule is no longer at the given generation.
+		 * ----
+		 */
+		private boolean
+		parkUntil(long deadline, long generation) {
+			long	wait;
+
+			while ((wait = deadline - System.nanoTime()) > 0) {
+				if (generation >= 0 &&
+						arrivals.getGeneration() != generation) {
+					return true;
+				}
+				long until = runUntil;
+				if (until > 0) {
+					long left = until - System.currentTimeMillis();
+					if (left <= 0) {
+						return false;
+					}
+					if (left < wait / 1000000L) {
+						wait = left * 1000000L;
+					}
+				}
+				LockSupport.parkNanos(this, wait);
+			}
+			return true;
+		}
+
+		private boolean
+		sameString(String a, String b) {
+			return (a == null) ? b == null : a.equals(b);
+		}
+
 		protected synchronized int
 		getNumTransWorker() {
 			return numTransWorker;
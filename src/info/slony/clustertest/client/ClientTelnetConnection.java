@@ -6,21 +6,32 @@
  *	The ClientTelnetConnection creates a thread that runs a Rhino
  *	JavaScript interpreter, executing what is sent through the input
  *	steam and sending back the interpreter results on the output.
+ *
+ *	A test coordinator that opens the session with the HELLO line of
+ *	FramedProtocol gets the framed protocol, everyone else the line
+ *	based text mode.
+ *
+ *	In the selector based server (NioClientServer) there is no shell
+ *	thread. The server feeds the input to the Shell from tasks on its
+ *	executor instead, see attach().
  * ----------
  */
 package info.slony.clustertest.client;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.lang.reflect.InvocationTargetException;
-import java.util.LinkedList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.log4j.Logger;
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 
@@ -31,161 +42,32 @@ public class ClientTelnetConnection {
 	Shell	shell;			// Instance of the actual work thread
 	Thread				shellThread;	// Thread handle
 	private Boolean		done;			// Flag set when thread exits
-	private QueuedOutputStream outputStreamQueue;
-	
-	/**
-	 * 
-	 * This class provides an OutputStream object to the 
-	 * ClienEngine + children that queues up write() requests
-	 * and then provides a consumer thread that transfers those
-	 * write requests to the real OutputStream object.
-	 * 
-	 * This is being done for two reasons:
-	 * 
-	 * 1) The PipedOutputStream and PipedInputStream classes used when 
-	 *    ClientTelnetConnection is invoked in the same JRE as the 
-	 *    test coordinator do not work well if multiple threads write
-	 *    to the OutputStream (specifically if a thread that has written
-	 *    to the OutputStream later dies before all input is consumed)
-	 *    
-	 *  2) To prevent worker threads from being slowed down by a backlog of
-	 *     output waiting to be consumed by the test coordinator.
-	 * 
-	 */
-	private class QueuedOutputStream extends OutputStream {
+	private InputStream	inStream;		// Unbuffered input, for the handshake
+	PrintWriter			scriptOut;		// Low priority output of scripts
+	PrintWriter			errorOut;		// ERROR: and FATAL: messages
+	PrintWriter			statsOut;		// STATS lines
+	PrintWriter			controlOut;		// PHASE lines
+	PrintWriter			lockOut;		// Lock requests and releases
+	PrintWriter			needScriptOut;	// Requests for uncached scripts
+	private OutputRing	outputRing;		// Buffer for all of them
 
-		/**
-		 * The queue.
-		 */
-		private LinkedList<byte[]> queue =new  LinkedList<byte[]>();
-		private Thread myThread;
-		private volatile boolean stopped=false;
-		
-		public QueuedOutputStream(final OutputStream destination) {
-			myThread = new Thread(new Runnable() {
-				public void run() {
-					/**
-					 * Loop until we are stopped, pulling items off the queue.
-					 */
-					while(!stopped) {
-					
-						try {
-							synchronized(QueuedOutputStream.this) {
-								if(queue.isEmpty()) {
-									QueuedOutputStream.this.wait();
-								}
-								else {
-									byte[] line = queue.remove(0);
-									destination.write(line);
-								}
-							}//synchronized
-						}//try
-						catch(IOException e) {
-							log.error("error writing output",e);
-						}
-						catch(InterruptedException e) {
-							log.error("thread interruppted",e);
-						}
-					}//while
-					try {
-						destination.close();
-					}
-					catch(IOException e) {
-						log.error("ioexception closing stream",e);
-					}
-				}//run
-				
-			},"QueuedOutputStream");
-			myThread.start();
-			
-		}
-		
-		/**
-		 * The stop method is used to signal the monitoring to stop
-		 * and close the output socket.
-		 */
-		 public void stop() {
-			stopped=true;
-			synchronized(this) {
-				this.notify();
-			}
-		}
-		 
-		 /**
-		  * The close method of OutputStream.
-		  * We do not do anything in this method - The users of the output stream
-		  * should not be closing the stream for all threads.
-		  */
-		@Override
-		public void close() throws IOException {
-			
-			
-		}
-
-		/**
-		 * This method currently does nothing because the threads calling flush()
-		 * are disconnected from the thread that writes to the real OutputStream.
-		 * 
-		 * 
-		 */
-		@Override
-		public void flush() throws IOException {
-			
-		}
-
-		@Override
-		public void write(byte[] cbuf, int off, int len) throws IOException {
-			
-			byte outbuf[] = new byte[len];
-			for(int idx=0; idx <len; idx++) {
-				//We copy the output because the caller
-				//might change the contents of the array after
-				//the write call returns.
-				outbuf[idx] = cbuf[off+idx];
-			}
-			synchronized(this) {
-				queue.add(outbuf);
-				this.notify();
-			}
-			
-			
-			
-		}
-		public void write(int c) throws IOException {
-			byte [] array=new byte[4];
-			
-			/**
-			 * Java is big endian
-			 * We convert the integer to a byte format
-			 * Is there a faster way of doing this?
-			 * 
-			 * In practice we hope this method isn't being called much
-			 * since writing 4 bytes at a time isn't very efficient.
-			 * 
-			 */
-			array[3] = (byte) c;
-			array[2] = (byte) (c>>0x8);
-			array[1] = (byte) (c>>0x10);
-			array[0] = (byte) (c>>0x18);
-			synchronized(this) {
-				queue.add(array);
-				this.notify();
-			}
-			
-		}
-		
-	};
-
-	
 	public ClientTelnetConnection (InputStream inStream, OutputStream outStream) {
 		/* ----
 		 * Initialize global variables
 		 * ----
 		 */
 		done = false;
-		outputStreamQueue = new QueuedOutputStream(outStream);
+		outputRing = new OutputRing(outStream, OutputRing.DEFAULT_CAPACITY,
+				"ClientTelnetConnection_output");
+		this.inStream = inStream;
 		in = new BufferedReader(new InputStreamReader(inStream));
-		out = new PrintWriter(outputStreamQueue, true);
+		out = writer(FramedProtocol.OUTPUT, false, null);
+		scriptOut = writer(FramedProtocol.OUTPUT, true, null);
+		errorOut = writer(FramedProtocol.ERROR, false, null);
+		statsOut = writer(FramedProtocol.STATS, false, "STATS: ");
+		controlOut = writer(FramedProtocol.CONTROL, false, null);
+		lockOut = writer(FramedProtocol.LOCK, false, null);
+		needScriptOut = writer(FramedProtocol.NEED_SCRIPT, false, null);
 
 		/* ----
 		 * Create the thread handling this connection
@@ -197,6 +79,32 @@ public class ClientTelnetConnection {
 		shellThread.start();
 	}
 
+	/* ----
+	 * A session of the NioClientServer, writing into its ring.
+	 * ----
+	 */
+	ClientTelnetConnection (OutputRing outputRing) {
+		done = false;
+		this.outputRing = outputRing;
+		in = null;
+		out = writer(FramedProtocol.OUTPUT, false, null);
+		scriptOut = writer(FramedProtocol.OUTPUT, true, null);
+		errorOut = writer(FramedProtocol.ERROR, false, null);
+		statsOut = writer(FramedProtocol.STATS, false, "STATS: ");
+		controlOut = writer(FramedProtocol.CONTROL, false, null);
+		lockOut = writer(FramedProtocol.LOCK, false, null);
+		needScriptOut = writer(FramedProtocol.NEED_SCRIPT, false, null);
+
+		shell = new Shell();
+		shellThread = null;
+	}
+
+	private PrintWriter
+	writer(int type, boolean lowPriority, String textPrefix) {
+		return new PrintWriter(outputRing.stream(type, lowPriority,
+				textPrefix), true);
+	}
+
 	/* ----
 	 * isDone()
 	 *
@@ -226,6 +134,9 @@ public class ClientTelnetConnection {
 	 * ----
 	 */
 	public void waitfor () {
+		if (shellThread == null) {
+			return;
+		}
 		try {
 			shellThread.join();
 		} catch (InterruptedException e) {
@@ -244,24 +155,85 @@ public class ClientTelnetConnection {
 		ClientEngine	engine;
 		Boolean			quit;
 
+		private Context				jsContext;
+		private ScriptableObject	jsScope;
+		private ScriptUnitBuffer	unit = new ScriptUnitBuffer();
+		private int					lineBegin = 1;
+		private boolean				finished = false;
+
+		/* ----
+		 * The hash of the script asked for with NEED_SCRIPT, and the
+		 * units of that script while they are evaluated the first
+		 * time.
+		 * ----
+		 */
+		private String				neededHash = null;
+		private ScriptCache.Body	recording = null;
+
+		/* ----
+		 * What a detached shell keeps of the thread state between two
+		 * attach() calls.
+		 * ----
+		 */
+		private int					optimizationLevel;
+		private FastRandom			random = null;
+
+		/* ----
+		 * SCRIPT and SCRIPT_HASH frames received by the reader thread
+		 * in framed mode, up to END_OF_INPUT.
+		 * ----
+		 */
+		private BlockingQueue<FramedProtocol.Frame> scripts =
+				new LinkedBlockingQueue<FramedProtocol.Frame>();
+		private final FramedProtocol.Frame END_OF_INPUT =
+				new FramedProtocol.Frame();
+
 		protected Shell () {
 			engine = null;
 			quit = false;
 		}
 
 		public void run () {
-			telnetShell();
-
-			if (engine != null)
-				engine.shutdown();
+			jsContext = Context.enter();
+			if (startSession()) {
+				telnetShell();
+			}
+			finishSession();
 
-			setDone();
 			try {
 				in.close();
 			} catch (IOException e) {
 				log.error("IOExeption: " + e.getMessage(),e);
 			}
-			outputStreamQueue.stop();
+		}
+
+		PrintWriter getScriptOut () {
+			return scriptOut;
+		}
+
+		PrintWriter getErrorOut () {
+			return errorOut;
+		}
+
+		PrintWriter getStatsOut () {
+			return statsOut;
+		}
+
+		PrintWriter getControlOut () {
+			return controlOut;
+		}
+
+		PrintWriter getLockOut () {
+			return lockOut;
+		}
+
+		OutputRing getOutputRing () {
+			return outputRing;
+		}
+
+		PrintWriter newWriter (int type, boolean lowPriority,
+				String textPrefix) {
+			return writer(type, lowPriority, textPrefix);
 		}
 
 		public synchronized Boolean getQuit () {
@@ -272,36 +244,66 @@ public class ClientTelnetConnection {
 			quit = true;
 		}
 
-		private void telnetShell () {
-			String			inputLine;
-			String			inputBuffer = "";
-			int				lineCount = 0;
-			int				lineBegin = 1;
+		/* ----
+		 * attach() and detach()
+		 *
+		 *	Make the calling executor thread the shell thread for a
+		 *	while: enter a Rhino context and install the engine and
+		 *	the random generator of the session in the thread locals
+		 *	ClientEngine uses. detach() takes them out again.
+		 * ----
+		 */
+		void attach () {
+			jsContext = Context.enter();
+			if (engine != null) {
+				jsContext.setOptimizationLevel(optimizationLevel);
+			}
+			ClientEngine.setLocalEngine(engine);
+			ClientEngine.setLocalRandom(random);
+		}
 
-			Context				jsContext;
-			ScriptableObject	jsScope;
-			Object				result;
+		void detach () {
+			optimizationLevel = jsContext.getOptimizationLevel();
+			random = ClientEngine.getLocalRandom();
+			ClientEngine.setLocalEngine(null);
+			ClientEngine.setLocalRandom(null);
+			jsContext = null;
+			Context.exit();
+		}
 
+		/* ----
+		 * startSession()
+		 *
+		 *	Create the scope and the engine of the session, in the
+		 *	Rhino context of the calling thread.
+		 * ----
+		 */
+		boolean startSession () {
 			/* ----
-			 * Create a new Rhino interpreter for this telnet session
+			 * Create a new Rhino interpreter for this telnet session.
+			 * Its global scope only holds what the session defines,
+			 * the standard objects come from the shared sealed scope.
 			 * ----
 			 */
-			jsContext = Context.enter();
-			jsScope = jsContext.initStandardObjects();
+			ScriptableObject sharedScope = ClientEngine.getSharedScope();
+			jsScope = (ScriptableObject)jsContext.newObject(sharedScope);
+			jsScope.setPrototype(sharedScope);
+			jsScope.setParentScope(null);
 
 			try {
 				engine = new ClientEngine(in, out, jsScope, this);
 			} catch (Exception e) {
 				log.error(e.getMessage(),e);
-				return;
+				return false;
 			}
 
 			/* ----
 			 * Expose the output channel and make the ClientGroup
-			 * Class available in the JS scope.
+			 * Class available in the JS scope. What scripts print
+			 * is low priority output, see setOutputOverflow().
 			 * ----
 			 */
-			Object wrappedOut = Context.javaToJS(out, jsScope);
+			Object wrappedOut = Context.javaToJS(scriptOut, jsScope);
 			ScriptableObject.putProperty(jsScope, "out", wrappedOut);
 
 			Class<? extends Scriptable> clazz;
@@ -311,13 +313,13 @@ public class ClientTelnetConnection {
 				ScriptableObject.defineClass(jsScope, clazz);
 			} catch (IllegalAccessException e) {
 				log.error("IllegalAccessException defining class - " + e.getMessage(),e);
-				return;
+				return false;
 			} catch (InstantiationException e) {
 				log.error("InstantiationException defining class - " + e.getMessage(),e);
-				return;
+				return false;
 			} catch (InvocationTargetException e) {
 				log.error("InvocationTargetException defining class - " + e.getMessage(),e);
-				return;
+				return false;
 			}
 
 			/* ----
@@ -330,68 +332,353 @@ public class ClientTelnetConnection {
 				"nurand",
 				"digsyl",
 				"sleep",
-				"lockObtained"
+				"lockObtained",
+				"setStatsInterval",
+				"setOptimizationLevel",
+				"setRandomSeed",
+				"getSqlStats",
+				"copyLoad",
+				"setOutputOverflow"
 			};
 			jsScope.defineFunctionProperties(globalFuncs,
 					ClientEngine.class, ScriptableObject.DONTENUM);
+			optimizationLevel = jsContext.getOptimizationLevel();
+			return true;
+		}
+
+		/* ----
+		 * finishSession()
+		 *
+		 *	Evaluate what is left of the input, stop the engine and
+		 *	write the remaining output. Only the first call counts.
+		 * ----
+		 */
+		void finishSession () {
+			if (finished) {
+				return;
+			}
+			finished = true;
+
+			/* ----
+			 * At the end of the script there may be something left in
+			 * the input buffer. We don't want to silently suppress
+			 * any errors resulting from a truncated file.
+			 * ----
+			 */
+			if (engine != null && !unit.isEmpty()) {
+				evaluate();
+			}
+			if (engine != null)
+				engine.shutdown();
+
+			setDone();
+			outputRing.stop();
+		}
+
+		boolean isFinished () {
+			return finished;
+		}
+
+		/* ----
+		 * acceptFramed()
+		 *
+		 *	Answer the handshake of the framed protocol.
+		 * ----
+		 */
+		void acceptFramed () {
+			out.println(FramedProtocol.ACK);
+			outputRing.setFramed(true);
+		}
+
+		/* ----
+		 * enableStats()
+		 *
+		 *	A test coordinator speaking the framed protocol gets STATS
+		 *	lines. Called in the session's context after acceptFramed().
+		 * ----
+		 */
+		void enableStats () {
+			if (engine != null) {
+				engine.enableStats();
+			}
+		}
+
+		private void telnetShell () {
+			String			inputLine;
 
 			try {
 				/* ----
-				 * Consume the input from the test coordinator
+				 * The first line tells if the test coordinator speaks
+				 * the framed protocol. It is read without buffering,
+				 * the frames after it are none of the BufferedReader's
+				 * business.
 				 * ----
 				 */
-				while (!getQuit() && ((inputLine = in.readLine()) != null)) {
-					/* ----
-					 * Add all input lines into the inputBuffer until we
-					 * have a compilable string.
-					 * ----
-					 */
-					lineCount++;
-					inputBuffer = inputBuffer + inputLine + "\n";
-					if (!jsContext.stringIsCompilableUnit(inputBuffer))
-						continue;
-
-					/* ----
-					 * Evaluate that in the JS context. If it does return
-					 * something other than undefined, send it to the
-					 * coordinator.
-					 * ----
-					 */
-					try {
-						result = jsContext.evaluateString(jsScope, inputBuffer,
-									"<shell>", lineBegin, null);
-						if (result != jsContext.getUndefinedValue())
-							out.println(Context.toString(result));
-					} catch (Exception e) {
-						out.println(e.getMessage());
-						log.error(e.getMessage(),e);
+				String firstLine = FramedProtocol.readLine(inStream);
+				if (firstLine != null &&
+						firstLine.trim().equals(FramedProtocol.HELLO)) {
+					acceptFramed();
+					enableStats();
+					framedShell();
+					return;
+				}
+				if (firstLine != null) {
+					if (!firstLine.endsWith("\n")) {
+						String rest = in.readLine();
+						firstLine += (rest == null) ? "" : rest;
 					}
-					inputBuffer = "";
-					lineBegin += lineCount;
-					lineCount = 0;
+					addLine(stripNewline(firstLine));
 				}
+
 				/* ----
-				 * At the end of the script there may be something left in
-				 * the input buffer. We don't want to silently suppress
-				 * any errors resulting from a truncated file.
+				 * Consume the input from the test coordinator
 				 * ----
 				 */
-				if (!inputBuffer.equals("")) {
-					try {
-						result = jsContext.evaluateString(jsScope, inputBuffer,
-									"<shell>", lineBegin, null);
-						if (result != jsContext.getUndefinedValue())
-							out.println(Context.toString(result));
-					} catch (Exception e) {
-						out.println(e.getMessage());
-						log.error(e.getMessage(),e);
+				while (!getQuit() && ((inputLine = in.readLine()) != null)) {
+					addLine(inputLine);
+				}
+			} catch (IOException e) {
+				log.error("IOExeption: " + e.getMessage(),e);
+			}
+		}
+
+		/* ----
+		 * framedShell()
+		 *
+		 *	The input loop of the framed protocol. A reader thread
+		 *	takes the frames off the input, so a LOCK_OBTAINED reaches
+		 *	the waiting worker even while the shell is busy with a
+		 *	script. The shell evaluates the SCRIPT frames in order.
+		 * ----
+		 */
+		private void framedShell () {
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					readFrames();
+				}
+			}, "ClientTelnetConnection_input");
+			reader.setDaemon(true);
+			reader.start();
+
+			while (!getQuit()) {
+				FramedProtocol.Frame frame;
+				try {
+					frame = scripts.take();
+				} catch (InterruptedException e) {
+					break;
+				}
+				if (frame == END_OF_INPUT) {
+					break;
+				}
+				if (frame.type == FramedProtocol.SCRIPT_HASH) {
+					runScriptHash(frame.text());
+				} else {
+					addScript(frame.text());
+				}
+			}
+		}
+
+		private void readFrames () {
+			DataInputStream frameIn = new DataInputStream(inStream);
+
+			try {
+				FramedProtocol.Frame frame;
+				while ((frame = FramedProtocol.readFrame(frameIn)) != null) {
+					switch (frame.type) {
+						case FramedProtocol.SCRIPT:
+						case FramedProtocol.SCRIPT_HASH:
+							scripts.add(frame);
+							break;
+
+						case FramedProtocol.LOCK:
+							lockMessage(frame.text());
+							break;
+
+						case FramedProtocol.CONTROL:
+							controlMessage(frame.text());
+							if (getQuit()) {
+								scripts.add(END_OF_INPUT);
+								return;
+							}
+							break;
+
+						default:
+							log.warn("ignoring frame of type " + frame.type);
 					}
 				}
 			} catch (IOException e) {
 				log.error("IOExeption: " + e.getMessage(),e);
 			}
+			scripts.add(END_OF_INPUT);
+		}
+
+		/* ----
+		 * lockMessage() and controlMessage()
+		 *
+		 *	Handle LOCK and CONTROL frames. They are not queued behind
+		 *	the scripts, any thread may call these.
+		 * ----
+		 */
+		void lockMessage (String message) {
+			if (message.startsWith(FramedProtocol.LOCK_OBTAINED)) {
+				engine.lockGranted(message.substring(
+						FramedProtocol.LOCK_OBTAINED.length()));
+			} else {
+				log.warn("unknown lock message: " + message);
+			}
+		}
+
+		void controlMessage (String message) {
+			if (message.equals(FramedProtocol.QUIT)) {
+				setQuit();
+			} else {
+				log.warn("unknown control message: " + message);
+			}
+		}
+
+		/* ----
+		 * addScript()
+		 *
+		 *	Feed the lines of a SCRIPT frame to addLine(), until the
+		 *	script calls quit(). If it is the script asked for with
+		 *	NEED_SCRIPT, its units go into the ScriptCache.
+		 * ----
+		 */
+		void addScript (String script) {
+			String hash = neededHash;
+
+			neededHash = null;
+			if (hash != null && unit.isEmpty()) {
+				if (FramedProtocol.scriptHash(script).equals(hash)) {
+					recording = new ScriptCache.Body();
+				} else {
+					log.warn("script does not match hash " + hash);
+				}
+			}
+
+			int start = 0;
+			while (start < script.length() && !getQuit()) {
+				int end = script.indexOf('\n', start);
+				if (end < 0) {
+					end = script.length();
+				}
+				addLine(script.substring(start, end));
+				start = end + 1;
+			}
+
+			/* ----
+			 * Only a script that ends with a complete unit and ran to
+			 * its end can be replayed.
+			 * ----
+			 */
+			if (recording != null) {
+				if (unit.isEmpty() && !getQuit()) {
+					ScriptCache.putBody(hash, recording);
+				}
+				recording = null;
+			}
+		}
+
+		/* ----
+		 * runScriptHash()
+		 *
+		 *	Run the script of a SCRIPT_HASH frame from the ScriptCache,
+		 *	or ask the coordinator for it. It answers with a SCRIPT
+		 *	frame, queued behind this one.
+		 * ----
+		 */
+		void runScriptHash (String hash) {
+			ScriptCache.Body body = ScriptCache.getBody(hash);
+
+			if (body == null || !unit.isEmpty()) {
+				neededHash = hash;
+				needScriptOut.println(hash);
+				return;
+			}
+			for (ScriptCache.Unit u : body.units) {
+				if (getQuit()) {
+					break;
+				}
+				boolean sameLevel = (u.optimizationLevel ==
+						jsContext.getOptimizationLevel());
+				execute(u.source, u.numLines, sameLevel ? u.script : null);
+			}
+		}
+
+		/* ----
+		 * addLine()
+		 *
+		 *	Add one input line to the unit buffer and evaluate the unit
+		 *	once it is complete.
+		 * ----
+		 */
+		void addLine (String line) {
+			if (unit.addLine(jsContext, line)) {
+				evaluate();
+			}
+		}
+
+		/* ----
+		 * evaluate()
+		 *
+		 *	Evaluate the collected unit in the JS context. If it does
+		 *	return something other than undefined, send it to the
+		 *	coordinator.
+		 * ----
+		 */
+		private void evaluate () {
+			String	source = unit.getText();
+			int		numLines = unit.getNumLines();
+
+			unit.reset();
+			execute(source, numLines, null);
+		}
+
+		/* ----
+		 * execute()
+		 *
+		 *	Compile a unit, unless it comes with its script, and run
+		 *	it. An evaluation error goes out like a result, as OUTPUT,
+		 *	so the coordinator sees it the same way in both modes.
+		 * ----
+		 */
+		private void execute (String source, int numLines, Script script) {
+			Object result;
+
+			try {
+				if (script == null) {
+					int level = jsContext.getOptimizationLevel();
+					try {
+						script = ScriptCache.compile(jsContext, source,
+								"<shell>", lineBegin);
+					} finally {
+						if (recording != null) {
+							recording.units.add(new ScriptCache.Unit(source,
+									numLines, level, script));
+						}
+					}
+				}
+				result = script.exec(jsContext, jsScope);
+				if (result != Context.getUndefinedValue())
+					out.println(Context.toString(result));
+			} catch (Exception e) {
+				out.println(e.getMessage());
+				log.error(e.getMessage(),e);
+			}
+			lineBegin += numLines;
+		}
+	}
+
+	static String
+	stripNewline(String line) {
+		int		len = line.length();
+
+		if (len > 0 && line.charAt(len - 1) == '\n') {
+			len--;
+		}
+		if (len > 0 && line.charAt(len - 1) == '\r') {
+			len--;
 		}
+		return line.substring(0, len);
 	}
-	
-	
 }
@@ -0,0 +1,15 @@
+/* ----
+ * ClientTransaction
+ *
+ *	One named transaction of a ClientWorkload. An exception thrown
+ *	by run() counts as a failed transaction, like one thrown by a
+ *	JS transaction function, and makes the worker reconnect.
+ * ----
+ */
+package info.slony.clustertest.client;
+
+public interface ClientTransaction {
+	void
+	run()
+			throws Exception;
+}
@@ -0,0 +1,47 @@
+/* ----
+ * ClientWorkload
+ *
+ *	A test class written in Java instead of JavaScript. Give
+ *	ClientGroup.setClassName() the fully qualified name of a class
+ *	implementing this, with a public no argument constructor, that
+ *	is on the classpath of the client. Every worker creates its own
+ *	instance and calls it directly, without going through Rhino.
+ *
+ *	The calls for one instance all come from the same worker thread.
+ * ----
+ */
+package info.slony.clustertest.client;
+
+public interface ClientWorkload {
+	/* ----
+	 * init()
+	 *
+	 *	Called once after the instance is created, with the name
+	 *	the JS test classes get as constructor argument and the
+	 *	engine that JS test objects see as this.engine.
+	 * ----
+	 */
+	void
+	init(String workerName, ClientEngine engine)
+			throws Exception;
+
+	void
+	connect(String uri, String user, String pass)
+			throws Exception;
+
+	void
+	disconnect()
+			throws Exception;
+
+	/* ----
+	 * getTransaction()
+	 *
+	 *	Return the transaction for a name of the group's mix, or null
+	 *	to have the public no argument method of that name called
+	 *	instead. Called once per name before the worker starts.
+	 * ----
+	 */
+	ClientTransaction
+	getTransaction(String name)
+			throws Exception;
+}
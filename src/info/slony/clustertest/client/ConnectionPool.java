@@ -0,0 +1,322 @@
+/* ----
+ * ConnectionPool
+ *
+ *	JDBC connections shared by the workers of a ClientGroup.
+ *
+ *	Workers borrow a connection for a single transaction and give it
+ *	back afterwards, so a pool smaller than the group models an
+ *	application server in front of the database. Idle connections
+ *	are handed out last in, first out. A connection that was given
+ *	back after a failed transaction, or that sat idle for a while,
+ *	is checked with the validation query and only replaced if that
+ *	fails, so an ordinary SQL error does not cost a reconnect.
+ *
+ *	Changing the connection parameters retires all connections made
+ *	with the old ones as they come back.
+ * ----
+ */
+package info.slony.clustertest.client;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+class ConnectionPool {
+	/* ----
+	 * Idle connections older than this are validated when borrowed.
+	 * ----
+	 */
+	static final long		VALIDATE_IDLE_MILLIS = 10000L;
+	static final long		DEFAULT_MAX_WAIT_MILLIS = 30000L;
+
+	private static Logger log = Logger.getLogger(ConnectionPool.class);
+
+	private static class Entry {
+		Connection	conn;
+		int			generation;		// of the parameters it was made with
+		long		idleSince;
+	}
+
+	private final int			size;
+	private final String		validationQuery;
+	private final long			maxWait;
+	private final SqlStatement.Registry sqlStatements;	// of the engine
+	private final LinkedList<Entry>	idle = new LinkedList<Entry>();
+	private final Map<Connection,Integer> generations =
+			new IdentityHashMap<Connection,Integer>(); // All open ones
+	private String				uri;
+	private String				user;
+	private String				pass;
+	private int					generation = 0;
+	private int					numOpen = 0;	// idle, borrowed and being
+												// opened
+	private boolean				closed = false;
+	private long				numCreated = 0;
+	private long				numReplaced = 0;
+	private long				numWaits = 0;
+	private long				maxWaitNanos = 0;
+
+	ConnectionPool (int size, String validationQuery, long maxWaitMillis,
+			SqlStatement.Registry sqlStatements) {
+		if (size < 1) {
+			throw new IllegalArgumentException("pool size must be positive");
+		}
+		this.size				= size;
+		this.validationQuery	= validationQuery;
+		this.maxWait			= maxWaitMillis;
+		this.sqlStatements		= sqlStatements;
+	}
+
+	/* ----
+	 * setDb()
+	 *
+	 *	Set the connection parameters for new connections.
+	 * ----
+	 */
+	synchronized void
+	setDb(String newUri, String newUser, String newPass) {
+		uri		= newUri;
+		user	= newUser;
+		pass	= newPass;
+		generation++;
+	}
+
+	/* ----
+	 * borrow()
+	 *
+	 *	Get a connection, opening a new one if the pool is not full,
+	 *	or waiting for one to come back otherwise.
+	 * ----
+	 */
+	Connection
+	borrow()
+			throws SQLException {
+		long	waitStart = 0;
+
+		while (true) {
+			Entry	entry = null;
+			int		gen;
+			String	u, us, p;
+
+			synchronized (this) {
+				while (!closed && idle.isEmpty() && numOpen >= size) {
+					long now = System.nanoTime();
+					if (waitStart == 0) {
+						waitStart = now;
+						numWaits++;
+					}
+					long left = maxWait - (now - waitStart) / 1000000L;
+					if (left <= 0) {
+						throw new SQLException("no pooled connection " +
+								"available within " + maxWait + " ms", "08001");
+					}
+					try {
+						wait(left);
+					} catch (InterruptedException e) {
+						throw new SQLException("interrupted while waiting " +
+								"for a pooled connection", "08001");
+					}
+				}
+				if (closed) {
+					throw new SQLException("connection pool is closed", "08003");
+				}
+				if (waitStart != 0) {
+					maxWaitNanos = Math.max(maxWaitNanos,
+							System.nanoTime() - waitStart);
+				}
+				if (!idle.isEmpty()) {
+					entry = idle.removeFirst();
+				} else {
+					numOpen++;
+				}
+				gen	= generation;
+				u	= uri;
+				us	= user;
+				p	= pass;
+			}
+
+			/* ----
+			 * Reuse an idle connection unless it is from before a
+			 * parameter change or fails validation after idling.
+			 * ----
+			 */
+			if (entry != null) {
+				if (entry.generation == gen &&
+						(System.currentTimeMillis() - entry.idleSince <
+							VALIDATE_IDLE_MILLIS || validate(entry.conn))) {
+					return entry.conn;
+				}
+				discard(entry.conn, entry.generation == gen);
+				continue;
+			}
+
+			/* ----
+			 * Open a new one outside the lock, so that a slow server
+			 * does not block the other workers.
+			 * ----
+			 */
+			try {
+				Connection conn = DriverManager.getConnection(u, us, p);
+				synchronized (this) {
+					numCreated++;
+					generations.put(conn, gen);
+				}
+				return conn;
+			} catch (SQLException e) {
+				synchronized (this) {
+					numOpen--;
+					notifyAll();
+				}
+				throw e;
+			}
+		}
+	}
+
+	/* ----
+	 * giveBack()
+	 *
+	 *	Return a borrowed connection. An open transaction is rolled
+	 *	back. If the transaction using it failed, the connection is
+	 *	validated first and replaced if it no longer works.
+	 * ----
+	 */
+	void
+	giveBack(Connection conn, boolean failed) {
+		int		gen;
+
+		synchronized (this) {
+			Integer g = generations.get(conn);
+			if (g == null) {
+				throw new IllegalArgumentException("connection is not " +
+						"from this pool");
+			}
+			gen = g.intValue();
+		}
+		boolean usable = true;
+		try {
+			if (!conn.getAutoCommit()) {
+				conn.rollback();
+			}
+		} catch (SQLException e) {
+			usable = false;
+		}
+		if (usable && failed) {
+			usable = validate(conn);
+		}
+
+		synchronized (this) {
+			if (usable && !closed && gen == generation) {
+				Entry entry = new Entry();
+				entry.conn = conn;
+				entry.generation = gen;
+				entry.idleSince = System.currentTimeMillis();
+				idle.addFirst(entry);
+				notifyAll();
+				return;
+			}
+		}
+		discard(conn, !usable);
+	}
+
+	/* ----
+	 * validate()
+	 *
+	 *	Run the validation query on a connection.
+	 * ----
+	 */
+	private boolean
+	validate(Connection conn) {
+		try {
+			Statement stmt = conn.createStatement();
+			try {
+				stmt.execute(validationQuery);
+			} finally {
+				stmt.close();
+			}
+			if (!conn.getAutoCommit()) {
+				conn.rollback();
+			}
+			return true;
+		} catch (SQLException e) {
+			log.info("pooled connection failed validation: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/* ----
+	 * discard()
+	 *
+	 *	Close a connection that leaves the pool and let a waiting
+	 *	worker open a replacement.
+	 * ----
+	 */
+	private void
+	discard(Connection conn, boolean broken) {
+		sqlStatements.forget(conn);
+		try {
+			conn.close();
+		} catch (SQLException e) {
+		}
+		synchronized (this) {
+			generations.remove(conn);
+			numOpen--;
+			if (broken) {
+				numReplaced++;
+			}
+			notifyAll();
+		}
+	}
+
+	/* ----
+	 * close()
+	 *
+	 *	Close all idle connections. Connections still borrowed are
+	 *	closed when they come back.
+	 * ----
+	 */
+	void
+	close() {
+		LinkedList<Entry> toClose;
+
+		synchronized (this) {
+			closed = true;
+			toClose = new LinkedList<Entry>(idle);
+			idle.clear();
+			notifyAll();
+		}
+		for (Entry entry : toClose) {
+			discard(entry.conn, false);
+		}
+	}
+
+	synchronized int
+	getSize() {
+		return size;
+	}
+
+	synchronized String
+	getValidationQuery() {
+		return validationQuery;
+	}
+
+	/* ----
+	 * format()
+	 *
+	 *	One line summary for the group output.
+	 * ----
+	 */
+	synchronized String
+	format() {
+		return "pool size " + size +
+			", " + numCreated + " connections opened" +
+			", " + numReplaced + " replaced" +
+			", " + numWaits + " waits" +
+			", max wait " + maxWaitNanos / 1000000L + " ms";
+	}
+}
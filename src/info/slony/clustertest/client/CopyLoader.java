@@ -0,0 +1,625 @@
+/* ----
+ * CopyLoader
+ *
+ *	Fill a table with generated rows through COPY FROM STDIN, for the
+ *	copyLoad() shell function:
+ *
+ *		copyLoad({uri:"jdbc:postgresql://...", user:"u", pass:"p",
+ *			table:"accounts", rows:100000 * scale, threads:4,
+ *			columns:[
+ *				{name:"aid", seq:1},
+ *				{name:"bid", seq:1, per:100000},
+ *				{name:"abalance", value:0},
+ *				{name:"filler", text:84}]});
+ *
+ *	The rows are split into one contiguous range per thread, every
+ *	thread loads its range with a COPY on a connection of its own.
+ *	Each range is committed on its own, so if one thread fails, the
+ *	ranges other threads already finished stay in the table; the
+ *	error says how many rows that are.
+ *	A column spec is one of:
+ *
+ *		seq:start		start + floor(row / per) * step, per and step
+ *						default to 1; row counts from 0
+ *		value:v			the same value in every row, null for NULL
+ *		random:[min,max]
+ *		nurand:[a,min,max]
+ *		digsyl:[min,max] or [a,min,max], len:n
+ *						the syllables of a random or nurand number
+ *		text:n or [min,max]
+ *						random letters and digits
+ *
+ *	Instead of columns with generators, a row:function(n) can return
+ *	each row as an array; columns then is a list of names, or left
+ *	out for all columns of the table. Such a function runs in the
+ *	loader threads and can use random() and nurand().
+ *
+ *	Every thread draws its random values from its own generator,
+ *	derived from the optional seed (a number, or a string in decimal
+ *	or 0x hex as for setSeed()), so the same seed and thread count
+ *	load the same data.
+ *
+ *	The table and column names go into the COPY statement as they
+ *	are, so they must be plain identifiers or double quoted ones;
+ *	the table may be qualified with its schema.
+ * ----
+ */
+package info.slony.clustertest.client;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+class CopyLoader {
+	/* ----
+	 * Generated text is sent to the server in chunks of this size.
+	 * ----
+	 */
+	static final int		BUFFER_SIZE = 65536;
+	static final long		PROGRESS_MILLIS = 10000L;
+
+	private static Logger log = Logger.getLogger(CopyLoader.class);
+
+	private static final int	SEQ = 0;
+	private static final int	VALUE = 1;
+	private static final int	RANDOM = 2;
+	private static final int	NURAND = 3;
+	private static final int	DIGSYL = 4;
+	private static final int	TEXT = 5;
+	private static final String[] KIND_NAMES = {
+		"seq", "value", "random", "nurand", "digsyl", "text"
+	};
+	private static final String	TEXT_CHARS =
+		"abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+	private static final String	IDENT =
+		"([A-Za-z_][A-Za-z0-9_$]*|\"([^\"]|\"\")+\")";
+	private static final Pattern COLUMN_NAME = Pattern.compile(IDENT);
+	private static final Pattern TABLE_NAME =
+		Pattern.compile(IDENT + "(\\." + IDENT + ")?");
+
+	private static class Column {
+		String		name;
+		int			kind;
+		long[]		args;			// seq: start, per, step
+		String		value;			// VALUE, already escaped or \N
+		int			len;			// DIGSYL
+	}
+
+	private final PrintWriter	out;
+	private final Scriptable	scope;
+	private final String		uri;
+	private final String		user;
+	private final String		pass;
+	private final String		table;
+	private final long			rows;
+	private final int			numThreads;
+	private final long			seed;
+	private final Column[]		columns;		// null with rowFunc
+	private final String[]		columnNames;	// null for all
+	private final Function		rowFunc;
+	private final AtomicLongArray	rowsDone;
+	private final AtomicLongArray	bytesDone;
+	private final AtomicLong	rowsCommitted = new AtomicLong();
+	private volatile boolean	aborted = false;
+	private Exception			failure = null;
+
+	/* ----
+	 * Check the spec before any connection is made.
+	 * ----
+	 */
+	CopyLoader (PrintWriter out, Scriptable scope, Scriptable spec)
+			throws Exception {
+		this.out	= out;
+		this.scope	= scope;
+		uri			= getString(spec, "uri", true);
+		user		= getString(spec, "user", false);
+		pass		= getString(spec, "pass", false);
+		table		= checkName(getString(spec, "table", true), TABLE_NAME,
+						"table");
+
+		double r = getNumber(spec, "rows", Double.NaN);
+		if (!(r >= 0.0) || r != Math.rint(r)) {
+			throw new Exception("copyLoad() needs a number of rows");
+		}
+		rows = (long)r;
+		int t = (int)getNumber(spec, "threads", 1.0);
+		numThreads = (int)Math.max(1, Math.min(t, Math.max(rows, 1)));
+		Object seedValue = ScriptableObject.getProperty(spec, "seed");
+		if (seedValue == Scriptable.NOT_FOUND || seedValue == null ||
+				seedValue instanceof Undefined) {
+			seed = FastRandom.mix(System.nanoTime());
+		} else {
+			seed = ClientGroup.parseSeed(seedValue);
+		}
+
+		Object f = ScriptableObject.getProperty(spec, "row");
+		Object c = ScriptableObject.getProperty(spec, "columns");
+		boolean haveColumns = (c instanceof Scriptable);
+		if (f instanceof Function) {
+			rowFunc = (Function)f;
+			columns = null;
+			columnNames = haveColumns ? toStrings((Scriptable)c) : null;
+			for (int i = 0; columnNames != null && i < columnNames.length; i++) {
+				checkName(columnNames[i], COLUMN_NAME, "column");
+			}
+		} else if (haveColumns) {
+			rowFunc = null;
+			Object[] specs = toArray((Scriptable)c);
+			columns = new Column[specs.length];
+			columnNames = new String[specs.length];
+			for (int i = 0; i < specs.length; i++) {
+				if (!(specs[i] instanceof Scriptable)) {
+					throw new Exception("column " + (i + 1) +
+							" of copyLoad() is not a column spec");
+				}
+				columns[i] = parseColumn((Scriptable)specs[i]);
+				columnNames[i] = columns[i].name;
+			}
+			if (columns.length == 0) {
+				throw new Exception("copyLoad() needs at least one column");
+			}
+		} else {
+			throw new Exception("copyLoad() needs columns or a row function");
+		}
+
+		rowsDone	= new AtomicLongArray(numThreads);
+		bytesDone	= new AtomicLongArray(numThreads);
+	}
+
+	private static Column
+	parseColumn(Scriptable spec)
+			throws Exception {
+		Column	col = new Column();
+		col.name = checkName(getString(spec, "name", true), COLUMN_NAME,
+				"column");
+		col.kind = -1;
+		for (int i = 0; i < KIND_NAMES.length; i++) {
+			if (ScriptableObject.hasProperty(spec, KIND_NAMES[i])) {
+				if (col.kind >= 0) {
+					throw new Exception("column " + col.name +
+							" has more than one generator");
+				}
+				col.kind = i;
+			}
+		}
+		if (col.kind < 0) {
+			throw new Exception("column " + col.name + " needs one of seq, " +
+					"value, random, nurand, digsyl or text");
+		}
+
+		Object arg = ScriptableObject.getProperty(spec, KIND_NAMES[col.kind]);
+		switch (col.kind) {
+			case SEQ:
+				col.args = new long[] {
+					toLong(arg),
+					(long)getNumber(spec, "per", 1.0),
+					(long)getNumber(spec, "step", 1.0)
+				};
+				if (col.args[1] < 1) {
+					throw new Exception("column " + col.name +
+							" needs per >= 1");
+				}
+				break;
+
+			case VALUE: {
+				StringBuilder value = new StringBuilder();
+				appendValue(value, arg);
+				col.value = value.toString();
+				break;
+			}
+
+			case RANDOM:
+				col.args = toLongs(arg, col.name, 2, 2);
+				if (col.args[1] < col.args[0]) {
+					throw new Exception("random column " + col.name +
+							" needs min <= max");
+				}
+				break;
+
+			case NURAND:
+				col.args = toLongs(arg, col.name, 3, 3);
+				if (col.args[0] < 0 || col.args[2] < col.args[1]) {
+					throw new Exception("nurand column " + col.name +
+							" needs a >= 0 and min <= max");
+				}
+				break;
+
+			case DIGSYL:
+				col.args = toLongs(arg, col.name, 2, 3);
+				col.len = (int)getNumber(spec, "len", Double.NaN);
+				if (col.len < 1) {
+					throw new Exception("digsyl column " + col.name +
+							" needs a len");
+				}
+				if (col.args[col.args.length - 2] < 0) {
+					throw new Exception("digsyl column " + col.name +
+							" needs a non-negative range");
+				}
+				break;
+
+			default:
+				col.args = (arg instanceof Scriptable) ?
+						toLongs(arg, col.name, 2, 2) :
+						new long[] {toLong(arg), toLong(arg)};
+				if (col.args[0] < 0 || col.args[1] < col.args[0]) {
+					throw new Exception("text column " + col.name +
+							" needs 0 <= min <= max");
+				}
+				break;
+		}
+		return col;
+	}
+
+	/* ----
+	 * run()
+	 *
+	 *	Load the rows with numThreads threads, report the progress
+	 *	every PROGRESS_MILLIS and return the totals as a JS object.
+	 * ----
+	 */
+	Scriptable
+	run()
+			throws Exception {
+		final StringBuilder	sql = new StringBuilder("COPY " + table);
+		Thread[]			threads = new Thread[numThreads];
+		long				start = System.currentTimeMillis();
+
+		if (columnNames != null) {
+			sql.append(" (");
+			for (int i = 0; i < columnNames.length; i++) {
+				sql.append(i == 0 ? "" : ", ").append(columnNames[i]);
+			}
+			sql.append(")");
+		}
+		sql.append(" FROM STDIN");
+
+		for (int i = 0; i < numThreads; i++) {
+			final int	threadNo = i;
+			final long	first = rows * i / numThreads;
+			final long	last = rows * (i + 1) / numThreads;
+
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						load(sql.toString(), threadNo, first, last);
+					} catch (Exception e) {
+						synchronized (CopyLoader.this) {
+							if (failure == null) {
+								failure = e;
+							}
+						}
+						aborted = true;
+						log.error("copy " + table + " thread " + threadNo +
+								": " + e.getMessage(), e);
+					}
+				}
+			}, "CopyLoader_" + table + "_" + i);
+			threads[i].start();
+		}
+
+		for (int i = 0; i < numThreads; i++) {
+			while (true) {
+				threads[i].join(PROGRESS_MILLIS);
+				if (!threads[i].isAlive()) {
+					break;
+				}
+				long done = sum(rowsDone);
+				long millis = System.currentTimeMillis() - start;
+				out.println("copy " + table + ": " + done + " of " + rows +
+						" rows, " + rate(done, millis) + " rows/s");
+				out.flush();
+			}
+		}
+
+		if (failure != null) {
+			long committed = rowsCommitted.get();
+			throw new Exception("copy " + table + " failed: " +
+					failure.getMessage() + (committed == 0 ? "" :
+					"; " + committed + " rows committed by other threads" +
+					" remain in " + table));
+		}
+
+		long	millis = System.currentTimeMillis() - start;
+		long	bytes = sum(bytesDone);
+		out.println("copy " + table + ": " + rows + " rows, " +
+				(bytes / 1048576L) + " MB in " + (millis / 1000.0) + " s, " +
+				rate(rows, millis) + " rows/s, " + numThreads + " threads");
+		out.flush();
+
+		Context		cx = Context.getCurrentContext();
+		Scriptable	result = cx.newObject(scope);
+		ScriptableObject.putProperty(result, "table", table);
+		ScriptableObject.putProperty(result, "rows", Double.valueOf(rows));
+		ScriptableObject.putProperty(result, "bytes", Double.valueOf(bytes));
+		ScriptableObject.putProperty(result, "seconds",
+				Double.valueOf(millis / 1000.0));
+		ScriptableObject.putProperty(result, "rowsPerSec",
+				Double.valueOf(rate(rows, millis)));
+		ScriptableObject.putProperty(result, "threads",
+				Double.valueOf(numThreads));
+		ScriptableObject.putProperty(result, "seed", Long.toString(seed));
+		return result;
+	}
+
+	/* ----
+	 * load()
+	 *
+	 *	Generate and copy the rows first to last - 1.
+	 * ----
+	 */
+	private void
+	load(String sql, int threadNo, long first, long last)
+			throws Exception {
+		FastRandom		random = new FastRandom(
+								FastRandom.deriveSeed(seed, threadNo));
+		Context			cx = null;
+		Connection		conn = DriverManager.getConnection(uri, user, pass);
+		CopyIn			copy = null;
+
+		try {
+			if (!(conn instanceof PGConnection)) {
+				throw new SQLException("copyLoad() needs a PostgreSQL " +
+						"connection");
+			}
+			if (rowFunc != null) {
+				cx = Context.enter();
+				ClientEngine.setLocalRandom(random);
+			}
+			copy = ((PGConnection)conn).getCopyAPI().copyIn(sql);
+
+			StringBuilder	buf = new StringBuilder(BUFFER_SIZE + 1024);
+			Object[]		fargs = new Object[1];
+			long			bytes = 0;
+			long			sent = first;
+
+			for (long n = first; n < last && !aborted; n++) {
+				if (rowFunc == null) {
+					generateRow(buf, n, random);
+				} else {
+					fargs[0] = Double.valueOf(n);
+					Object row = rowFunc.call(cx, scope, scope, fargs);
+					if (!(row instanceof Scriptable)) {
+						throw new Exception("row function returned no " +
+								"array for row " + n);
+					}
+					Object[] values = toArray((Scriptable)row);
+					for (int i = 0; i < values.length; i++) {
+						if (i > 0) {
+							buf.append('\t');
+						}
+						appendValue(buf, values[i]);
+					}
+				}
+				buf.append('\n');
+
+				if (buf.length() >= BUFFER_SIZE || n == last - 1) {
+					byte[] data = buf.toString().getBytes("UTF-8");
+					copy.writeToCopy(data, 0, data.length);
+					buf.setLength(0);
+					bytes += data.length;
+					sent = n + 1;
+					rowsDone.set(threadNo, sent - first);
+					bytesDone.set(threadNo, bytes);
+				}
+			}
+			if (aborted) {
+				copy.cancelCopy();
+				return;
+			}
+			copy.endCopy();
+			copy = null;
+			rowsCommitted.addAndGet(last - first);
+		} finally {
+			if (copy != null && copy.isActive()) {
+				try {
+					copy.cancelCopy();
+				} catch (SQLException e) {
+				}
+			}
+			if (cx != null) {
+				ClientEngine.setLocalRandom(null);
+				Context.exit();
+			}
+			conn.close();
+		}
+	}
+
+	/* ----
+	 * generateRow()
+	 *
+	 *	Append one row made from the column specs.
+	 * ----
+	 */
+	private void
+	generateRow(StringBuilder buf, long n, FastRandom random) {
+		for (int i = 0; i < columns.length; i++) {
+			Column	col = columns[i];
+			long[]	a = col.args;
+
+			if (i > 0) {
+				buf.append('\t');
+			}
+			switch (col.kind) {
+				case SEQ:
+					buf.append(a[0] + (n / a[1]) * a[2]);
+					break;
+				case VALUE:
+					buf.append(col.value);
+					break;
+				case RANDOM:
+					buf.append(random.nextInt(a[0], a[1]));
+					break;
+				case NURAND:
+					buf.append(ClientEngine.nonUniformRandom(random,
+							(int)a[0], (int)a[1], (int)a[2]));
+					break;
+				case DIGSYL: {
+					int num = (a.length == 2) ?
+							(int)random.nextInt(a[0], a[1]) :
+							ClientEngine.nonUniformRandom(random,
+									(int)a[0], (int)a[1], (int)a[2]);
+					ClientEngine.appendDigsyl(buf, num, col.len);
+					break;
+				}
+				default: {
+					int len = (int)random.nextInt(a[0], a[1]);
+					for (int j = 0; j < len; j++) {
+						buf.append(TEXT_CHARS.charAt(
+								(int)random.nextInt(0, TEXT_CHARS.length() - 1)));
+					}
+					break;
+				}
+			}
+		}
+	}
+
+	/* ----
+	 * appendValue()
+	 *
+	 *	Append a JS value in COPY text format.
+	 * ----
+	 */
+	private static void
+	appendValue(StringBuilder buf, Object value) {
+		if (value instanceof Wrapper) {
+			value = ((Wrapper)value).unwrap();
+		}
+		if (value == null || value instanceof Undefined) {
+			buf.append("\\N");
+		} else if (value instanceof Integer) {
+			buf.append(((Integer)value).intValue());
+		} else if (value instanceof Number) {
+			double d = ((Number)value).doubleValue();
+			if (d == (long)d && Math.abs(d) < 9007199254740992.0) {
+				buf.append((long)d);
+			} else {
+				buf.append(d);
+			}
+		} else {
+			String s = (value instanceof String) ? (String)value :
+					Context.toString(value);
+			for (int i = 0; i < s.length(); i++) {
+				char ch = s.charAt(i);
+				switch (ch) {
+					case '\\':	buf.append("\\\\");	break;
+					case '\t':	buf.append("\\t");	break;
+					case '\n':	buf.append("\\n");	break;
+					case '\r':	buf.append("\\r");	break;
+					default:	buf.append(ch);		break;
+				}
+			}
+		}
+	}
+
+	private static long
+	sum(AtomicLongArray values) {
+		long result = 0;
+		for (int i = 0; i < values.length(); i++) {
+			result += values.get(i);
+		}
+		return result;
+	}
+
+	private static long
+	rate(long count, long millis) {
+		return millis > 0 ? count * 1000L / millis : count;
+	}
+
+	private static Object[]
+	toArray(Scriptable array) {
+		long	length = (long)Context.toNumber(
+						ScriptableObject.getProperty(array, "length"));
+		Object[] result = new Object[(int)Math.max(length, 0)];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = ScriptableObject.getProperty(array, i);
+		}
+		return result;
+	}
+
+	private static String[]
+	toStrings(Scriptable array) {
+		Object[] values = toArray(array);
+		String[] result = new String[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = Context.toString(values[i]);
+		}
+		return result;
+	}
+
+	private static long
+	toLong(Object value)
+			throws Exception {
+		double d = Context.toNumber(value);
+		if (Double.isNaN(d)) {
+			throw new Exception("copyLoad() column setting " + value +
+					" is not a number");
+		}
+		return (long)d;
+	}
+
+	private static long[]
+	toLongs(Object value, String column, int min, int max)
+			throws Exception {
+		if (!(value instanceof Scriptable)) {
+			throw new Exception("column " + column + " needs an array");
+		}
+		Object[] values = toArray((Scriptable)value);
+		if (values.length < min || values.length > max) {
+			throw new Exception("column " + column + " needs an array of " +
+					(min == max ? "" + min : min + " or " + max) + " numbers");
+		}
+		long[] result = new long[values.length];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = toLong(values[i]);
+		}
+		return result;
+	}
+
+	private static String
+	getString(Scriptable obj, String name, boolean required)
+			throws Exception {
+		Object value = ScriptableObject.getProperty(obj, name);
+		if (value == Scriptable.NOT_FOUND || value == null ||
+				value instanceof Undefined) {
+			if (required) {
+				throw new Exception("copyLoad() needs " + name);
+			}
+			return null;
+		}
+		return Context.toString(value);
+	}
+
+	private static String
+	checkName(String name, Pattern pattern, String what)
+			throws Exception {
+		if (!pattern.matcher(name).matches()) {
+			throw new Exception("copyLoad() " + what + " name " + name +
+					" is not an identifier, quote it with \"");
+		}
+		return name;
+	}
+
+	private static double
+	getNumber(Scriptable obj, String name, double dflt) {
+		Object value = ScriptableObject.getProperty(obj, name);
+		if (value == Scriptable.NOT_FOUND || value == null ||
+				value instanceof Undefined) {
+			return dflt;
+		}
+		return Context.toNumber(value);
+	}
+}
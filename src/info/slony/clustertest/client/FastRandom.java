@@ -0,0 +1,105 @@
+/* ----
+ * FastRandom
+ *
+ *	Small, unsynchronized random number generator (SplitMix64).
+ *
+ *	Every ClientWorker owns one of these, so that workers don't queue
+ *	up on the single synchronized generator behind Math.random(). An
+ *	instance must only be used by one thread at a time.
+ * ----
+ */
+package info.slony.clustertest.client;
+
+class FastRandom {
+	private static final long	GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private long		state;
+	private double		nextGaussian;
+	private boolean		haveNextGaussian = false;
+
+	FastRandom (long seed) {
+		state = seed;
+	}
+
+	/* ----
+	 * mix()
+	 *
+	 *	The SplitMix64 finalizer. Also used to derive well separated
+	 *	seeds from a base seed and a small number like a worker index.
+	 * ----
+	 */
+	static long
+	mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	static long
+	deriveSeed(long seed, long n) {
+		return mix(seed + (n + 1) * GOLDEN_GAMMA);
+	}
+
+	long
+	nextLong() {
+		state += GOLDEN_GAMMA;
+		return mix(state);
+	}
+
+	/* ----
+	 * nextDouble()
+	 *
+	 *	Uniformly distributed in [0, 1).
+	 * ----
+	 */
+	double
+	nextDouble() {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	/* ----
+	 * nextInt()
+	 *
+	 *	Uniformly distributed in [min, max], both inclusive.
+	 * ----
+	 */
+	long
+	nextInt(long min, long max) {
+		return (long)Math.floor(nextDouble() * (max - min + 1) + min);
+	}
+
+	/* ----
+	 * nextGaussian()
+	 *
+	 *	Standard normal distribution (polar Box-Muller).
+	 * ----
+	 */
+	double
+	nextGaussian() {
+		if (haveNextGaussian) {
+			haveNextGaussian = false;
+			return nextGaussian;
+		}
+		double v1, v2, s;
+		do {
+			v1 = 2.0 * nextDouble() - 1.0;
+			v2 = 2.0 * nextDouble() - 1.0;
+			s = v1 * v1 + v2 * v2;
+		} while (s >= 1.0 || s == 0.0);
+		double multiplier = Math.sqrt(-2.0 * Math.log(s) / s);
+		nextGaussian = v2 * multiplier;
+		haveNextGaussian = true;
+		return v1 * multiplier;
+	}
+
+	/* ----
+	 * nextExponential()
+	 *
+	 *	Exponential distribution with mean 1.
+	 * ----
+	 */
+	double
+	nextExponential() {
+		return -Math.log(1.0 - nextDouble());
+	}
+}
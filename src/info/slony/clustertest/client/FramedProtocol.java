@@ -0,0 +1,200 @@
+/* ----
+ * FramedProtocol
+ *
+ *	The framed protocol between a ClientScript in the test coordinator
+ *	and a ClientTelnetConnection.
+ *
+ *	The coordinator starts every session with the HELLO line. For an
+ *	older client that is just a JS comment. A client that knows the
+ *	protocol answers with the ACK line, and from then on both sides
+ *	only send frames:
+ *
+ *		[type:1][length:4, big endian][length bytes of UTF-8 payload]
+ *
+ *	Coordinator to client:
+ *		SCRIPT		JS source, any number of lines
+ *		SCRIPT_HASH	<hash> of a script the client may have cached
+ *		LOCK		LOCK_OBTAINED:<name>
+ *		CONTROL		quit
+ *
+ *	Client to coordinator, one line per frame:
+ *		OUTPUT		results, evaluation errors and what scripts
+ *					print
+ *		ERROR		ERROR: and FATAL: messages
+ *		STATS		<group> <seq> <ms> <phase> <histogram>
+ *		CONTROL		PHASE: <group> <phase>
+ *		LOCK		REQUEST_LOCK:<name> or RELEASE_LOCK:<name>
+ *		NEED_SCRIPT	<hash> of a script the client does not have
+ *
+ *	A client that gets a SCRIPT_HASH runs the script from its cache
+ *	(see ScriptCache) or answers NEED_SCRIPT, and the coordinator
+ *	then sends the script in a SCRIPT frame. The hash is the SHA-1
+ *	of the script's UTF-8 bytes in hex, see scriptHash().
+ *
+ *	Without the ACK the session stays in the line based text mode, in
+ *	which the same messages are told apart by their prefixes.
+ *	An ACK that comes after the coordinator stopped waiting for it
+ *	ends the job, since the script already went out as text.
+ * ----
+ */
+package info.slony.clustertest.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class FramedProtocol {
+	public static final String	HELLO = "//clustertest framed 1";
+	public static final String	ACK = "FRAMED 1";
+
+	public static final int		SCRIPT = 1;
+	public static final int		OUTPUT = 2;
+	public static final int		ERROR = 3;
+	public static final int		CONTROL = 4;
+	public static final int		STATS = 5;
+	public static final int		LOCK = 6;
+	public static final int		SCRIPT_HASH = 7;
+	public static final int		NEED_SCRIPT = 8;
+
+	public static final String	QUIT = "quit";
+	public static final String	LOCK_REQUEST = "REQUEST_LOCK:";
+	public static final String	LOCK_RELEASE = "RELEASE_LOCK:";
+	public static final String	LOCK_OBTAINED = "LOCK_OBTAINED:";
+
+	static final int			HEADER_SIZE = 5;
+	static final int			MAX_PAYLOAD = 64 * 1024 * 1024;
+	static final int			MAX_HANDSHAKE_LINE = 1024;
+
+	/* ----
+	 * Frame
+	 *
+	 *	One received frame.
+	 * ----
+	 */
+	public static class Frame {
+		public int		type;
+		public byte[]	payload;
+
+		public String
+		text() {
+			try {
+				return new String(payload, "UTF-8");
+			} catch (IOException e) {
+				throw new IllegalStateException(e.getMessage());
+			}
+		}
+	}
+
+	/* ----
+	 * writeFrame()
+	 *
+	 *	Send one frame. The caller serializes writers and flushes.
+	 * ----
+	 */
+	public static void
+	writeFrame(OutputStream out, int type, String text)
+			throws IOException {
+		byte[] payload = text.getBytes("UTF-8");
+		byte[] header = new byte[HEADER_SIZE];
+		putHeader(header, 0, type, payload.length);
+		out.write(header);
+		out.write(payload);
+	}
+
+	static void
+	putHeader(byte[] buf, int off, int type, int length) {
+		buf[off]		= (byte)type;
+		buf[off + 1]	= (byte)(length >>> 24);
+		buf[off + 2]	= (byte)(length >>> 16);
+		buf[off + 3]	= (byte)(length >>> 8);
+		buf[off + 4]	= (byte)length;
+	}
+
+	/* ----
+	 * readFrame()
+	 *
+	 *	Read the next frame, null at the end of the stream.
+	 * ----
+	 */
+	public static Frame
+	readFrame(DataInputStream in)
+			throws IOException {
+		int type = in.read();
+		if (type < 0) {
+			return null;
+		}
+		Frame frame = new Frame();
+		frame.type = type;
+		int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			throw new IOException("truncated frame header");
+		}
+		if (length < 0 || length > MAX_PAYLOAD) {
+			throw new IOException("bad frame length " + length);
+		}
+		frame.payload = new byte[length];
+		in.readFully(frame.payload);
+		return frame;
+	}
+
+	/* ----
+	 * readLine()
+	 *
+	 *	Read one line byte by byte during the handshake, so that
+	 *	nothing after it is consumed. The line is returned with its
+	 *	newline; without one if the stream ended or the line is too
+	 *	long to be a handshake line, cut after a complete character.
+	 *	Returns null at the end of the stream.
+	 * ----
+	 */
+	public static String
+	readLine(InputStream in)
+			throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+		int c;
+
+		while ((c = in.read()) >= 0) {
+			line.write(c);
+			if (c == '\n') {
+				break;
+			}
+			if (line.size() >= MAX_HANDSHAKE_LINE && c < 0x80) {
+				break;
+			}
+		}
+		return (line.size() == 0) ? null : line.toString();
+	}
+
+	/* ----
+	 * scriptHash()
+	 *
+	 *	The hash a script is known by in SCRIPT_HASH and NEED_SCRIPT.
+	 * ----
+	 */
+	public static String
+	scriptHash(String script) {
+		byte[]			digest;
+		StringBuilder	hex = new StringBuilder(40);
+
+		try {
+			digest = MessageDigest.getInstance("SHA-1").digest(
+					script.getBytes("UTF-8"));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e.getMessage());
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+		for (byte b : digest) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
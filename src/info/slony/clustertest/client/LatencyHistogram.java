@@ -0,0 +1,312 @@
+/* ----
+ * LatencyHistogram
+ *
+ *	Log bucketed histogram of transaction latencies in microseconds.
+ *
+ *	Values below 128us have their own bucket. Above that every power
+ *	of two range is split into 64 linear sub buckets, so the relative
+ *	error of a reported percentile is below 1/64. Values up to 2^32us
+ *	(more than an hour) are tracked, larger ones are clamped.
+ *
+ *	The buckets are allocated in chunks of 64, one power of two range
+ *	each, when the first sample falls into them. Latencies cluster in
+ *	a few ranges, so a worker's histogram stays at a few hundred bytes
+ *	instead of 14kB, and one of a transaction it never runs costs
+ *	next to nothing. With thousands of workers per client that
+ *	matters.
+ *
+ *	A histogram is recorded into by a single worker thread without
+ *	any locking. Readers merging histograms of running workers may
+ *	see a slightly stale view, which is good enough for statistics.
+ *
+ *	The coordinator side uses the same class to decode the interval
+ *	histograms clients report with encode().
+ * ----
+ */
+package info.slony.clustertest.client;
+
+public class LatencyHistogram {
+	private static final int	SUB_BITS = 7;
+	private static final int	SUB_COUNT = 1 << SUB_BITS;
+	private static final int	HALF_COUNT = SUB_COUNT >> 1;
+	private static final int	MAX_BITS = 32;
+	static final long			MAX_VALUE = (1L << MAX_BITS) - 1;
+	static final int			NUM_BUCKETS =
+			(MAX_BITS - SUB_BITS) * HALF_COUNT + SUB_COUNT;
+	private static final int	CHUNK_BITS = SUB_BITS - 1;
+	private static final int	CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int	NUM_CHUNKS = NUM_BUCKETS / CHUNK_SIZE;
+
+	private final long[][]	chunks = new long[NUM_CHUNKS][];
+	private long			totalCount;
+	private long			totalSum;		// For the mean
+	private long			errorCount;
+	private long			maxValue;
+
+	public LatencyHistogram () {
+	}
+
+	/* ----
+	 * record()
+	 *
+	 *	Add one latency sample in microseconds.
+	 * ----
+	 */
+	void
+	record(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		} else if (micros > MAX_VALUE) {
+			micros = MAX_VALUE;
+		}
+		addCount(bucketIndex(micros), 1);
+		totalCount++;
+		totalSum += micros;
+		if (micros > maxValue) {
+			maxValue = micros;
+		}
+	}
+
+	void
+	recordError() {
+		errorCount++;
+	}
+
+	/* ----
+	 * add()
+	 *
+	 *	Merge the counts of another histogram into this one.
+	 * ----
+	 */
+	public void
+	add(LatencyHistogram other) {
+		for (int c = 0; c < NUM_CHUNKS; c++) {
+			long[] from = other.chunks[c];
+			if (from == null) {
+				continue;
+			}
+			for (int j = 0; j < CHUNK_SIZE; j++) {
+				if (from[j] != 0) {
+					addCount((c << CHUNK_BITS) + j, from[j]);
+				}
+			}
+		}
+		totalCount += other.totalCount;
+		totalSum += other.totalSum;
+		errorCount += other.errorCount;
+		if (other.maxValue > maxValue) {
+			maxValue = other.maxValue;
+		}
+	}
+
+	public long
+	getCount() {
+		return totalCount;
+	}
+
+	public long
+	getErrors() {
+		return errorCount;
+	}
+
+	public long
+	getMax() {
+		return maxValue;
+	}
+
+	public double
+	getMean() {
+		return (totalCount == 0) ? 0.0 : (double)totalSum / totalCount;
+	}
+
+	/* ----
+	 * getPercentile()
+	 *
+	 *	Return the value in microseconds below which the given
+	 *	percentage of all samples fall. The upper bound of the
+	 *	bucket is reported, but never more than the maximum seen.
+	 * ----
+	 */
+	public long
+	getPercentile(double percent) {
+		if (totalCount == 0) {
+			return 0;
+		}
+		long	rank = (long)Math.ceil(percent / 100.0 * totalCount);
+		long	seen = 0;
+
+		if (rank < 1) {
+			rank = 1;
+		}
+		for (int c = 0; c < NUM_CHUNKS; c++) {
+			long[] chunk = chunks[c];
+			if (chunk == null) {
+				continue;
+			}
+			for (int j = 0; j < CHUNK_SIZE; j++) {
+				seen += chunk[j];
+				if (seen >= rank) {
+					return Math.min(bucketUpperBound((c << CHUNK_BITS) + j),
+							maxValue);
+				}
+			}
+		}
+		return maxValue;
+	}
+
+	private long
+	getCount(int index) {
+		long[] chunk = chunks[index >> CHUNK_BITS];
+		return (chunk == null) ? 0 : chunk[index & (CHUNK_SIZE - 1)];
+	}
+
+	private void
+	addCount(int index, long n) {
+		long[] chunk = chunks[index >> CHUNK_BITS];
+		if (chunk == null) {
+			chunk = new long[CHUNK_SIZE];
+			chunks[index >> CHUNK_BITS] = chunk;
+		}
+		chunk[index & (CHUNK_SIZE - 1)] += n;
+	}
+
+	static int
+	bucketIndex(long value) {
+		if (value < SUB_COUNT) {
+			return (int)value;
+		}
+		int		shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS + 1;
+		return (shift << (SUB_BITS - 1)) + (int)(value >>> shift);
+	}
+
+	static long
+	bucketUpperBound(int index) {
+		if (index < SUB_COUNT) {
+			return index;
+		}
+		int		shift = (index >> (SUB_BITS - 1)) - 1;
+		long	sub = index - (shift << (SUB_BITS - 1));
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/* ----
+	 * format()
+	 *
+	 *	One line summary in milliseconds, as used in the group
+	 *	summary output.
+	 * ----
+	 */
+	public String
+	format() {
+		return "count " + totalCount +
+			" errors " + errorCount +
+			" mean " + millis(Math.round(getMean())) +
+			" p50 " + millis(getPercentile(50.0)) +
+			" p90 " + millis(getPercentile(90.0)) +
+			" p99 " + millis(getPercentile(99.0)) +
+			" p99.9 " + millis(getPercentile(99.9)) +
+			" max " + millis(maxValue) + " ms";
+	}
+
+	public static double
+	millis(long micros) {
+		return micros / 1000.0;
+	}
+
+	/* ----
+	 * copy() & subtract()
+	 *
+	 *	The histogram of what was recorded between an earlier copy
+	 *	and now. The maximum of the interval is only known to the
+	 *	bucket, so the bucket bound is used.
+	 * ----
+	 */
+	LatencyHistogram
+	copy() {
+		LatencyHistogram result = new LatencyHistogram();
+		result.add(this);
+		return result;
+	}
+
+	LatencyHistogram
+	subtract(LatencyHistogram earlier) {
+		LatencyHistogram result = new LatencyHistogram();
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			if (chunks[i >> CHUNK_BITS] == null) {
+				i |= CHUNK_SIZE - 1;
+				continue;
+			}
+			long n = getCount(i) - earlier.getCount(i);
+			if (n > 0) {
+				result.addCount(i, n);
+				result.totalCount += n;
+				result.maxValue = Math.min(bucketUpperBound(i), maxValue);
+			}
+		}
+		result.totalSum = Math.max(totalSum - earlier.totalSum, 0);
+		result.errorCount = Math.max(errorCount - earlier.errorCount, 0);
+		return result;
+	}
+
+	/* ----
+	 * encode() & decode()
+	 *
+	 *	Compact text form: "count errors sum max buckets", where
+	 *	buckets lists the non-empty buckets as index:count pairs
+	 *	separated by commas, or "-" if there are none.
+	 * ----
+	 */
+	String
+	encode() {
+		StringBuilder buf = new StringBuilder(64);
+		buf.append(totalCount).append(' ')
+			.append(errorCount).append(' ')
+			.append(totalSum).append(' ')
+			.append(maxValue).append(' ');
+		int len = buf.length();
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			long n = getCount(i);
+			if (n != 0) {
+				if (buf.length() > len) {
+					buf.append(',');
+				}
+				buf.append(i).append(':').append(n);
+			}
+		}
+		if (buf.length() == len) {
+			buf.append('-');
+		}
+		return buf.toString();
+	}
+
+	public static LatencyHistogram
+	decode(String encoded)
+			throws IllegalArgumentException {
+		String[] fields = encoded.trim().split(" ");
+		if (fields.length != 5) {
+			throw new IllegalArgumentException("bad histogram: " + encoded);
+		}
+		LatencyHistogram result = new LatencyHistogram();
+		try {
+			result.errorCount = Long.parseLong(fields[1]);
+			result.totalSum = Long.parseLong(fields[2]);
+			result.maxValue = Long.parseLong(fields[3]);
+			if (!fields[4].equals("-")) {
+				for (String pair : fields[4].split(",")) {
+					int idx = pair.indexOf(':');
+					int bucket = Integer.parseInt(pair.substring(0, idx));
+					long n = Long.parseLong(pair.substring(idx + 1));
+					result.addCount(bucket, n);
+					result.totalCount += n;
+				}
+			}
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("bad histogram: " + encoded);
+		}
+		if (result.totalCount != Long.parseLong(fields[0])) {
+			throw new IllegalArgumentException("histogram count mismatch: " +
+					encoded);
+		}
+		return result;
+	}
+}
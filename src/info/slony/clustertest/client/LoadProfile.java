@@ -0,0 +1,198 @@
+/* ----
+ * LoadProfile
+ *
+ *	A schedule of how many workers of a ClientGroup are active, and at
+ *	what rate transactions arrive, over the time since launch.
+ *
+ *	A profile is given as a JS array of step objects, all times in
+ *	seconds since the group was launched:
+ *
+ *		{at:60, workers:200, ramp:30}
+ *			Starting at 60s, move to 200 active workers linearly
+ *			over 30s (ramp defaults to 0, a plain step).
+ *		{at:0, rate:500}
+ *			Same for the arrival rate of a launchRate() group.
+ *			A step may set both workers and rate.
+ *		{at:600, workers:100, amplitude:80, period:3600}
+ *			Once the step (and its ramp) is reached, swing around
+ *			100 workers by +/- 80 in a sine wave of one hour.
+ *		{spikeAt:300, duration:20, workers:400}
+ *			Override the curve with 400 workers for 20s.
+ *
+ *	Before the first step the values the group was launched with
+ *	apply.
+ * ----
+ */
+package info.slony.clustertest.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+class LoadProfile {
+	static final int	WORKERS = 0;
+	static final int	RATE = 1;
+	private static final String[] KIND_NAMES = {"workers", "rate"};
+
+	private static class Step {
+		double	at;
+		double	value;
+		double	ramp;
+		double	amplitude;
+		double	period;
+	}
+
+	private static class Spike {
+		double	at;
+		double	duration;
+		double	value;
+	}
+
+	private final List<List<Step>>	steps = new ArrayList<List<Step>>();
+	private final List<List<Spike>>	spikes = new ArrayList<List<Spike>>();
+
+	LoadProfile (Scriptable array)
+			throws Exception {
+		for (int k = 0; k < KIND_NAMES.length; k++) {
+			steps.add(new ArrayList<Step>());
+			spikes.add(new ArrayList<Spike>());
+		}
+
+		long len = (long)Context.toNumber(
+				ScriptableObject.getProperty(array, "length"));
+		for (int i = 0; i < len; i++) {
+			Object o = ScriptableObject.getProperty(array, i);
+			if (!(o instanceof Scriptable)) {
+				throw new Exception("profile entry " + i + " is not an object");
+			}
+			Scriptable entry = (Scriptable)o;
+			boolean used = false;
+
+			for (int k = 0; k < KIND_NAMES.length; k++) {
+				double value = getNumber(entry, KIND_NAMES[k], Double.NaN);
+				if (Double.isNaN(value)) {
+					continue;
+				}
+				if (value < 0) {
+					throw new Exception("profile entry " + i + ": negative " +
+							KIND_NAMES[k]);
+				}
+				used = true;
+
+				double spikeAt = getNumber(entry, "spikeAt", Double.NaN);
+				if (!Double.isNaN(spikeAt)) {
+					Spike spike = new Spike();
+					spike.at		= spikeAt;
+					spike.duration	= getNumber(entry, "duration", 0.0);
+					spike.value		= value;
+					spikes.get(k).add(spike);
+					continue;
+				}
+
+				Step step = new Step();
+				step.at			= getNumber(entry, "at", Double.NaN);
+				step.value		= value;
+				step.ramp		= getNumber(entry, "ramp", 0.0);
+				step.amplitude	= getNumber(entry, "amplitude", 0.0);
+				step.period		= getNumber(entry, "period", 0.0);
+				if (Double.isNaN(step.at)) {
+					throw new Exception("profile entry " + i +
+							" needs either at or spikeAt");
+				}
+				if (step.amplitude != 0.0 && step.period <= 0.0) {
+					throw new Exception("profile entry " + i +
+							": amplitude needs a positive period");
+				}
+				steps.get(k).add(step);
+			}
+			if (!used) {
+				throw new Exception("profile entry " + i +
+						" sets neither workers nor rate");
+			}
+		}
+
+		for (int k = 0; k < KIND_NAMES.length; k++) {
+			Collections.sort(steps.get(k), new Comparator<Step>() {
+				public int compare(Step a, Step b) {
+					return Double.compare(a.at, b.at);
+				}
+			});
+		}
+	}
+
+	boolean
+	has(int kind) {
+		return !steps.get(kind).isEmpty() || !spikes.get(kind).isEmpty();
+	}
+
+	/* ----
+	 * value()
+	 *
+	 *	The target value at t seconds since launch. base is what
+	 *	applies before the first step.
+	 * ----
+	 */
+	double
+	value(int kind, double t, double base) {
+		List<Spike> spikeList = spikes.get(kind);
+		for (int i = spikeList.size() - 1; i >= 0; i--) {
+			Spike spike = spikeList.get(i);
+			if (t >= spike.at && t < spike.at + spike.duration) {
+				return spike.value;
+			}
+		}
+
+		double level = base;
+		double prev = base;
+		for (Step step : steps.get(kind)) {
+			if (t < step.at) {
+				break;
+			}
+			double since = t - step.at;
+			if (since < step.ramp) {
+				level = prev + (step.value - prev) * since / step.ramp;
+			} else if (step.amplitude != 0.0) {
+				level = step.value + step.amplitude *
+						Math.sin(2.0 * Math.PI * (since - step.ramp) / step.period);
+			} else {
+				level = step.value;
+			}
+			prev = step.value;
+		}
+		return Math.max(level, 0.0);
+	}
+
+	/* ----
+	 * maxValue()
+	 *
+	 *	The largest value the profile can ask for, or base if that
+	 *	is larger.
+	 * ----
+	 */
+	double
+	maxValue(int kind, double base) {
+		double max = base;
+		for (Step step : steps.get(kind)) {
+			max = Math.max(max, step.value + Math.abs(step.amplitude));
+		}
+		for (Spike spike : spikes.get(kind)) {
+			max = Math.max(max, spike.value);
+		}
+		return max;
+	}
+
+	private static double
+	getNumber(Scriptable obj, String name, double dflt) {
+		Object value = ScriptableObject.getProperty(obj, name);
+		if (value == Scriptable.NOT_FOUND || value == null ||
+				value instanceof org.mozilla.javascript.Undefined) {
+			return dflt;
+		}
+		return Context.toNumber(value);
+	}
+}
@@ -0,0 +1,627 @@
+/* ----
+ * Multiplexer
+ *
+ *	Several jobs over one connection between a worker client started
+ *	with -coordinator=<host>:<port> -jobs=<n> and the
+ *	ClientWorkerServer of the test coordinator.
+ *
+ *	The client opens the connection with the line
+ *
+ *		//clustertest mux 1 jobs=<n>
+ *
+ *	and from then on both sides only send frames
+ *
+ *		[job id:4][length:4][length bytes]
+ *
+ *	where a length of -1 ends the data of that side of the job and a
+ *	length of -2 is followed by [credit:4] instead of data. The
+ *	coordinator starts a job with an empty frame, so the client sees
+ *	the jobs in the order of their ids. Each
+ *	job is a Channel with the streams a socket of its own would have
+ *	had, so the test coordinator runs a ClientScript and the client a
+ *	ClientTelnetConnection on it as usual. The coordinator opens
+ *	channels with open(), up to the number the client advertised, and
+ *	the client takes them with accept(). A channel is gone once both
+ *	sides closed their output.
+ *
+ *	Received data is queued per channel, so a job that is slow to
+ *	read its input does not hold up the others. To bound that queue,
+ *	each side of a channel may only send WINDOW bytes more than the
+ *	other side has granted as credit; the reader grants what it has
+ *	consumed once that is half the window.
+ * ----
+ */
+package info.slony.clustertest.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+public class Multiplexer {
+	public static final String	HELLO = "//clustertest mux 1 jobs=";
+
+	static final int			END = -1;
+	static final int			CREDIT = -2;
+	static final int			MAX_CHUNK = 64 * 1024;
+	static final int			WINDOW = 4 * MAX_CHUNK;
+
+	private static Logger log = Logger.getLogger(Multiplexer.class);
+
+	private final DataInputStream		in;
+	private final DataOutputStream		out;
+	private final int					jobs;
+	private final boolean				opener;
+	private final Runnable				onChange;
+	private final Map<Integer,Channel>	channels =
+			new HashMap<Integer,Channel>();
+	private final LinkedList<Channel>	accepted = new LinkedList<Channel>();
+	private int							lastId = 0;
+	private boolean						closed = false;
+
+	/* ----
+	 * The side that opens the channels (the test coordinator) passes
+	 * opener true. onChange, if not null, is called whenever a
+	 * channel is gone or the connection ended.
+	 * ----
+	 */
+	public Multiplexer (InputStream in, OutputStream out, int jobs,
+			boolean opener, Runnable onChange) {
+		this.in			= new DataInputStream(new BufferedInputStream(in));
+		this.out		= new DataOutputStream(new BufferedOutputStream(out));
+		this.jobs		= jobs;
+		this.opener		= opener;
+		this.onChange	= onChange;
+	}
+
+	/* ----
+	 * parseHello()
+	 *
+	 *	The number of jobs in the line a client opens with, -1 if it
+	 *	is not that line.
+	 * ----
+	 */
+	public static int
+	parseHello(String line) {
+		line = line.trim();
+		if (!line.startsWith(HELLO)) {
+			return -1;
+		}
+		try {
+			int n = Integer.parseInt(line.substring(HELLO.length()));
+			return (n > 0) ? n : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	public int
+	getJobs() {
+		return jobs;
+	}
+
+	public synchronized int
+	getOpenChannels() {
+		return channels.size();
+	}
+
+	public synchronized boolean
+	isClosed() {
+		return closed;
+	}
+
+	/* ----
+	 * open()
+	 *
+	 *	A new channel, on the opening side. Returns null if the
+	 *	connection is closed.
+	 * ----
+	 */
+	public synchronized Channel
+	open() {
+		if (closed) {
+			return null;
+		}
+		Channel channel = new Channel(++lastId);
+		try {
+			send(channel.id, null, 0, 0);
+		} catch (IOException e) {
+			log.error("multiplexed connection failed: " + e.getMessage());
+			return null;
+		}
+		channels.put(channel.id, channel);
+		return channel;
+	}
+
+	/* ----
+	 * accept()
+	 *
+	 *	Wait for the next channel the other side opens. Returns null
+	 *	once the connection ended.
+	 * ----
+	 */
+	public synchronized Channel
+	accept()
+			throws InterruptedException {
+		while (accepted.isEmpty() && !closed) {
+			wait();
+		}
+		return accepted.isEmpty() ? null : accepted.removeFirst();
+	}
+
+	/* ----
+	 * run()
+	 *
+	 *	Read frames and hand them to their channels until the
+	 *	connection ends. The caller provides the thread.
+	 * ----
+	 */
+	public void
+	run() {
+		try {
+			while (true) {
+				int id;
+				try {
+					id = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				int length = in.readInt();
+				if (length == CREDIT) {
+					int credit = in.readInt();
+					Channel channel = getChannel(id);
+					if (channel != null) {
+						channel.output.addCredit(credit);
+					}
+					continue;
+				}
+				byte[] data = null;
+				if (length != END) {
+					if (length < 0 || length > FramedProtocol.MAX_PAYLOAD) {
+						throw new IOException("bad mux frame length " + length);
+					}
+					data = new byte[length];
+					in.readFully(data);
+				}
+				Channel channel = channelFor(id);
+				if (channel == null) {
+					continue;
+				}
+				if (data == null) {
+					channel.input.end();
+					channel.remoteClosed();
+				} else {
+					channel.input.deliver(data);
+				}
+			}
+		} catch (IOException e) {
+			if (!isClosed()) {
+				log.error("multiplexed connection failed: " + e.getMessage());
+			}
+		}
+		close();
+	}
+
+	private synchronized Channel
+	getChannel(int id) {
+		return channels.get(id);
+	}
+
+	/* ----
+	 * channelFor()
+	 *
+	 *	The channel a frame is for. On the accepting side a new id
+	 *	opens a channel; frames for a channel that is already gone
+	 *	are dropped.
+	 * ----
+	 */
+	private synchronized Channel
+	channelFor(int id) {
+		Channel channel = channels.get(id);
+		if (channel == null && !opener && id > lastId) {
+			lastId = id;
+			channel = new Channel(id);
+			channels.put(id, channel);
+			accepted.add(channel);
+			notifyAll();
+		}
+		return channel;
+	}
+
+	/* ----
+	 * close()
+	 *
+	 *	End the connection: all channels see the end of their input,
+	 *	and output to them goes nowhere.
+	 * ----
+	 */
+	public void
+	close() {
+		List<Channel> open;
+
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			open = new ArrayList<Channel>(channels.values());
+			channels.clear();
+			notifyAll();
+		}
+		for (Channel channel : open) {
+			channel.input.end();
+			channel.output.connectionClosed();
+		}
+		try {
+			out.close();
+		} catch (IOException e) {
+		}
+		try {
+			in.close();
+		} catch (IOException e) {
+		}
+		if (onChange != null) {
+			onChange.run();
+		}
+	}
+
+	private void
+	send(int id, byte[] data, int off, int len)
+			throws IOException {
+		synchronized (out) {
+			out.writeInt(id);
+			out.writeInt(len);
+			if (len > 0) {
+				out.write(data, off, len);
+			}
+			out.flush();
+		}
+	}
+
+	private void
+	sendCredit(int id, int credit) {
+		if (credit <= 0 || isClosed()) {
+			return;
+		}
+		try {
+			synchronized (out) {
+				out.writeInt(id);
+				out.writeInt(CREDIT);
+				out.writeInt(credit);
+				out.flush();
+			}
+		} catch (IOException e) {
+			log.debug("error granting credit on channel " + id + ": " +
+					e.getMessage());
+		}
+	}
+
+	private void
+	forget(Channel channel) {
+		synchronized (this) {
+			if (channels.get(channel.id) != channel) {
+				return;
+			}
+			channels.remove(channel.id);
+		}
+		if (onChange != null) {
+			onChange.run();
+		}
+	}
+
+	/* ----
+	 * Channel
+	 *
+	 *	One job on the connection.
+	 * ----
+	 */
+	public class Channel {
+		final int						id;
+		private final ChannelInput		input = new ChannelInput();
+		private final ChannelOutput		output = new ChannelOutput();
+		private boolean					localDone = false;
+		private boolean					remoteDone = false;
+
+		Channel (int id) {
+			this.id = id;
+		}
+
+		public int
+		getId() {
+			return id;
+		}
+
+		public InputStream
+		getInputStream() {
+			return input;
+		}
+
+		public OutputStream
+		getOutputStream() {
+			return output;
+		}
+
+		/* ----
+		 * close()
+		 *
+		 *	Close both streams of this side.
+		 * ----
+		 */
+		public void
+		close() {
+			input.close();
+			try {
+				output.close();
+			} catch (IOException e) {
+				log.debug("error closing channel " + id + ": " + e.getMessage());
+			}
+		}
+
+		private void
+		localClosed() {
+			boolean done;
+			synchronized (this) {
+				localDone = true;
+				done = remoteDone;
+			}
+			if (done) {
+				forget(this);
+			}
+		}
+
+		private void
+		remoteClosed() {
+			boolean done;
+			synchronized (this) {
+				remoteDone = true;
+				done = localDone;
+			}
+			if (done) {
+				forget(this);
+			}
+		}
+
+		/* ----
+		 * ChannelInput
+		 *
+		 *	The data received for the channel, in the chunks it came
+		 *	in. Consumed bytes are granted back to the sender as credit
+		 *	in batches of half the window. Closing the input grants
+		 *	unlimited credit, as whatever arrives after that is dropped
+		 *	anyway and the sender must not wait for a reader that is
+		 *	gone. The reader thread itself never sends, so it cannot
+		 *	get stuck behind a writer.
+		 * ----
+		 */
+		private class ChannelInput extends InputStream {
+			private final LinkedList<byte[]>	chunks = new LinkedList<byte[]>();
+			private byte[]						current = null;
+			private int							pos = 0;
+			private int							consumed = 0;
+			private boolean						ended = false;
+			private boolean						inputClosed = false;
+
+			synchronized void
+			deliver(byte[] data) {
+				if (!inputClosed && data.length > 0) {
+					chunks.add(data);
+					notifyAll();
+				}
+			}
+
+			synchronized void
+			end() {
+				ended = true;
+				notifyAll();
+			}
+
+			public int
+			read()
+					throws IOException {
+				byte[] b = new byte[1];
+				return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+			}
+
+			public int
+			read(byte[] b, int off, int len)
+					throws IOException {
+				int		n;
+				int		grant = 0;
+
+				synchronized (this) {
+					n = take(b, off, len);
+					if (n > 0) {
+						consumed += n;
+						if (consumed >= WINDOW / 2) {
+							grant = consumed;
+							consumed = 0;
+						}
+					}
+				}
+				sendCredit(id, grant);
+				return n;
+			}
+
+			private int
+			take(byte[] b, int off, int len)
+					throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				while (current == null || pos == current.length) {
+					if (!chunks.isEmpty()) {
+						current = chunks.removeFirst();
+						pos = 0;
+						continue;
+					}
+					if (ended || inputClosed) {
+						return -1;
+					}
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						throw new IOException("interrupted");
+					}
+				}
+				int n = Math.min(len, current.length - pos);
+				System.arraycopy(current, pos, b, off, n);
+				pos += n;
+				return n;
+			}
+
+			public synchronized int
+			available() {
+				return (current == null) ? 0 : current.length - pos;
+			}
+
+			public void
+			close() {
+				synchronized (this) {
+					if (inputClosed) {
+						return;
+					}
+					inputClosed = true;
+					chunks.clear();
+					current = null;
+					notifyAll();
+				}
+				sendCredit(id, Integer.MAX_VALUE);
+			}
+		}
+
+		/* ----
+		 * ChannelOutput
+		 *
+		 *	Collects what is written until flush() and sends it as
+		 *	frames of at most MAX_CHUNK bytes, waiting for credit from
+		 *	the other side when the window is used up.
+		 * ----
+		 */
+		private class ChannelOutput extends OutputStream {
+			private final ByteArrayOutputStream	pending =
+					new ByteArrayOutputStream(1024);
+			private final Object				creditLock = new Object();
+			private int							credit = WINDOW;
+			private boolean						outputClosed = false;
+			private boolean						connectionGone = false;
+
+			public synchronized void
+			write(int b)
+					throws IOException {
+				checkOpen();
+				pending.write(b);
+			}
+
+			public synchronized void
+			write(byte[] b, int off, int len)
+					throws IOException {
+				checkOpen();
+				pending.write(b, off, len);
+				if (pending.size() >= MAX_CHUNK) {
+					flush();
+				}
+			}
+
+			public synchronized void
+			flush()
+					throws IOException {
+				if (pending.size() == 0) {
+					return;
+				}
+				byte[] data = pending.toByteArray();
+				pending.reset();
+				if (isClosed()) {
+					throw new IOException("multiplexed connection closed");
+				}
+				for (int off = 0; off < data.length; ) {
+					int n = takeCredit(Math.min(MAX_CHUNK, data.length - off));
+					send(id, data, off, n);
+					off += n;
+				}
+			}
+
+			/* ----
+			 * takeCredit()
+			 *
+			 *	Wait until sending is allowed and take up to want bytes
+			 *	of credit. This has a lock of its own, so the reader
+			 *	thread can add credit while a writer is stuck in send().
+			 * ----
+			 */
+			private int
+			takeCredit(int want)
+					throws IOException {
+				synchronized (creditLock) {
+					while (credit == 0 && !connectionGone) {
+						try {
+							creditLock.wait();
+						} catch (InterruptedException e) {
+							throw new IOException("interrupted");
+						}
+					}
+					if (connectionGone) {
+						throw new IOException("multiplexed connection closed");
+					}
+					int n = Math.min(want, credit);
+					credit -= n;
+					return n;
+				}
+			}
+
+			void
+			addCredit(int n) {
+				synchronized (creditLock) {
+					credit = (int)Math.min((long)credit + n, Integer.MAX_VALUE);
+					creditLock.notifyAll();
+				}
+			}
+
+			void
+			connectionClosed() {
+				synchronized (creditLock) {
+					connectionGone = true;
+					creditLock.notifyAll();
+				}
+			}
+
+			public void
+			close()
+					throws IOException {
+				synchronized (this) {
+					if (outputClosed) {
+						return;
+					}
+					try {
+						if (!isClosed()) {
+							flush();
+							send(id, null, 0, END);
+						}
+					} finally {
+						outputClosed = true;
+					}
+				}
+				localClosed();
+			}
+
+			private void
+			checkOpen()
+					throws IOException {
+				if (outputClosed) {
+					throw new IOException("channel " + id + " is closed");
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,569 @@
+/* ----
+ * NioClientServer
+ *
+ *	The -server=<port> -nio mode of the ClientCoordinator: one I/O
+ *	thread serves all test coordinator sessions through a Selector,
+ *	and their scripts are evaluated on a fixed number of executor
+ *	threads.
+ *
+ *	The I/O thread cuts the input of a session into lines (text mode)
+ *	or frames (framed protocol) and appends them to the ordered task
+ *	queue of the session. A session has at most one executor thread
+ *	at a time, so its input is evaluated in order, and gives it up
+ *	after TASKS_PER_TURN tasks so busy sessions take turns. LOCK and
+ *	CONTROL frames are handled right away by the I/O thread.
+ *
+ *	Output goes into an OutputRing without drain thread per session.
+ *	The I/O thread writes it to the channel when the channel can take
+ *	it, and closes the channel once the session finished and all of
+ *	its output is written.
+ *
+ *	A session that calls waitfor() holds its executor thread until
+ *	the group is done, so the number of threads limits how many
+ *	sessions evaluate at the same time. The others wait their turn,
+ *	their workers are not affected.
+ * ----
+ */
+package info.slony.clustertest.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+class NioClientServer {
+	static final int		READ_BUFFER_SIZE = 64 * 1024;
+	static final int		TASKS_PER_TURN = 64;
+
+	/* ----
+	 * Input bytes of a session waiting for evaluation before the I/O
+	 * thread stops reading from it.
+	 * ----
+	 */
+	static final int		MAX_PENDING_INPUT = 4 * 1024 * 1024;
+
+	private static Logger log = Logger.getLogger(NioClientServer.class);
+
+	private final Selector				selector;
+	private final ServerSocketChannel	serverChannel;
+	private final ExecutorService		executor;
+	private final ByteBuffer			readBuffer =
+			ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+	/* ----
+	 * Sessions that have new output or want to read again. Other
+	 * threads must not touch the SelectionKeys, they queue the
+	 * session here and wake up the selector.
+	 * ----
+	 */
+	private final ConcurrentLinkedQueue<Session> changed =
+			new ConcurrentLinkedQueue<Session>();
+
+	NioClientServer (int port, int numThreads)
+			throws IOException {
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		final AtomicInteger threadSeq = new AtomicInteger(0);
+		executor = Executors.newFixedThreadPool(numThreads,
+				new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ClientSession_" +
+						threadSeq.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/* ----
+	 * run()
+	 *
+	 *	The I/O loop. Returns only if the selector fails.
+	 * ----
+	 */
+	void
+	run()
+			throws IOException {
+		while (true) {
+			selector.select();
+
+			Session session;
+			while ((session = changed.poll()) != null) {
+				session.update();
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isAcceptable()) {
+					accept();
+					continue;
+				}
+				session = (Session)key.attachment();
+				if (key.isWritable()) {
+					session.update();
+				}
+				if (key.isValid() && key.isReadable()) {
+					session.read();
+				}
+			}
+		}
+	}
+
+	private void
+	accept() {
+		SocketChannel channel;
+
+		try {
+			channel = serverChannel.accept();
+			if (channel == null) {
+				return;
+			}
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+		} catch (IOException e) {
+			log.error("error accepting connection: " + e.getMessage(), e);
+			return;
+		}
+		log.info("new session from " + channel.socket().getRemoteSocketAddress());
+		Session session = new Session(channel);
+		try {
+			session.key = channel.register(selector, SelectionKey.OP_READ,
+					session);
+		} catch (ClosedChannelException e) {
+			return;
+		}
+		session.start();
+	}
+
+	/* ----
+	 * Session
+	 *
+	 *	One test coordinator connection.
+	 * ----
+	 */
+	private class Session {
+		private static final int	HANDSHAKE = 0;
+		private static final int	TEXT = 1;
+		private static final int	FRAMED = 2;
+
+		final SocketChannel					channel;
+		SelectionKey						key;
+		private final OutputRing			ring;
+		private final ClientTelnetConnection.Shell shell;
+		private int							inputMode = HANDSHAKE;
+		private boolean						inputEnded = false;
+		private boolean						closed = false;
+
+		/* ----
+		 * Input state of the I/O thread: the current line, or the
+		 * header and payload of the current frame.
+		 * ----
+		 */
+		private final ByteArrayOutputStream	line =
+				new ByteArrayOutputStream(256);
+		private final ByteBuffer			header =
+				ByteBuffer.allocate(FramedProtocol.HEADER_SIZE);
+		private ByteBuffer					payload = null;
+		private int							payloadType;
+
+		/* ----
+		 * The ordered task queue, shared with the executor thread.
+		 * ----
+		 */
+		private final LinkedList<Task>		tasks = new LinkedList<Task>();
+		private boolean						scheduled = false;
+		private long						pendingInput = 0;
+		private boolean						readPaused = false;
+
+		Session (SocketChannel channel) {
+			this.channel = channel;
+			this.ring = new OutputRing(OutputRing.DEFAULT_CAPACITY,
+					new Runnable() {
+				public void run() {
+					changed();
+				}
+			});
+			this.shell = new ClientTelnetConnection(ring).shell;
+		}
+
+		/* ----
+		 * A unit of input, holding size bytes of it.
+		 * ----
+		 */
+		private abstract class Task {
+			final int	size;
+
+			Task (int size) {
+				this.size = size;
+			}
+
+			abstract void run();
+		}
+
+		void
+		start() {
+			queue(new Task(0) {
+				void run() {
+					if (!shell.startSession()) {
+						shell.finishSession();
+					}
+				}
+			});
+		}
+
+		private void
+		changed() {
+			changed.add(this);
+			selector.wakeup();
+		}
+
+		/* ----
+		 * read()
+		 *
+		 *	Read what the channel has and turn it into tasks.
+		 * ----
+		 */
+		void
+		read() {
+			int n;
+
+			readBuffer.clear();
+			try {
+				n = channel.read(readBuffer);
+			} catch (IOException e) {
+				log.info("session read error: " + e.getMessage());
+				n = -1;
+			}
+			if (n < 0) {
+				endInput();
+				return;
+			}
+			readBuffer.flip();
+			while (readBuffer.hasRemaining()) {
+				if (inputMode == FRAMED) {
+					if (!readFrame()) {
+						return;
+					}
+				} else {
+					readLine();
+				}
+			}
+		}
+
+		/* ----
+		 * readLine()
+		 *
+		 *	Collect the bytes of one line. The first line decides the
+		 *	protocol, like in ClientTelnetConnection.telnetShell().
+		 * ----
+		 */
+		private void
+		readLine() {
+			while (readBuffer.hasRemaining()) {
+				byte b = readBuffer.get();
+				if (b != '\n') {
+					line.write(b);
+					if (inputMode == HANDSHAKE &&
+							line.size() > FramedProtocol.HELLO.length() + 2) {
+						inputMode = TEXT;
+					}
+					continue;
+				}
+
+				String text = ClientTelnetConnection.stripNewline(
+						line.toString());
+				line.reset();
+				if (inputMode == HANDSHAKE) {
+					if (text.trim().equals(FramedProtocol.HELLO)) {
+						shell.acceptFramed();
+						inputMode = FRAMED;
+						queue(new Task(0) {
+							void run() {
+								shell.enableStats();
+							}
+						});
+						return;
+					}
+					inputMode = TEXT;
+				}
+				final String inputLine = text;
+				queue(new Task(text.length() + 1) {
+					void run() {
+						shell.addLine(inputLine);
+					}
+				});
+			}
+		}
+
+		/* ----
+		 * readFrame()
+		 *
+		 *	Collect the bytes of one frame and act on it when it is
+		 *	complete. Returns false if the session has to be closed.
+		 * ----
+		 */
+		private boolean
+		readFrame() {
+			if (payload == null) {
+				while (header.hasRemaining() && readBuffer.hasRemaining()) {
+					header.put(readBuffer.get());
+				}
+				if (header.hasRemaining()) {
+					return true;
+				}
+				header.flip();
+				payloadType = header.get() & 0xff;
+				int length = header.getInt();
+				header.clear();
+				if (length < 0 || length > FramedProtocol.MAX_PAYLOAD) {
+					log.error("bad frame length " + length);
+					endInput();
+					return false;
+				}
+				payload = ByteBuffer.allocate(length);
+			}
+			int n = Math.min(payload.remaining(), readBuffer.remaining());
+			payload.put(readBuffer.array(), readBuffer.position(), n);
+			readBuffer.position(readBuffer.position() + n);
+			if (payload.hasRemaining()) {
+				return true;
+			}
+
+			FramedProtocol.Frame frame = new FramedProtocol.Frame();
+			frame.type = payloadType;
+			frame.payload = payload.array();
+			payload = null;
+
+			switch (frame.type) {
+				case FramedProtocol.SCRIPT:
+					final String script = frame.text();
+					queue(new Task(frame.payload.length) {
+						void run() {
+							shell.addScript(script);
+						}
+					});
+					break;
+
+				case FramedProtocol.SCRIPT_HASH:
+					final String hash = frame.text();
+					queue(new Task(frame.payload.length) {
+						void run() {
+							shell.runScriptHash(hash);
+						}
+					});
+					break;
+
+				case FramedProtocol.LOCK:
+					shell.lockMessage(frame.text());
+					break;
+
+				case FramedProtocol.CONTROL:
+					shell.controlMessage(frame.text());
+					if (shell.getQuit()) {
+						endInput();
+						return false;
+					}
+					break;
+
+				default:
+					log.warn("ignoring frame of type " + frame.type);
+			}
+			return true;
+		}
+
+		/* ----
+		 * endInput()
+		 *
+		 *	No more input: evaluate what is queued, then finish the
+		 *	session.
+		 * ----
+		 */
+		private void
+		endInput() {
+			if (inputEnded) {
+				return;
+			}
+			inputEnded = true;
+			if (inputMode != FRAMED && line.size() > 0) {
+				final String lastLine = line.toString();
+				line.reset();
+				queue(new Task(lastLine.length()) {
+					void run() {
+						shell.addLine(lastLine);
+					}
+				});
+			}
+			queue(new Task(0) {
+				void run() {
+					shell.finishSession();
+				}
+			});
+			update();
+		}
+
+		/* ----
+		 * queue()
+		 *
+		 *	Append a task and hand the session to the executor unless
+		 *	it already has a thread. Stop reading while too much input
+		 *	waits.
+		 * ----
+		 */
+		private void
+		queue(Task task) {
+			synchronized (this) {
+				tasks.add(task);
+				pendingInput += task.size;
+				if (pendingInput > MAX_PENDING_INPUT && !readPaused) {
+					readPaused = true;
+					changed();
+				}
+				if (scheduled) {
+					return;
+				}
+				scheduled = true;
+			}
+			executor.execute(new Runnable() {
+				public void run() {
+					runTasks();
+				}
+			});
+		}
+
+		/* ----
+		 * runTasks()
+		 *
+		 *	Evaluate queued input on an executor thread. After quit()
+		 *	the rest of the input is skipped.
+		 * ----
+		 */
+		private void
+		runTasks() {
+			boolean	resume = false;
+			boolean	more = true;
+			int		n = 0;
+
+			shell.attach();
+			try {
+				while (n++ < TASKS_PER_TURN) {
+					Task task;
+					synchronized (this) {
+						task = tasks.poll();
+						if (task == null) {
+							scheduled = false;
+							more = false;
+							break;
+						}
+						pendingInput -= task.size;
+						if (readPaused && pendingInput < MAX_PENDING_INPUT / 2) {
+							readPaused = false;
+							resume = true;
+						}
+					}
+					if (shell.isFinished()) {
+						continue;
+					}
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						log.error("session task failed: " + e.getMessage(), e);
+					}
+					if (shell.getQuit()) {
+						shell.finishSession();
+					}
+				}
+			} finally {
+				shell.detach();
+			}
+			if (resume) {
+				changed();
+			}
+			if (more) {
+				executor.execute(new Runnable() {
+					public void run() {
+						runTasks();
+					}
+				});
+			}
+		}
+
+		/* ----
+		 * update()
+		 *
+		 *	On the I/O thread: write pending output, set the interest
+		 *	ops and close the channel once everything is done.
+		 * ----
+		 */
+		void
+		update() {
+			boolean	drained;
+			boolean	paused;
+
+			if (closed) {
+				return;
+			}
+			try {
+				drained = ring.drainTo(channel);
+			} catch (IOException e) {
+				log.info("session write error: " + e.getMessage());
+				close();
+				shell.setQuit();
+				ring.stop();
+				endInput();
+				return;
+			}
+			if (drained && ring.isFinished()) {
+				close();
+				return;
+			}
+			synchronized (this) {
+				paused = readPaused;
+			}
+			int ops = 0;
+			if (!inputEnded && !paused) {
+				ops |= SelectionKey.OP_READ;
+			}
+			if (!drained) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			key.interestOps(ops);
+		}
+
+		private void
+		close() {
+			closed = true;
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.error("error closing session: " + e.getMessage(), e);
+			}
+			log.info("session closed");
+		}
+	}
+}
@@ -0,0 +1,561 @@
+/* ----
+ * OutputRing
+ *
+ *	A bounded byte ring buffer between the threads of a client
+ *	session that produce output and the one drain thread writing it
+ *	to the real OutputStream.
+ *
+ *	This is being done for two reasons:
+ *
+ *	1) The PipedOutputStream and PipedInputStream classes used when
+ *	   ClientTelnetConnection is invoked in the same JRE as the test
+ *	   coordinator do not work well if multiple threads write to the
+ *	   OutputStream (specifically if a thread that has written to the
+ *	   OutputStream later dies before all input is consumed).
+ *
+ *	2) To prevent worker threads from being slowed down by a backlog
+ *	   of output waiting to be consumed by the test coordinator.
+ *
+ *	Producers write through the streams returned by stream(). Such a
+ *	stream collects the bytes of one PrintWriter flush (normally one
+ *	line) and commits them as a unit, so output of different streams
+ *	never interleaves within a line. A commit reserves its space by
+ *	advancing tail with a CAS, copies the bytes without any lock and
+ *	is published once the commits reserved before it are published.
+ *	A test class that prints through this.out uses a stream of its
+ *	worker (see ClientEngine.newScriptOut()) instead of lining up at
+ *	the lock of the shell's shared PrintWriter before it gets there.
+ *	The drain thread writes everything published since its last
+ *	round with at most two write() calls, so many small lines from
+ *	many workers become few large writes.
+ *
+ *	When the ring is full, normal output waits for space. Low
+ *	priority output (what test scripts print) waits as well, or is
+ *	dropped if the overflow policy is DROP; the drain thread then
+ *	reports how much was lost.
+ *
+ *	In the selector based server there is no drain thread. The I/O
+ *	thread of NioClientServer is told with the outputReady callback
+ *	when there is something to write and calls drainTo() when the
+ *	channel can take it.
+ *
+ *	Every stream has a FramedProtocol message type. Once the session
+ *	switched to the framed protocol with setFramed(), each line is
+ *	committed as a frame of that type instead of as text.
+ * ----
+ */
+package info.slony.clustertest.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+class OutputRing {
+	static final int		DEFAULT_CAPACITY = 1 << 20;
+	static final int		BLOCK = 0;
+	static final int		DROP = 1;
+
+	/* ----
+	 * How long stop() waits for the remaining output to be written.
+	 * ----
+	 */
+	static final long		STOP_TIMEOUT_MILLIS = 30000L;
+
+	private static Logger log = Logger.getLogger(OutputRing.class);
+
+	private final byte[]		ring;
+	private final int			mask;
+	private final OutputStream	destination;
+	private final Thread		drainThread;
+	private final Runnable		outputReady;	// Without drain thread
+	private ByteBuffer			pendingWarning = null;
+	private final AtomicLong	tail = new AtomicLong(0);	// Reserved up to
+	private volatile long		committed = 0;				// Published up to
+	private volatile long		head = 0;					// Written up to
+	private volatile boolean	drainWaiting = false;
+	private volatile boolean	stopped = false;
+	private volatile int		overflowPolicy = BLOCK;
+	private volatile boolean	framed = false;
+	private final Object		spaceLock = new Object();
+	private final AtomicInteger	spaceWaiters = new AtomicInteger(0);
+	private final AtomicLong	droppedBytes = new AtomicLong(0);
+	private final AtomicLong	droppedWrites = new AtomicLong(0);
+
+	OutputRing (OutputStream destination, int capacity, String name) {
+		if (capacity < 1024 || (capacity & (capacity - 1)) != 0) {
+			throw new IllegalArgumentException("ring capacity must be " +
+					"a power of two of at least 1024");
+		}
+		this.ring			= new byte[capacity];
+		this.mask			= capacity - 1;
+		this.destination	= destination;
+		this.outputReady	= null;
+		drainThread = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, name);
+		drainThread.setDaemon(true);
+		drainThread.start();
+	}
+
+	/* ----
+	 * A ring without drain thread. outputReady is called after a
+	 * commit when the last drainTo() had found the ring empty, so it
+	 * must not block.
+	 * ----
+	 */
+	OutputRing (int capacity, Runnable outputReady) {
+		if (capacity < 1024 || (capacity & (capacity - 1)) != 0) {
+			throw new IllegalArgumentException("ring capacity must be " +
+					"a power of two of at least 1024");
+		}
+		this.ring			= new byte[capacity];
+		this.mask			= capacity - 1;
+		this.destination	= null;
+		this.drainThread	= null;
+		this.outputReady	= outputReady;
+		this.drainWaiting	= true;
+	}
+
+	/* ----
+	 * stream()
+	 *
+	 *	A new OutputStream into the ring for messages of the given
+	 *	type. Like any OutputStream it must only be used by one thread
+	 *	at a time, which the PrintWriter around it takes care of.
+	 *	Closing it does nothing, the users of the output must not
+	 *	close it for all threads. In text mode every line is preceded
+	 *	by textPrefix, if there is one.
+	 * ----
+	 */
+	OutputStream
+	stream(final int type, final boolean lowPriority,
+			String textPrefix) {
+		final byte[] prefix = (textPrefix == null) ? null :
+				textPrefix.getBytes();
+
+		return new OutputStream() {
+			private final ByteArrayOutputStream pending =
+					new ByteArrayOutputStream(256);
+
+			public void
+			write(int b) {
+				pending.write(b);
+			}
+
+			public void
+			write(byte[] b, int off, int len)
+					throws IOException {
+				pending.write(b, off, len);
+				if (pending.size() >= ring.length / 2) {
+					flush();
+				}
+			}
+
+			public void
+			flush()
+					throws IOException {
+				if (pending.size() > 0) {
+					boolean asFrames = framed;
+					commit(encode(pending.toByteArray(), type, prefix,
+							asFrames), lowPriority, asFrames);
+					pending.reset();
+				}
+			}
+
+			public void
+			close() {
+			}
+		};
+	}
+
+	void
+	setOverflowPolicy(int policy) {
+		overflowPolicy = policy;
+	}
+
+	int
+	getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/* ----
+	 * setFramed()
+	 *
+	 *	Switch to the framed protocol. Everything committed before is
+	 *	still written as text.
+	 * ----
+	 */
+	void
+	setFramed(boolean framed) {
+		this.framed = framed;
+	}
+
+	boolean
+	isFramed() {
+		return framed;
+	}
+
+	/* ----
+	 * encode()
+	 *
+	 *	Turn the bytes of one flush into what goes into the ring: one
+	 *	frame per line in framed mode, lines that are longer than half
+	 *	the ring are cut into several frames. In text mode the bytes
+	 *	stay as they are, apart from the prefix.
+	 * ----
+	 */
+	private byte[]
+	encode(byte[] data, int type, byte[] prefix, boolean asFrames) {
+		ByteArrayOutputStream	result;
+		int						maxPayload = ring.length / 2 -
+									FramedProtocol.HEADER_SIZE;
+		int						start = 0;
+
+		if (!asFrames && prefix == null) {
+			return data;
+		}
+		result = new ByteArrayOutputStream(data.length + 64);
+		while (start < data.length) {
+			int end = start;
+			while (end < data.length && data[end] != '\n') {
+				end++;
+			}
+			if (asFrames) {
+				byte[] header = new byte[FramedProtocol.HEADER_SIZE];
+				int lineEnd = (end > start && data[end - 1] == '\r') ?
+						end - 1 : end;
+				int off = start;
+				do {
+					int len = Math.min(lineEnd - off, maxPayload);
+					FramedProtocol.putHeader(header, 0, type, len);
+					result.write(header, 0, header.length);
+					result.write(data, off, len);
+					off += len;
+				} while (off < lineEnd);
+			} else {
+				result.write(prefix, 0, prefix.length);
+				result.write(data, start,
+						Math.min(end + 1, data.length) - start);
+			}
+			start = end + 1;
+		}
+		return result.toByteArray();
+	}
+
+	/* ----
+	 * pieceLength()
+	 *
+	 *	How much of a unit that does not fit into the ring goes in at
+	 *	once. Frames are never cut.
+	 * ----
+	 */
+	private int
+	pieceLength(byte[] data, int off, boolean asFrames) {
+		int		len = 0;
+
+		if (!asFrames) {
+			return Math.min(data.length - off, ring.length);
+		}
+		while (off + len < data.length) {
+			int frame = FramedProtocol.HEADER_SIZE +
+					(((data[off + len + 1] & 0xff) << 24) |
+					 ((data[off + len + 2] & 0xff) << 16) |
+					 ((data[off + len + 3] & 0xff) << 8) |
+					  (data[off + len + 4] & 0xff));
+			if (len + frame > ring.length) {
+				break;
+			}
+			len += frame;
+		}
+		return len;
+	}
+
+	/* ----
+	 * commit()
+	 *
+	 *	Put the bytes into the ring as one unit, unless it is low
+	 *	priority output that does not fit while the policy is DROP.
+	 *	Units larger than the ring are written in pieces.
+	 * ----
+	 */
+	private void
+	commit(byte[] data, boolean lowPriority, boolean asFrames)
+			throws IOException {
+		int		off = 0;
+
+		while (off < data.length) {
+			int		len = pieceLength(data, off, asFrames);
+			long	start;
+
+			while (true) {
+				if (stopped) {
+					return;
+				}
+				start = tail.get();
+				if (start + len - head > ring.length) {
+					if (lowPriority && overflowPolicy == DROP) {
+						droppedBytes.addAndGet(data.length - off);
+						droppedWrites.incrementAndGet();
+						return;
+					}
+					waitForSpace(len);
+					continue;
+				}
+				if (tail.compareAndSet(start, start + len)) {
+					break;
+				}
+			}
+
+			int pos = (int)(start & mask);
+			int first = Math.min(len, ring.length - pos);
+			System.arraycopy(data, off, ring, pos, first);
+			System.arraycopy(data, off + first, ring, 0, len - first);
+
+			/* ----
+			 * Publish in reservation order. Copying is short, so a
+			 * commit only rarely has to wait for an earlier one.
+			 * ----
+			 */
+			while (committed != start) {
+				Thread.yield();
+			}
+			committed = start + len;
+			if (drainWaiting) {
+				wakeDrain();
+			}
+			off += len;
+		}
+	}
+
+	private void
+	waitForSpace(int len)
+			throws IOException {
+		spaceWaiters.incrementAndGet();
+		try {
+			synchronized (spaceLock) {
+				while (!stopped && tail.get() + len - head > ring.length) {
+					spaceLock.wait(100);
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while waiting for output space");
+		} finally {
+			spaceWaiters.decrementAndGet();
+		}
+	}
+
+	private void
+	wakeDrain() {
+		if (drainThread != null) {
+			LockSupport.unpark(drainThread);
+		} else {
+			drainWaiting = false;
+			outputReady.run();
+		}
+	}
+
+	private void
+	spaceFreed() {
+		if (spaceWaiters.get() > 0) {
+			synchronized (spaceLock) {
+				spaceLock.notifyAll();
+			}
+		}
+	}
+
+	/* ----
+	 * drain()
+	 *
+	 *	The loop of the drain thread. After stop() it writes what is
+	 *	still in the ring before closing the destination.
+	 * ----
+	 */
+	private void
+	drain() {
+		boolean		unflushed = false;
+
+		while (true) {
+			long	end = committed;
+			long	start = head;
+
+			if (end == start) {
+				if (unflushed) {
+					try {
+						destination.flush();
+					} catch (IOException e) {
+						log.error("error flushing output", e);
+					}
+					unflushed = false;
+				}
+				if (stopped && committed == tail.get()) {
+					break;
+				}
+				drainWaiting = true;
+				if (committed == head && !stopped) {
+					LockSupport.park(this);
+				}
+				drainWaiting = false;
+				continue;
+			}
+
+			int pos = (int)(start & mask);
+			int len = (int)(end - start);
+			int first = Math.min(len, ring.length - pos);
+			try {
+				destination.write(ring, pos, first);
+				if (first < len) {
+					destination.write(ring, 0, len - first);
+				}
+				unflushed = true;
+			} catch (IOException e) {
+				log.error("error writing output", e);
+			}
+			head = end;
+			spaceFreed();
+			byte[] warning = droppedWarning();
+			if (warning != null) {
+				try {
+					destination.write(warning);
+				} catch (IOException e) {
+					log.error("error writing output", e);
+				}
+			}
+		}
+
+		try {
+			destination.close();
+		} catch (IOException e) {
+			log.error("ioexception closing stream", e);
+		}
+	}
+
+	/* ----
+	 * drainTo()
+	 *
+	 *	Write as much as the non-blocking channel takes. Returns true
+	 *	if the ring is empty afterwards; the next commit then calls
+	 *	outputReady.
+	 * ----
+	 */
+	boolean
+	drainTo(WritableByteChannel channel)
+			throws IOException {
+		while (true) {
+			if (pendingWarning != null) {
+				channel.write(pendingWarning);
+				if (pendingWarning.hasRemaining()) {
+					return false;
+				}
+				pendingWarning = null;
+			}
+
+			long	end = committed;
+			long	start = head;
+
+			if (end == start) {
+				drainWaiting = true;
+				if (committed != head) {
+					drainWaiting = false;
+					continue;
+				}
+				return true;
+			}
+
+			int pos = (int)(start & mask);
+			int len = (int)Math.min(end - start, ring.length - pos);
+			int written = channel.write(ByteBuffer.wrap(ring, pos, len));
+			head = start + written;
+			spaceFreed();
+			if (written < len) {
+				return false;
+			}
+			if (head == end) {
+				byte[] warning = droppedWarning();
+				if (warning != null) {
+					pendingWarning = ByteBuffer.wrap(warning);
+				}
+			}
+		}
+	}
+
+	/* ----
+	 * isFinished()
+	 *
+	 *	True once a ring without drain thread is stopped and all its
+	 *	output is written.
+	 * ----
+	 */
+	boolean
+	isFinished() {
+		return stopped && committed == tail.get() && head == committed &&
+				pendingWarning == null;
+	}
+
+	/* ----
+	 * droppedWarning()
+	 *
+	 *	The message telling the receiver about dropped output, to be
+	 *	written between two units, or null.
+	 * ----
+	 */
+	private byte[]
+	droppedWarning() {
+		if (droppedWrites.get() == 0) {
+			return null;
+		}
+		long writes = droppedWrites.getAndSet(0);
+		long bytes = droppedBytes.getAndSet(0);
+		log.warn("dropped " + bytes + " bytes of script output");
+		String warning = "WARNING: client dropped " + writes +
+				" writes (" + bytes + " bytes) of script output";
+		try {
+			if (framed) {
+				ByteArrayOutputStream frame = new ByteArrayOutputStream();
+				FramedProtocol.writeFrame(frame, FramedProtocol.OUTPUT,
+						warning);
+				return frame.toByteArray();
+			}
+		} catch (IOException e) {
+			log.error("error encoding output", e);
+		}
+		return (warning + "\n").getBytes();
+	}
+
+	/* ----
+	 * stop()
+	 *
+	 *	Write the remaining output, then close the destination.
+	 *	Without drain thread it only tells the I/O thread, which
+	 *	closes the channel once isFinished().
+	 * ----
+	 */
+	void
+	stop() {
+		stopped = true;
+		synchronized (spaceLock) {
+			spaceLock.notifyAll();
+		}
+		if (drainThread == null) {
+			outputReady.run();
+			return;
+		}
+		LockSupport.unpark(drainThread);
+		try {
+			drainThread.join(STOP_TIMEOUT_MILLIS);
+		} catch (InterruptedException e) {
+		}
+		if (drainThread.isAlive()) {
+			log.warn("output not written within " + STOP_TIMEOUT_MILLIS +
+					" ms after stop");
+		}
+	}
+}
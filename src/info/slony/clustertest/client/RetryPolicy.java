@@ -0,0 +1,186 @@
+/* ----
+ * RetryPolicy
+ *
+ *	Error classification and retry settings of a ClientGroup.
+ *
+ *	A failed transaction is classified by the SQLState of the first
+ *	SQLException found in the exception, looking through the
+ *	wrappers Rhino puts around Java exceptions:
+ *
+ *		SERIALIZATION	40001 serialization failure
+ *		DEADLOCK		40P01 deadlock detected
+ *		CONNECTION		class 08 and the 57P0x admin shutdowns
+ *		OTHER			everything else
+ *
+ *	Transactions failing with one of the retryable classes are run
+ *	again up to maxRetries times. The n-th retry waits a random time
+ *	between half and all of min(maxMillis, baseMillis * 2^n), so
+ *	that workers that collided do not collide again in lock step.
+ * ----
+ */
+package info.slony.clustertest.client;
+
+import java.sql.SQLException;
+
+import org.mozilla.javascript.JavaScriptException;
+import org.mozilla.javascript.WrappedException;
+import org.mozilla.javascript.Wrapper;
+
+class RetryPolicy {
+	static final int	SERIALIZATION = 0;
+	static final int	DEADLOCK = 1;
+	static final int	CONNECTION = 2;
+	static final int	OTHER = 3;
+	static final int	NUM_CLASSES = 4;
+	static final String[] CLASS_NAMES = {
+		"serialization", "deadlock", "connection", "other"
+	};
+
+	private static final int	MAX_CAUSES = 16;
+
+	private final int		maxRetries;
+	private final long		baseMillis;
+	private final long		maxMillis;
+	private final boolean[]	retryOn = new boolean[NUM_CLASSES];
+
+	/* ----
+	 * Parse the comma separated list of error classes to retry.
+	 * ----
+	 */
+	RetryPolicy (int maxRetries, long baseMillis, long maxMillis,
+			String classes)
+			throws Exception {
+		if (maxRetries < 0 || baseMillis < 0 || maxMillis < baseMillis) {
+			throw new Exception("retry needs retries >= 0 and " +
+					"0 <= base <= max");
+		}
+		this.maxRetries	= maxRetries;
+		this.baseMillis	= baseMillis;
+		this.maxMillis	= maxMillis;
+
+		String[] names = classes.split(",");
+		for (int i = 0; i < names.length; i++) {
+			String name = names[i].trim();
+			if (name.length() == 0) {
+				continue;
+			}
+			int cls = classOf(name);
+			if (cls < 0) {
+				throw new Exception("unknown error class " + name +
+						" - expected serialization, deadlock, connection " +
+						"or other");
+			}
+			retryOn[cls] = true;
+		}
+	}
+
+	static int
+	classOf(String name) {
+		for (int i = 0; i < NUM_CLASSES; i++) {
+			if (CLASS_NAMES[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/* ----
+	 * classify()
+	 *
+	 *	Find the error class of a transaction failure.
+	 * ----
+	 */
+	static int
+	classify(Throwable t) {
+		for (int depth = 0; t != null && depth < MAX_CAUSES; depth++) {
+			if (t instanceof SQLException) {
+				SQLException sqle = (SQLException)t;
+				for (int n = 0; sqle != null && n < MAX_CAUSES; n++) {
+					int cls = classifyState(sqle.getSQLState());
+					if (cls != OTHER) {
+						return cls;
+					}
+					sqle = sqle.getNextException();
+				}
+			}
+
+			Throwable next = null;
+			if (t instanceof WrappedException) {
+				next = ((WrappedException)t).getWrappedException();
+			} else if (t instanceof JavaScriptException) {
+				Object value = ((JavaScriptException)t).getValue();
+				if (value instanceof Wrapper) {
+					value = ((Wrapper)value).unwrap();
+				}
+				if (value instanceof Throwable) {
+					next = (Throwable)value;
+				}
+			}
+			if (next == null || next == t) {
+				next = t.getCause();
+			}
+			t = next;
+		}
+		return OTHER;
+	}
+
+	static int
+	classifyState(String state) {
+		if (state == null) {
+			return OTHER;
+		}
+		if (state.equals("40001")) {
+			return SERIALIZATION;
+		}
+		if (state.equals("40P01")) {
+			return DEADLOCK;
+		}
+		if (state.startsWith("08") || state.equals("57P01") ||
+				state.equals("57P02") || state.equals("57P03")) {
+			return CONNECTION;
+		}
+		return OTHER;
+	}
+
+	/* ----
+	 * shouldRetry()
+	 *
+	 *	Whether to run a transaction again that failed with the given
+	 *	class after retries earlier retries.
+	 * ----
+	 */
+	boolean
+	shouldRetry(int cls, int retries) {
+		return retryOn[cls] && retries < maxRetries;
+	}
+
+	/* ----
+	 * backoffMillis()
+	 *
+	 *	The time to wait before the given retry (counted from 0).
+	 * ----
+	 */
+	long
+	backoffMillis(int retry, FastRandom random) {
+		long delay = maxMillis;
+		if (retry < 62 && (baseMillis << retry) >>> retry == baseMillis) {
+			delay = Math.min(maxMillis, baseMillis << retry);
+		}
+		return delay / 2 + (long)(random.nextDouble() * (delay - delay / 2 + 1));
+	}
+
+	@Override public String
+	toString() {
+		StringBuilder classes = new StringBuilder();
+		for (int i = 0; i < NUM_CLASSES; i++) {
+			if (retryOn[i]) {
+				if (classes.length() > 0) {
+					classes.append(',');
+				}
+				classes.append(CLASS_NAMES[i]);
+			}
+		}
+		return maxRetries + " retries of " + classes + " after " +
+				baseMillis + " to " + maxMillis + " ms";
+	}
+}
@@ -0,0 +1,172 @@
+/* ----
+ * ScriptCache
+ *
+ *	Compiled scripts of the client shell, shared by all sessions of
+ *	the client JVM.
+ *
+ *	Test coordinators send the same class definitions to a client
+ *	for job after job. With the optimizing compiler every compile
+ *	generates and loads new Java classes, so compiled Script objects
+ *	are kept (a Script does not depend on the scope it runs in) and
+ *	reused when the same source arrives again at the same line with
+ *	the same optimization level. The least recently used scripts are
+ *	dropped once MAX_SCRIPTS are cached.
+ *
+ *	Whole scripts sent by hash (SCRIPT_HASH of FramedProtocol) are
+ *	kept as the list of units the shell evaluated them in, so a
+ *	session that gets the hash again needs neither the source nor a
+ *	parse. At most MAX_BODIES of them are kept, again dropping the
+ *	least recently used.
+ * ----
+ */
+package info.slony.clustertest.client;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
+
+class ScriptCache {
+	static final int	MAX_SCRIPTS = 256;
+	static final int	MAX_BODIES = 64;
+
+	/* ----
+	 * One unit of a cached script: its source and what it was
+	 * compiled to at which optimization level. script is null if it
+	 * did not compile, so the error is reported again.
+	 * ----
+	 */
+	static class Unit {
+		final String	source;
+		final int		numLines;
+		final int		optimizationLevel;
+		final Script	script;
+
+		Unit (String source, int numLines, int optimizationLevel,
+				Script script) {
+			this.source				= source;
+			this.numLines			= numLines;
+			this.optimizationLevel	= optimizationLevel;
+			this.script				= script;
+		}
+	}
+
+	static class Body {
+		final List<Unit>	units = new ArrayList<Unit>();
+	}
+
+	private static final Map<String,Body>	bodies =
+			new LinkedHashMap<String,Body>(16, 0.75f, true) {
+				static final long serialVersionUID = 1L;
+
+				protected boolean
+				removeEldestEntry(Map.Entry<String,Body> eldest) {
+					return size() > MAX_BODIES;
+				}
+			};
+	private static long		bodyHits = 0;
+	private static long		bodyMisses = 0;
+
+	private static final Map<String,Script>	scripts =
+			new LinkedHashMap<String,Script>(64, 0.75f, true) {
+				static final long serialVersionUID = 1L;
+
+				protected boolean
+				removeEldestEntry(Map.Entry<String,Script> eldest) {
+					return size() > MAX_SCRIPTS;
+				}
+			};
+	private static long		hits = 0;
+	private static long		misses = 0;
+
+	/* ----
+	 * compile()
+	 *
+	 *	Return the compiled form of source, compiling it with the
+	 *	given context only if it is not cached yet.
+	 * ----
+	 */
+	static Script
+	compile(Context cx, String source, String sourceName, int lineno) {
+		String	key = cx.getOptimizationLevel() + ":" + sourceName + ":" +
+						lineno + ":" + source;
+		Script	script;
+
+		synchronized (scripts) {
+			script = scripts.get(key);
+			if (script != null) {
+				hits++;
+				return script;
+			}
+			misses++;
+		}
+
+		/* ----
+		 * Compile outside the lock. Two sessions compiling the same
+		 * source at once both do the work, the last one is kept.
+		 * ----
+		 */
+		script = cx.compileString(source, sourceName, lineno, null);
+		synchronized (scripts) {
+			scripts.put(key, script);
+		}
+		return script;
+	}
+
+	/* ----
+	 * getBody() & putBody()
+	 *
+	 *	The units of the script with the given hash, or null.
+	 * ----
+	 */
+	static Body
+	getBody(String hash) {
+		synchronized (bodies) {
+			Body body = bodies.get(hash);
+			if (body != null) {
+				bodyHits++;
+			} else {
+				bodyMisses++;
+			}
+			return body;
+		}
+	}
+
+	static void
+	putBody(String hash, Body body) {
+		synchronized (bodies) {
+			bodies.put(hash, body);
+		}
+	}
+
+	static long
+	getHits() {
+		synchronized (scripts) {
+			return hits;
+		}
+	}
+
+	static long
+	getMisses() {
+		synchronized (scripts) {
+			return misses;
+		}
+	}
+
+	static long
+	getBodyHits() {
+		synchronized (bodies) {
+			return bodyHits;
+		}
+	}
+
+	static long
+	getBodyMisses() {
+		synchronized (bodies) {
+			return bodyMisses;
+		}
+	}
+}
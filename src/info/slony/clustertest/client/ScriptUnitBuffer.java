@@ -0,0 +1,179 @@
+/* ----
+ * ScriptUnitBuffer
+ *
+ *	Collects the lines of JS the shell receives until they form a
+ *	compilable unit.
+ *
+ *	Asking Rhino after every line whether the buffer compiles parses
+ *	the whole buffer each time, which is quadratic in the length of a
+ *	multi line function or class definition. A small scanner follows
+ *	brackets, strings, comments and regular expression literals as
+ *	the lines come in, and Rhino is only asked when all brackets are
+ *	closed. Should the scanner be fooled, Rhino is still asked after
+ *	1, 2, 4, 8 ... further lines, so a unit is never held back for
+ *	long and the cost stays linear.
+ * ----
+ */
+package info.slony.clustertest.client;
+
+import org.mozilla.javascript.Context;
+
+class ScriptUnitBuffer {
+	private static final String	REGEX_PRECEDERS = "(,=:[!&|?{};+-*%<>~^";
+
+	private final StringBuilder	buffer = new StringBuilder();
+	private int					numLines = 0;
+	private int					depth = 0;
+	private boolean				inBlockComment = false;
+	private char				lastSignificant = 0;
+	private int					uncheckedLines = 0;
+	private int					nextFallback = 1;
+
+	/* ----
+	 * addLine()
+	 *
+	 *	Add one line without its newline. Returns true if the buffer
+	 *	now holds a compilable unit.
+	 * ----
+	 */
+	boolean
+	addLine(Context cx, String line) {
+		buffer.append(line).append('\n');
+		numLines++;
+		scan(line);
+
+		if (depth > 0 || inBlockComment) {
+			if (++uncheckedLines < nextFallback) {
+				return false;
+			}
+			nextFallback *= 2;
+		}
+		uncheckedLines = 0;
+		return cx.stringIsCompilableUnit(buffer.toString());
+	}
+
+	boolean
+	isEmpty() {
+		return buffer.length() == 0;
+	}
+
+	String
+	getText() {
+		return buffer.toString();
+	}
+
+	int
+	getNumLines() {
+		return numLines;
+	}
+
+	void
+	reset() {
+		buffer.setLength(0);
+		numLines = 0;
+		depth = 0;
+		inBlockComment = false;
+		lastSignificant = 0;
+		uncheckedLines = 0;
+		nextFallback = 1;
+	}
+
+	/* ----
+	 * scan()
+	 *
+	 *	Track the bracket depth over one more line. Strings and
+	 *	regular expressions do not continue over line ends here.
+	 * ----
+	 */
+	private void
+	scan(String line) {
+		int		len = line.length();
+		int		i = 0;
+
+		while (i < len) {
+			char c = line.charAt(i);
+
+			if (inBlockComment) {
+				if (c == '*' && i + 1 < len && line.charAt(i + 1) == '/') {
+					inBlockComment = false;
+					i++;
+				}
+				i++;
+				continue;
+			}
+
+			switch (c) {
+				case '\'':
+				case '"':
+					i = skipQuoted(line, i + 1, c);
+					lastSignificant = c;
+					continue;
+
+				case '/':
+					if (i + 1 < len && line.charAt(i + 1) == '/') {
+						return;
+					}
+					if (i + 1 < len && line.charAt(i + 1) == '*') {
+						inBlockComment = true;
+						i += 2;
+						continue;
+					}
+					if (lastSignificant == 0 ||
+							REGEX_PRECEDERS.indexOf(lastSignificant) >= 0) {
+						i = skipRegex(line, i + 1);
+						lastSignificant = '/';
+						continue;
+					}
+					break;
+
+				case '(':
+				case '[':
+				case '{':
+					depth++;
+					break;
+
+				case ')':
+				case ']':
+				case '}':
+					depth--;
+					break;
+			}
+			if (!Character.isWhitespace(c)) {
+				lastSignificant = c;
+			}
+			i++;
+		}
+	}
+
+	private static int
+	skipQuoted(String line, int i, char quote) {
+		while (i < line.length()) {
+			char c = line.charAt(i++);
+			if (c == '\\') {
+				i++;
+			} else if (c == quote) {
+				break;
+			}
+		}
+		return i;
+	}
+
+	private static int
+	skipRegex(String line, int i) {
+		boolean inClass = false;
+
+		while (i < line.length()) {
+			char c = line.charAt(i++);
+			if (c == '\\') {
+				i++;
+			} else if (c == '[') {
+				inClass = true;
+			} else if (c == ']') {
+				inClass = false;
+			} else if (c == '/' && !inClass) {
+				break;
+			}
+		}
+		return i;
+	}
+}
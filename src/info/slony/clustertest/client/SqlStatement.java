@@ -0,0 +1,460 @@
+/* ----
+ * SqlStatement
+ *
+ *	A named SQL statement for test scripts, created with
+ *	myEngine.sql(name, sql):
+ *
+ *		var upd = myEngine.sql("updAccounts",
+ *				"UPDATE accounts SET abalance = abalance + ? WHERE aid = ?");
+ *		upd.exec(delta, aid);				// update count
+ *		var bal = sel.queryInt(aid);		// first column of the first
+ *											// row, null if there is none
+ *
+ *	The statement runs on the connection of the calling worker, see
+ *	ClientEngine.getConnection(). It is prepared once per connection
+ *	and kept until the connection leaves the pool or is replaced with
+ *	setConnection().
+ *
+ *	The handle is a JS object with native functions, so a call does
+ *	not go through the reflective method lookup and argument
+ *	conversion of LiveConnect. Parameters are bound by their JS type:
+ *	numbers with an integer value as int or bigint, other numbers as
+ *	double precision, strings as varchar, booleans as boolean, null
+ *	and undefined as NULL, JS dates as timestamps. Java objects are
+ *	left to setObject(), anything else is bound as its string.
+ *
+ *	Every execution is timed into a latency histogram of the
+ *	connection, read with the getSqlStats() shell function.
+ *
+ *	Statements, their ids and the per connection caches belong to
+ *	the Registry of one ClientEngine and go away with its shutdown(),
+ *	so a long running client does not keep what finished jobs
+ *	defined.
+ * ----
+ */
+package info.slony.clustertest.client;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+
+class SqlStatement extends ScriptableObject {
+	static final long serialVersionUID = 1L;
+
+	private static final int	EXEC = 0;
+	private static final int	QUERY_INT = 1;
+
+	/* ----
+	 * The prepared statements and histograms of one connection,
+	 * indexed by statement id. Only the thread currently using the
+	 * connection touches them.
+	 * ----
+	 */
+	private static class StatementCache {
+		final Connection		conn;
+		Registry				owner;		// null once dropped
+		PreparedStatement[]		statements;
+		LatencyHistogram[]		histograms;
+
+		StatementCache (Connection conn, Registry owner, int size) {
+			this.conn		= conn;
+			this.owner		= owner;
+			this.statements	= new PreparedStatement[size];
+			this.histograms	= new LatencyHistogram[size];
+		}
+	}
+
+	private static ThreadLocal<StatementCache> lastCache =
+			new ThreadLocal<StatementCache>();
+
+	private final ClientEngine	engine;
+	private final Registry		registry;
+	private final String		name;
+	private final String		sql;
+	private final int			id;
+	private final BaseFunction	execFunc;
+	private final BaseFunction	queryIntFunc;
+	private final LatencyHistogram	retired = new LatencyHistogram();
+
+	private SqlStatement (ClientEngine engine, Registry registry, int id,
+			String name, String sql) {
+		this.engine		= engine;
+		this.registry	= registry;
+		this.id			= id;
+		this.name		= name;
+		this.sql		= sql;
+		execFunc	= new Method(EXEC, "exec");
+		queryIntFunc = new Method(QUERY_INT, "queryInt");
+	}
+
+	/* ----
+	 * Registry
+	 *
+	 *	The statements of one ClientEngine, by name and by id, and
+	 *	their caches on the connections its workers used. Ids count
+	 *	from 0 in every engine, so the arrays of a connection only
+	 *	grow to the number of statements its own job defined.
+	 * ----
+	 */
+	static class Registry {
+		private final Map<String,SqlStatement> byName =
+				new LinkedHashMap<String,SqlStatement>();
+		private final List<SqlStatement> byId =
+				new ArrayList<SqlStatement>();
+		private final Map<Connection,StatementCache> caches =
+				new IdentityHashMap<Connection,StatementCache>();
+
+		/* ----
+		 * define()
+		 *
+		 *	The statement of the given name, created on first use.
+		 * ----
+		 */
+		synchronized SqlStatement
+		define(ClientEngine engine, String name, String sql)
+				throws Exception {
+			SqlStatement stmt = byName.get(name);
+			if (stmt == null) {
+				stmt = new SqlStatement(engine, this, byId.size(), name, sql);
+				byName.put(name, stmt);
+				byId.add(stmt);
+			} else if (!stmt.getSql().equals(sql)) {
+				throw new Exception("sql statement " + name +
+						" is already defined as: " + stmt.getSql());
+			}
+			return stmt;
+		}
+
+		synchronized SqlStatement[]
+		getAll() {
+			return byName.values().toArray(new SqlStatement[byName.size()]);
+		}
+
+		/* ----
+		 * cacheOf()
+		 *
+		 *	The statement cache of a connection. A worker keeps using
+		 *	the same connection, or one of a few pooled ones, so the
+		 *	last one it used is checked first without locking.
+		 * ----
+		 */
+		private StatementCache
+		cacheOf(Connection conn) {
+			StatementCache cache = lastCache.get();
+			if (cache != null && cache.conn == conn && cache.owner == this) {
+				return cache;
+			}
+			synchronized (this) {
+				cache = caches.get(conn);
+				if (cache == null) {
+					cache = new StatementCache(conn, this,
+							Math.max(byId.size(), 1));
+					caches.put(conn, cache);
+				}
+			}
+			lastCache.set(cache);
+			return cache;
+		}
+
+		/* ----
+		 * forget()
+		 *
+		 *	Close the statements prepared on a connection that is
+		 *	going away and keep its timings.
+		 * ----
+		 */
+		void
+		forget(Connection conn) {
+			StatementCache cache;
+			SqlStatement[] statements;
+
+			synchronized (this) {
+				cache = caches.remove(conn);
+				if (cache == null) {
+					return;
+				}
+				cache.owner = null;
+				statements = byId.toArray(new SqlStatement[byId.size()]);
+			}
+			if (lastCache.get() == cache) {
+				lastCache.remove();
+			}
+			for (int i = 0; i < cache.statements.length; i++) {
+				if (cache.histograms[i] != null) {
+					SqlStatement s = statements[i];
+					synchronized (s.retired) {
+						s.retired.add(cache.histograms[i]);
+					}
+				}
+				if (cache.statements[i] != null) {
+					try {
+						cache.statements[i].close();
+					} catch (SQLException e) {
+					}
+				}
+			}
+		}
+
+		/* ----
+		 * clear()
+		 *
+		 *	Close and drop all statements and caches, for the shutdown
+		 *	of the engine. A cache another thread still remembers as
+		 *	its last one no longer refers back to the engine.
+		 * ----
+		 */
+		void
+		clear() {
+			List<StatementCache> dropped;
+
+			synchronized (this) {
+				dropped = new ArrayList<StatementCache>(caches.values());
+				caches.clear();
+				byName.clear();
+				byId.clear();
+			}
+			for (StatementCache cache : dropped) {
+				for (int i = 0; i < cache.statements.length; i++) {
+					if (cache.statements[i] != null) {
+						try {
+							cache.statements[i].close();
+						} catch (SQLException e) {
+						}
+					}
+				}
+				cache.owner = null;
+				cache.statements = new PreparedStatement[0];
+				cache.histograms = new LatencyHistogram[0];
+			}
+			lastCache.remove();
+		}
+	}
+
+	public String
+	getClassName() {
+		return "SqlStatement";
+	}
+
+	String
+	getName() {
+		return name;
+	}
+
+	String
+	getSql() {
+		return sql;
+	}
+
+	public Object
+	get(String prop, Scriptable start) {
+		if (prop.equals("exec")) {
+			return execFunc;
+		}
+		if (prop.equals("queryInt")) {
+			return queryIntFunc;
+		}
+		if (prop.equals("name")) {
+			return name;
+		}
+		if (prop.equals("sql")) {
+			return sql;
+		}
+		return super.get(prop, start);
+	}
+
+	public Object
+	getDefaultValue(Class<?> hint) {
+		return "[SqlStatement " + name + "]";
+	}
+
+	/* ----
+	 * Method
+	 *
+	 *	exec() and queryInt() of one statement.
+	 * ----
+	 */
+	private class Method extends BaseFunction {
+		static final long serialVersionUID = 1L;
+
+		private final int		method;
+		private final String	methodName;
+
+		Method (int method, String methodName) {
+			this.method		= method;
+			this.methodName	= methodName;
+		}
+
+		public String
+		getFunctionName() {
+			return methodName;
+		}
+
+		public Object
+		call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+			try {
+				return execute(method, args);
+			} catch (SQLException e) {
+				throw Context.throwAsScriptRuntimeEx(e);
+			}
+		}
+
+		public Scriptable
+		construct(Context cx, Scriptable scope, Object[] args) {
+			throw Context.reportRuntimeError(methodName +
+					"() is not a constructor");
+		}
+	}
+
+	/* ----
+	 * execute()
+	 *
+	 *	Bind the arguments and run the statement on the connection of
+	 *	the calling worker.
+	 * ----
+	 */
+	private Object
+	execute(int method, Object[] args)
+			throws SQLException {
+		StatementCache		cache = registry.cacheOf(engine.getConnection());
+		PreparedStatement	stmt = prepare(cache);
+		LatencyHistogram	histogram = cache.histograms[id];
+		long				start = System.nanoTime();
+
+		try {
+			stmt.clearParameters();
+			for (int i = 0; i < args.length; i++) {
+				bind(stmt, i + 1, args[i]);
+			}
+			Object result;
+			if (method == EXEC) {
+				result = Integer.valueOf(stmt.executeUpdate());
+			} else {
+				ResultSet rs = stmt.executeQuery();
+				try {
+					result = null;
+					if (rs.next()) {
+						int value = rs.getInt(1);
+						if (!rs.wasNull()) {
+							result = Integer.valueOf(value);
+						}
+					}
+				} finally {
+					rs.close();
+				}
+			}
+			histogram.record((System.nanoTime() - start) / 1000L);
+			return result;
+		} catch (SQLException e) {
+			histogram.recordError();
+			throw e;
+		}
+	}
+
+	private PreparedStatement
+	prepare(StatementCache cache)
+			throws SQLException {
+		if (id >= cache.statements.length) {
+			int size = Math.max(id + 1, cache.statements.length * 2);
+			PreparedStatement[] s = new PreparedStatement[size];
+			LatencyHistogram[] h = new LatencyHistogram[size];
+			System.arraycopy(cache.statements, 0, s, 0,
+					cache.statements.length);
+			System.arraycopy(cache.histograms, 0, h, 0,
+					cache.histograms.length);
+			cache.statements = s;
+			cache.histograms = h;
+		}
+		PreparedStatement stmt = cache.statements[id];
+		if (stmt == null) {
+			stmt = cache.conn.prepareStatement(sql);
+			if (cache.histograms[id] == null) {
+				cache.histograms[id] = new LatencyHistogram();
+			}
+			cache.statements[id] = stmt;
+		}
+		return stmt;
+	}
+
+	/* ----
+	 * bind()
+	 *
+	 *	Set one parameter with the setter matching its JS type.
+	 * ----
+	 */
+	private static void
+	bind(PreparedStatement stmt, int index, Object value)
+			throws SQLException {
+		if (value instanceof String) {
+			stmt.setString(index, (String)value);
+		} else if (value instanceof Integer) {
+			stmt.setInt(index, ((Integer)value).intValue());
+		} else if (value instanceof Number) {
+			double d = ((Number)value).doubleValue();
+			if (d == (int)d) {
+				stmt.setInt(index, (int)d);
+			} else if (d == (long)d && Math.abs(d) < 9007199254740992.0) {
+				stmt.setLong(index, (long)d);
+			} else {
+				stmt.setDouble(index, d);
+			}
+		} else if (value == null || value instanceof Undefined) {
+			stmt.setNull(index, Types.NULL);
+		} else if (value instanceof Boolean) {
+			stmt.setBoolean(index, ((Boolean)value).booleanValue());
+		} else if (value instanceof Wrapper) {
+			Object obj = ((Wrapper)value).unwrap();
+			if (obj instanceof Date && !(obj instanceof java.sql.Date ||
+					obj instanceof java.sql.Time || obj instanceof Timestamp)) {
+				obj = new Timestamp(((Date)obj).getTime());
+			}
+			stmt.setObject(index, obj);
+		} else if (value instanceof Scriptable &&
+				"Date".equals(((Scriptable)value).getClassName())) {
+			stmt.setTimestamp(index, new Timestamp(
+					(long)Context.toNumber(value)));
+		} else {
+			stmt.setString(index, Context.toString(value));
+		}
+	}
+
+	/* ----
+	 * collectStats()
+	 *
+	 *	The timings of this statement on all connections, past and
+	 *	present.
+	 * ----
+	 */
+	LatencyHistogram
+	collectStats() {
+		LatencyHistogram result;
+
+		synchronized (retired) {
+			result = retired.copy();
+		}
+		synchronized (registry) {
+			for (StatementCache cache : registry.caches.values()) {
+				if (id < cache.histograms.length &&
+						cache.histograms[id] != null) {
+					result.add(cache.histograms[id]);
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,297 @@
+/* ----
+ * ThinkTime
+ *
+ *	The distribution of the pause a ClientGroup worker takes between
+ *	the starts of two transactions (the transaction's own run time is
+ *	taken out of the pause).
+ *
+ *	A think time is given as a JS object, all times in milliseconds:
+ *
+ *		{dist:"uniform", min:50, max:150}
+ *		{dist:"fixed", value:100}
+ *		{dist:"exponential", mean:100}
+ *		{dist:"normal", mean:100, sd:20}
+ *		{dist:"lognormal", mean:100, sd:80}
+ *			mean and sd are those of the resulting times.
+ *		{dist:"empirical", file:"think.txt"}
+ *			A histogram file on the client, one "<ms> <weight>" line
+ *			per bucket in ascending order, "#" starts a comment. A
+ *			bucket covers the range above the previous line's value
+ *			up to its own, the first one only its own value.
+ *
+ *	Every distribution takes an optional max that cuts off its tail.
+ *	Negative samples count as 0.
+ * ----
+ */
+package info.slony.clustertest.client;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+
+class ThinkTime {
+	private static final int	UNIFORM = 0;
+	private static final int	FIXED = 1;
+	private static final int	EXPONENTIAL = 2;
+	private static final int	NORMAL = 3;
+	private static final int	LOGNORMAL = 4;
+	private static final int	EMPIRICAL = 5;
+	private static final String[] DIST_NAMES = {
+		"uniform", "fixed", "exponential", "normal", "lognormal", "empirical"
+	};
+
+	private final int		dist;
+	private double			a;				// min, value, mean or mu
+	private double			b;				// max, sd or sigma
+	private double			max = Double.POSITIVE_INFINITY;
+	private double[]		bounds;			// Empirical bucket bounds
+	private double[]		cumulative;		// ... and cumulative weights
+	private String			description;
+
+	private ThinkTime (int dist) {
+		this.dist = dist;
+	}
+
+	/* ----
+	 * uniform()
+	 *
+	 *	What setSleep() uses: evenly distributed in [min, max].
+	 * ----
+	 */
+	static ThinkTime
+	uniform(double minMs, double maxMs) {
+		ThinkTime t = new ThinkTime(UNIFORM);
+		t.a = minMs;
+		t.b = maxMs;
+		t.description = "uniform " + minMs + " to " + maxMs + " ms";
+		return t;
+	}
+
+	/* ----
+	 * Build a think time from its JS description.
+	 * ----
+	 */
+	static ThinkTime
+	fromSpec(Scriptable spec)
+			throws Exception {
+		Object	d = ScriptableObject.getProperty(spec, "dist");
+		String	name = (d instanceof String) ? (String)d : null;
+		int		kind = -1;
+
+		for (int i = 0; i < DIST_NAMES.length && name != null; i++) {
+			if (DIST_NAMES[i].equals(name)) {
+				kind = i;
+			}
+		}
+		if (kind < 0) {
+			throw new Exception("think time needs a dist of uniform, fixed, " +
+					"exponential, normal, lognormal or empirical");
+		}
+
+		ThinkTime t;
+		double max = getNumber(spec, "max", Double.POSITIVE_INFINITY);
+		switch (kind) {
+			case UNIFORM:
+				t = uniform(getRequired(spec, "min"), getRequired(spec, "max"));
+				if (t.b < t.a) {
+					throw new Exception("uniform think time needs min <= max");
+				}
+				return t;
+
+			case FIXED:
+				t = new ThinkTime(FIXED);
+				t.a = getRequired(spec, "value");
+				t.description = "fixed " + t.a + " ms";
+				break;
+
+			case EXPONENTIAL:
+				t = new ThinkTime(EXPONENTIAL);
+				t.a = getRequired(spec, "mean");
+				t.description = "exponential mean " + t.a + " ms";
+				break;
+
+			case NORMAL:
+				t = new ThinkTime(NORMAL);
+				t.a = getRequired(spec, "mean");
+				t.b = getRequired(spec, "sd");
+				t.description = "normal mean " + t.a + " sd " + t.b + " ms";
+				break;
+
+			case LOGNORMAL: {
+				double mean = getRequired(spec, "mean");
+				double sd = getRequired(spec, "sd");
+				if (mean <= 0.0) {
+					throw new Exception("lognormal think time needs " +
+							"a positive mean");
+				}
+				t = new ThinkTime(LOGNORMAL);
+				double sigma2 = Math.log(1.0 + (sd * sd) / (mean * mean));
+				t.a = Math.log(mean) - sigma2 / 2.0;
+				t.b = Math.sqrt(sigma2);
+				t.description = "lognormal mean " + mean + " sd " + sd + " ms";
+				break;
+			}
+
+			default: {
+				Object f = ScriptableObject.getProperty(spec, "file");
+				if (!(f instanceof String)) {
+					throw new Exception("empirical think time needs a file");
+				}
+				t = new ThinkTime(EMPIRICAL);
+				t.readHistogram((String)f);
+				t.description = "empirical from " + f;
+				break;
+			}
+		}
+		if (t.a < 0.0 || t.b < 0.0) {
+			throw new Exception("think time settings cannot be negative");
+		}
+		t.max = max;
+		if (max != Double.POSITIVE_INFINITY) {
+			t.description += " max " + max + " ms";
+		}
+		return t;
+	}
+
+	/* ----
+	 * nextNanos()
+	 *
+	 *	Draw the next think time in nanoseconds.
+	 * ----
+	 */
+	long
+	nextNanos(FastRandom random) {
+		double ms;
+
+		switch (dist) {
+			case UNIFORM:
+				ms = a + random.nextDouble() * (b - a);
+				break;
+			case FIXED:
+				ms = a;
+				break;
+			case EXPONENTIAL:
+				ms = a * random.nextExponential();
+				break;
+			case NORMAL:
+				ms = a + b * random.nextGaussian();
+				break;
+			case LOGNORMAL:
+				ms = Math.exp(a + b * random.nextGaussian());
+				break;
+			default:
+				ms = sampleHistogram(random);
+				break;
+		}
+		if (ms > max) {
+			ms = max;
+		}
+		if (!(ms > 0.0)) {
+			return 0;
+		}
+		return (long)(ms * 1000000.0);
+	}
+
+	@Override public String
+	toString() {
+		return description;
+	}
+
+	private double
+	sampleHistogram(FastRandom random) {
+		double	u = random.nextDouble() * cumulative[cumulative.length - 1];
+		int		lo = 0;
+		int		hi = cumulative.length - 1;
+
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (u < cumulative[mid]) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		double low = (lo == 0) ? bounds[0] : bounds[lo - 1];
+		return low + random.nextDouble() * (bounds[lo] - low);
+	}
+
+	private void
+	readHistogram(String fileName)
+			throws Exception {
+		List<double[]>	buckets = new ArrayList<double[]>();
+		BufferedReader	in = new BufferedReader(new FileReader(fileName));
+		String			line;
+		int				lineno = 0;
+		double			total = 0.0;
+
+		try {
+			while ((line = in.readLine()) != null) {
+				lineno++;
+				int hash = line.indexOf('#');
+				if (hash >= 0) {
+					line = line.substring(0, hash);
+				}
+				line = line.trim();
+				if (line.length() == 0) {
+					continue;
+				}
+				String[] fields = line.split("[\\s,]+");
+				if (fields.length != 2) {
+					throw new Exception(fileName + ":" + lineno +
+							": expected <ms> <weight>");
+				}
+				double value = Double.parseDouble(fields[0]);
+				double weight = Double.parseDouble(fields[1]);
+				if (value < 0.0 || weight < 0.0) {
+					throw new Exception(fileName + ":" + lineno +
+							": negative value or weight");
+				}
+				if (!buckets.isEmpty() &&
+						value <= buckets.get(buckets.size() - 1)[0]) {
+					throw new Exception(fileName + ":" + lineno +
+							": values must be ascending");
+				}
+				total += weight;
+				buckets.add(new double[] {value, total});
+			}
+		} finally {
+			in.close();
+		}
+		if (total <= 0.0) {
+			throw new Exception(fileName + ": histogram is empty");
+		}
+
+		bounds = new double[buckets.size()];
+		cumulative = new double[buckets.size()];
+		for (int i = 0; i < bounds.length; i++) {
+			bounds[i] = buckets.get(i)[0];
+			cumulative[i] = buckets.get(i)[1];
+		}
+	}
+
+	private static double
+	getRequired(Scriptable obj, String name)
+			throws Exception {
+		double value = getNumber(obj, name, Double.NaN);
+		if (Double.isNaN(value)) {
+			throw new Exception("think time needs " + name);
+		}
+		return value;
+	}
+
+	private static double
+	getNumber(Scriptable obj, String name, double dflt) {
+		Object value = ScriptableObject.getProperty(obj, name);
+		if (value == Scriptable.NOT_FOUND || value == null ||
+				value instanceof Undefined) {
+			return dflt;
+		}
+		return Context.toNumber(value);
+	}
+}
@@ -0,0 +1,284 @@
+/* ----
+ * TimingLog
+ *
+ *	Binary per transaction timing file of one ClientWorker.
+ *
+ *	The worker fills fixed width records into a buffer without any
+ *	locking, string building or I/O. Full buffers are handed to a
+ *	single background thread that appends them to the file through
+ *	a FileChannel, while the worker continues with another buffer.
+ *	Only if the writer still has the worker's previous buffer does
+ *	the worker wait for it.
+ *
+ *	The buffers are small and shared by all timing logs of the JVM:
+ *	a worker takes one from the pool when it records its first
+ *	transaction, and the writer puts them back once written. A client
+ *	running thousands of workers thus needs about one buffer per
+ *	worker that is actually recording, not two large ones for every
+ *	worker.
+ *
+ *	The file is a sequence of blocks, each a type byte, an int length
+ *	and the payload, so that appending runs just add blocks:
+ *
+ *		'H'	header: worker name and the transaction names, as
+ *			DataOutput UTF strings (name, count, names...)
+ *		'D'	records of RECORD_SIZE bytes, all big endian:
+ *			int		transaction index into the last header
+ *			int		flags, FLAG_ERROR and the phase + 1 in
+ *					bits 8-15 (0 means no phases)
+ *			long	start in nanoseconds since the epoch
+ *			long	duration in nanoseconds
+ *			long	nap after the transaction in milliseconds
+ *
+ *	TimingLogConverter turns such a file into the CSV format that
+ *	setTimingDir() writes by default.
+ * ----
+ */
+package info.slony.clustertest.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import org.apache.log4j.Logger;
+
+class TimingLog {
+	static final byte		BLOCK_HEADER = 'H';
+	static final byte		BLOCK_DATA = 'D';
+	static final int		RECORD_SIZE = 32;
+	static final int		FLAG_ERROR = 0x01;
+	static final String		FILE_SUFFIX = ".tlog";
+
+	private static final int	RECORDS_PER_BUFFER = 256;
+	private static final int	BLOCK_OVERHEAD = 5;
+	private static final int	BUFFER_SIZE =
+			BLOCK_OVERHEAD + RECORDS_PER_BUFFER * RECORD_SIZE;
+
+	private static Logger log = Logger.getLogger(TimingLog.class);
+
+	/* ----
+	 * The background writer shared by all timing logs of the JVM.
+	 * ----
+	 */
+	private static final BlockingQueue<Block>	writeQueue =
+			new LinkedBlockingQueue<Block>();
+	private static Thread	writerThread = null;
+	private static final ConcurrentLinkedQueue<ByteBuffer> freeBuffers =
+			new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private static class Block {
+		TimingLog		owner;
+		ByteBuffer		buffer;		// null for the close request
+	}
+
+	private final FileChannel		channel;
+	private final Semaphore			inFlight = new Semaphore(1);
+	private final CountDownLatch	closed = new CountDownLatch(1);
+	private ByteBuffer				current = null;
+	private volatile IOException	writeError = null;
+
+	/* ----
+	 * Open or append to the given file and write the header block.
+	 * ----
+	 */
+	TimingLog (String fileName, boolean append, String workerName,
+			String[] transNames)
+			throws IOException {
+		ByteArrayOutputStream	bytes = new ByteArrayOutputStream();
+		DataOutputStream		header = new DataOutputStream(bytes);
+
+		header.writeUTF(workerName);
+		header.writeInt(transNames.length);
+		for (int i = 0; i < transNames.length; i++) {
+			header.writeUTF(transNames[i]);
+		}
+		header.flush();
+
+		channel = new FileOutputStream(fileName, append).getChannel();
+		ByteBuffer headerBlock = ByteBuffer.allocate(BLOCK_OVERHEAD +
+				bytes.size());
+		headerBlock.put(BLOCK_HEADER);
+		headerBlock.putInt(bytes.size());
+		headerBlock.put(bytes.toByteArray());
+		headerBlock.flip();
+		while (headerBlock.hasRemaining()) {
+			channel.write(headerBlock);
+		}
+
+		startWriter();
+	}
+
+	/* ----
+	 * record()
+	 *
+	 *	Add one transaction. Must only be called by the owning worker.
+	 * ----
+	 */
+	void
+	record(int transIdx, boolean error, int phase, long startNanos,
+			long durationNanos, long napMillis)
+			throws IOException {
+		if (current == null) {
+			current = takeBuffer();
+		} else if (current.remaining() < RECORD_SIZE) {
+			flush();
+			current = takeBuffer();
+		}
+		current.putInt(transIdx);
+		current.putInt((error ? FLAG_ERROR : 0) | ((phase + 1) << 8));
+		current.putLong(startNanos);
+		current.putLong(durationNanos);
+		current.putLong(napMillis);
+	}
+
+	/* ----
+	 * close()
+	 *
+	 *	Hand over the remaining records and wait until the writer has
+	 *	written them and closed the file.
+	 * ----
+	 */
+	void
+	close()
+			throws IOException {
+		if (current != null) {
+			if (current.position() > BLOCK_OVERHEAD) {
+				flush();
+			} else {
+				freeBuffers.add(current);
+			}
+			current = null;
+		}
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while closing timing log");
+		}
+		Block block = new Block();
+		block.owner = this;
+		block.buffer = null;
+		writeQueue.add(block);
+		try {
+			closed.await();
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while closing timing log");
+		}
+		if (writeError != null) {
+			throw writeError;
+		}
+	}
+
+	/* ----
+	 * flush()
+	 *
+	 *	Queue the current buffer for writing, after waiting for the
+	 *	writer to finish the previous one.
+	 * ----
+	 */
+	private void
+	flush()
+			throws IOException {
+		if (writeError != null) {
+			throw writeError;
+		}
+		current.putInt(1, current.position() - BLOCK_OVERHEAD);
+		current.flip();
+
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while waiting for timing log");
+		}
+		Block block = new Block();
+		block.owner = this;
+		block.buffer = current;
+		writeQueue.add(block);
+		current = null;
+	}
+
+	/* ----
+	 * takeBuffer()
+	 *
+	 *	A buffer from the shared pool, started as a data block.
+	 * ----
+	 */
+	private static ByteBuffer
+	takeBuffer() {
+		ByteBuffer buffer = freeBuffers.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		}
+		buffer.clear();
+		buffer.put(BLOCK_DATA);
+		buffer.putInt(0);				// length, set by flush()
+		return buffer;
+	}
+
+	/* ----
+	 * writeBlock()
+	 *
+	 *	Called in the writer thread for every queued block.
+	 * ----
+	 */
+	private void
+	writeBlock(ByteBuffer buffer) {
+		try {
+			if (writeError == null) {
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+		} catch (IOException e) {
+			writeError = e;
+			log.error("timing log write failed", e);
+		}
+		freeBuffers.add(buffer);
+		inFlight.release();
+	}
+
+	private void
+	closeChannel() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			if (writeError == null) {
+				writeError = e;
+			}
+		}
+		closed.countDown();
+	}
+
+	private static synchronized void
+	startWriter() {
+		if (writerThread != null) {
+			return;
+		}
+		writerThread = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					Block block;
+					try {
+						block = writeQueue.take();
+					} catch (InterruptedException e) {
+						continue;
+					}
+					if (block.buffer == null) {
+						block.owner.closeChannel();
+					} else {
+						block.owner.writeBlock(block.buffer);
+					}
+				}
+			}
+		}, "TimingLogWriter");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+}
@@ -0,0 +1,177 @@
+/* ----
+ * TimingLogConverter
+ *
+ *	Convert binary timing logs (see TimingLog) into the CSV format
+ *	of setTimingDir():
+ *
+ *		worker,transaction,error,start ms,end ms,duration ms,nap ms[,phase]
+ *
+ *	Usage: TimingLogConverter [-o=<file.csv>] <file.tlog> ...
+ *
+ *	Without -o every input file is written to a CSV file of the same
+ *	name next to it. With -o all inputs go into one CSV file, "-" is
+ *	standard output.
+ * ----
+ */
+package info.slony.clustertest.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+public class TimingLogConverter {
+	private static final String[] PHASE_NAMES = {
+		"", "warmup", "measure", "cooldown", "done"
+	};
+
+	public static void main(String args[]) {
+		int		optIdx = 0;
+		String	outName = null;
+		int		errors = 0;
+
+		while (optIdx < args.length && args[optIdx].startsWith("-o")) {
+			int idx = args[optIdx].indexOf("=");
+			if (idx < 0) {
+				System.err.println("Option -o requires a file name");
+				System.exit(2);
+			}
+			outName = args[optIdx].substring(idx + 1);
+			optIdx++;
+		}
+		if (optIdx >= args.length) {
+			System.err.println("usage: TimingLogConverter [-o=<file.csv>] " +
+					"<file" + TimingLog.FILE_SUFFIX + "> ...");
+			System.exit(2);
+		}
+
+		PrintWriter out = null;
+		try {
+			if (outName != null) {
+				out = openOutput(outName);
+			}
+			for (int i = optIdx; i < args.length; i++) {
+				String inName = args[i];
+				if (outName == null) {
+					String csvName = inName.endsWith(TimingLog.FILE_SUFFIX) ?
+							inName.substring(0, inName.length() -
+								TimingLog.FILE_SUFFIX.length()) : inName;
+					out = openOutput(csvName + ".csv");
+				}
+				try {
+					convert(inName, out);
+				} catch (IOException e) {
+					System.err.println(inName + ": " + e.getMessage());
+					errors++;
+				}
+				if (outName == null) {
+					out.close();
+				}
+			}
+			if (outName != null) {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			errors++;
+		}
+		System.exit(errors == 0 ? 0 : 1);
+	}
+
+	private static PrintWriter
+	openOutput(String name)
+			throws IOException {
+		if (name.equals("-")) {
+			return new PrintWriter(new BufferedWriter(
+					new OutputStreamWriter(System.out)));
+		}
+		return new PrintWriter(new BufferedWriter(new FileWriter(name)));
+	}
+
+	/* ----
+	 * convert()
+	 *
+	 *	Write all records of one binary timing log as CSV lines.
+	 * ----
+	 */
+	static void
+	convert(String inName, PrintWriter out)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(inName)));
+		String		workerName = null;
+		String[]	transNames = null;
+
+		try {
+			while (true) {
+				int type = in.read();
+				if (type < 0) {
+					break;
+				}
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					throw new IOException("truncated block header");
+				}
+
+				if (type == TimingLog.BLOCK_HEADER) {
+					byte[] payload = new byte[length];
+					in.readFully(payload);
+					DataInputStream header = new DataInputStream(
+							new ByteArrayInputStream(payload));
+					workerName = header.readUTF();
+					transNames = new String[header.readInt()];
+					for (int i = 0; i < transNames.length; i++) {
+						transNames[i] = header.readUTF();
+					}
+				} else if (type == TimingLog.BLOCK_DATA) {
+					if (transNames == null) {
+						throw new IOException("data block before header");
+					}
+					if (length % TimingLog.RECORD_SIZE != 0) {
+						throw new IOException("bad data block length " + length);
+					}
+					for (int n = length / TimingLog.RECORD_SIZE; n > 0; n--) {
+						writeRecord(in, out, workerName, transNames);
+					}
+				} else {
+					throw new IOException("unknown block type " + type);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void
+	writeRecord(DataInputStream in, PrintWriter out, String workerName,
+			String[] transNames)
+			throws IOException {
+		int		transIdx = in.readInt();
+		int		flags = in.readInt();
+		long	startNanos = in.readLong();
+		long	durationNanos = in.readLong();
+		long	napMillis = in.readLong();
+		int		phase = (flags >> 8) & 0xff;
+
+		if (transIdx < 0 || transIdx >= transNames.length) {
+			throw new IOException("bad transaction index " + transIdx);
+		}
+		out.println(workerName + "," +
+				transNames[transIdx] + "," +
+				((flags & TimingLog.FLAG_ERROR) != 0) + "," +
+				startNanos / 1000000L + "," +
+				(startNanos + durationNanos) / 1000000L + "," +
+				durationNanos / 1000000L + "," +
+				napMillis +
+				((phase == 0 || phase >= PHASE_NAMES.length) ? "" :
+					"," + PHASE_NAMES[phase]));
+	}
+}
@@ -0,0 +1,224 @@
+/* ----
+ * TransactionMix
+ *
+ *	The parsed form of a ClientGroup transaction mix like "a=70,b=30".
+ *
+ *	A mix is built once per group and shared read-only by all of its
+ *	workers. Weighted random selection uses Vose's alias method, which
+ *	picks a transaction in constant time from a single uniform random
+ *	number, no matter how large the weights are. The deck mode instead
+ *	deals the transactions in a fixed, interleaved order, in which every
+ *	run of totalWeight consecutive positions contains each transaction
+ *	exactly as often as its weight says.
+ * ----
+ */
+package info.slony.clustertest.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class TransactionMix {
+	private final String	mix;		// Original form
+	private final String[]	names;		// Distinct transaction names
+	private final long[]	weights;	// ... and their weights
+	private final double[]	prob;		// Alias table probabilities
+	private final int[]		alias;		// Alias table aliases
+	private final long[]	cumulative;	// Cumulative weights for the deck
+	private final long		totalWeight;
+	private final long		stride;		// Deck step, coprime to totalWeight
+
+	/* ----
+	 * Parse the comma separated name[=weight] list. A name without
+	 * a weight counts once, names that appear multiple times have
+	 * their weights added up.
+	 * ----
+	 */
+	TransactionMix (String transString)
+			throws Exception {
+		List<String>	nameList = new ArrayList<String>();
+		List<Long>		weightList = new ArrayList<Long>();
+		String[]		tmpList = transString.split(",");
+
+		for (int i = 0; i < tmpList.length; i++) {
+			String[] tmpTrans = tmpList[i].split("=");
+			String	name = tmpTrans[0].trim();
+			long	w = 1;
+
+			if (tmpTrans.length > 1) {
+				w = Long.parseLong(tmpTrans[1].trim());
+			}
+			if (w < 0) {
+				throw new Exception("negative weight for transaction " + name);
+			}
+			if (w == 0 || name.length() == 0) {
+				continue;
+			}
+			int idx = nameList.indexOf(name);
+			if (idx < 0) {
+				nameList.add(name);
+				weightList.add(w);
+			} else {
+				weightList.set(idx, weightList.get(idx) + w);
+			}
+		}
+		if (nameList.isEmpty())
+			throw new Exception ("transaction list cannot be empty");
+
+		int n = nameList.size();
+		mix			= transString;
+		names		= nameList.toArray(new String[n]);
+		weights		= new long[n];
+		cumulative	= new long[n];
+		long total = 0;
+		for (int i = 0; i < n; i++) {
+			weights[i] = weightList.get(i);
+			total += weights[i];
+			cumulative[i] = total;
+		}
+		totalWeight	= total;
+		stride		= deckStride(total);
+
+		/* ----
+		 * Build the alias table. Every column i is hit with
+		 * probability 1/n and then yields i with probability prob[i]
+		 * and alias[i] otherwise.
+		 * ----
+		 */
+		prob	= new double[n];
+		alias	= new int[n];
+		double[] scaled = new double[n];
+		int[]	small = new int[n];
+		int[]	large = new int[n];
+		int		numSmall = 0;
+		int		numLarge = 0;
+
+		for (int i = 0; i < n; i++) {
+			scaled[i] = (double)weights[i] * n / total;
+			if (scaled[i] < 1.0) {
+				small[numSmall++] = i;
+			} else {
+				large[numLarge++] = i;
+			}
+		}
+		while (numSmall > 0 && numLarge > 0) {
+			int s = small[--numSmall];
+			int l = large[--numLarge];
+
+			prob[s] = scaled[s];
+			alias[s] = l;
+			scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+			if (scaled[l] < 1.0) {
+				small[numSmall++] = l;
+			} else {
+				large[numLarge++] = l;
+			}
+		}
+		while (numLarge > 0) {
+			int l = large[--numLarge];
+			prob[l] = 1.0;
+			alias[l] = l;
+		}
+		while (numSmall > 0) {
+			int s = small[--numSmall];
+			prob[s] = 1.0;
+			alias[s] = s;
+		}
+	}
+
+	/* ----
+	 * select()
+	 *
+	 *	Weighted random selection. u must be uniformly distributed
+	 *	in [0, 1).
+	 * ----
+	 */
+	int
+	select(double u) {
+		double	x = u * names.length;
+		int		col = (int)x;
+
+		if (col >= names.length) {
+			col = names.length - 1;
+		}
+		return (x - col < prob[col]) ? col : alias[col];
+	}
+
+	/* ----
+	 * deal()
+	 *
+	 *	Deterministic selection for the given deck position. Stepping
+	 *	through the weight slots with a stride that is coprime to the
+	 *	total weight spreads every transaction evenly over the deck.
+	 * ----
+	 */
+	int
+	deal(long position) {
+		long	slot = multiplyMod(position % totalWeight, stride, totalWeight);
+		int		lo = 0;
+		int		hi = cumulative.length - 1;
+
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (slot < cumulative[mid]) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+		return lo;
+	}
+
+	String[]
+	getNames() {
+		return names;
+	}
+
+	long
+	getTotalWeight() {
+		return totalWeight;
+	}
+
+	@Override public String
+	toString() {
+		return mix;
+	}
+
+	/* ----
+	 * deckStride()
+	 *
+	 *	Pick a step close to the golden ratio of the deck size that
+	 *	shares no factor with it.
+	 * ----
+	 */
+	private static long
+	deckStride(long total) {
+		if (total <= 2) {
+			return 1;
+		}
+		long s = (long)(total * 0.6180339887) | 1L;
+		while (gcd(s, total) != 1) {
+			s++;
+		}
+		return s;
+	}
+
+	private static long
+	gcd(long a, long b) {
+		while (b != 0) {
+			long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+	private static long
+	multiplyMod(long a, long b, long m) {
+		if (a < 3037000499L && b < 3037000499L) {
+			return (a * b) % m;
+		}
+		return java.math.BigInteger.valueOf(a)
+				.multiply(java.math.BigInteger.valueOf(b))
+				.mod(java.math.BigInteger.valueOf(m)).longValue();
+	}
+}
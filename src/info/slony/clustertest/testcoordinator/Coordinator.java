@@ -68,6 +68,8 @@ public class Coordinator {
 	public static String EVENT_OUTPUT="EVENT_OUTPUT";
 	public static String EVENT_TIMER="EVENT_TIMER";
 	public static String EVENT_ERROR="EVENT_ERROR";
+	public static String EVENT_PHASE="EVENT_PHASE";
+	public static String EVENT_STATS="EVENT_STATS";
 	
 	private volatile boolean eventProcessingComplete=false;
 	
@@ -1,20 +1,30 @@
 package info.slony.clustertest.testcoordinator.script;
 
+import info.slony.clustertest.client.FramedProtocol;
+import info.slony.clustertest.client.LatencyHistogram;
 import info.slony.clustertest.testcoordinator.Coordinator;
 import info.slony.clustertest.testcoordinator.Event;
 import info.slony.clustertest.testcoordinator.EventSource;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.StringReader;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
@@ -37,6 +47,19 @@ public class ClientScript implements EventSource {
 	private Properties properties= new Properties();
 	private Writer scriptWriter;
 	private boolean isFinished=false;
+	
+	/**
+	 * The last phase (warmup, measure, cooldown, done) each client group
+	 * of the script announced.
+	 */
+	private Map<String,String> groupPhases=new HashMap<String,String>();
+	
+	/**
+	 * The STATS samples each client group of the script reported so far,
+	 * and the histogram of all of them together.
+	 */
+	private Map<String,List<StatsSample>> groupStats=new HashMap<String,List<StatsSample>>();
+	private Map<String,LatencyHistogram> groupStatsTotal=new HashMap<String,LatencyHistogram>();
 
 
 	/**
@@ -52,6 +75,20 @@ public class ClientScript implements EventSource {
 	
 	private Semaphore runningLock = new Semaphore(0);
 	
+	/**
+	 * Set once it is known if the client answered the handshake of the
+	 * framed protocol (see FramedProtocol). Clients that do not know it
+	 * keep getting the script as text.
+	 */
+	private CountDownLatch protocolKnown = new CountDownLatch(1);
+	private Boolean framed = null;
+	private OutputStream frameStream;
+	
+	/**
+	 * The hash the script was sent by, null if it was sent as is.
+	 */
+	private String scriptHash = null;
+	
 	
 	/**
 	 * 
@@ -65,6 +102,8 @@ public class ClientScript implements EventSource {
 		private  String LOCK_RELEASE_PREFIX="RELEASE_LOCK";
 		private  String ERROR_LOG="ERROR:";
 		private  String FATAL_LOG="FATAL:";
+		private  String PHASE_PREFIX="PHASE:";
+		private  String STATS_PREFIX="STATS:";
 		
 		private ClientScript myClientScript=null;
 		private InputStream inStream = null;
@@ -77,13 +116,55 @@ public class ClientScript implements EventSource {
 				
 				String chunk;
 				int bytes=0;
+				
+				//The first line is the answer to the handshake, or
+				//already output of a client that only knows text.
+				String firstLine = FramedProtocol.readLine(inStream);
+				if(firstLine != null && firstLine.trim().equals(FramedProtocol.ACK)) {
+					if(setProtocol(true)) {
+						readFrames();
+						return;
+					}
+					//The script went out as text already, which the
+					//client now reads as frames. There is no way to
+					//bring the two back together, so give up the job.
+					log.error("client answered the protocol handshake too late, aborting the job");
+					addOutput("ERROR: client answered the protocol handshake too late");
+					postEvent(Coordinator.EVENT_ERROR);
+					abortClient();
+					return;
+				}
+				setProtocol(false);
 				BufferedReader streamReader = new BufferedReader(new InputStreamReader(inStream));
+				if(firstLine != null && !firstLine.endsWith("\n")) {
+					String rest = streamReader.readLine();
+					firstLine += (rest == null) ? "" : rest;
+				}
+				chunk = firstLine;
+				if(chunk != null) {
+					chunk = chunk.replaceAll("\r?\n$", "");
+				}
+				else {
+					chunk = streamReader.readLine();
+				}
 
-				while( (chunk = streamReader.readLine())!=null ) {
+				for( ; chunk!=null; chunk = streamReader.readLine() ) {
+					log.debug(chunk);
+					if(chunk.startsWith(STATS_PREFIX)) {
+						//Periodic statistics of a client group. These
+						//are not output, so they stay out of the
+						//output buffer.
+						if(addStats(chunk.substring(STATS_PREFIX.length()))) {
+							Event event = new Event();
+							event.eventName=Coordinator.EVENT_STATS;
+							event.source=myClientScript;
+							coordinator.queueEvent(event);
+						}
+						continue;
+					}
 					synchronized(outputBuffer) {
 						outputBuffer.add(chunk);
 					}
-					log.debug(chunk);
 					if(chunk.startsWith(LOCK_REQUEST_PREFIX)) {
 						//This line is a request to obtain a lock.
 						//We launch a task to obtain the lock, and inform the
@@ -112,6 +193,20 @@ public class ClientScript implements EventSource {
 						final String lockName = chunk.substring(LOCK_RELEASE_PREFIX.length());
 						myClientScript.coordinator.releaseLock(lockName);
 					}
+					else if (chunk.startsWith(PHASE_PREFIX)) {
+						//A client group moved on to its next phase, the
+						//line reads "PHASE: <group> <phase>".
+						String[] parts = chunk.substring(PHASE_PREFIX.length()).trim().split("\\s+");
+						if(parts.length==2) {
+							synchronized(groupPhases) {
+								groupPhases.put(parts[0],parts[1]);
+							}
+						}
+						Event event = new Event();
+						event.eventName=Coordinator.EVENT_PHASE;
+						event.source=myClientScript;
+						coordinator.queueEvent(event);
+					}
 					else if (chunk.startsWith(ERROR_LOG) ||
 							 chunk.startsWith(FATAL_LOG)) {
 						log.warn("script reports error:"+chunk);
@@ -137,6 +232,88 @@ public class ClientScript implements EventSource {
 				
 			}
 		}	
+		
+		/**
+		 * Reads the frames of a client speaking the framed protocol. The
+		 * type of every message is in its frame, no need to look at the
+		 * text.
+		 */
+		private void readFrames() throws IOException {
+			DataInputStream frameIn = new DataInputStream(inStream);
+			FramedProtocol.Frame frame;
+			while( (frame = FramedProtocol.readFrame(frameIn)) != null) {
+				String text = frame.text();
+				log.debug(text);
+				switch(frame.type) {
+				case FramedProtocol.STATS:
+					if(addStats(text)) {
+						postEvent(Coordinator.EVENT_STATS);
+					}
+					break;
+				case FramedProtocol.ERROR:
+					addOutput(text);
+					log.warn("script reports error:"+text);
+					postEvent(Coordinator.EVENT_ERROR);
+					break;
+				case FramedProtocol.CONTROL:
+					addOutput(text);
+					if(text.startsWith(PHASE_PREFIX)) {
+						String[] parts = text.substring(PHASE_PREFIX.length()).trim().split("\\s+");
+						if(parts.length==2) {
+							synchronized(groupPhases) {
+								groupPhases.put(parts[0],parts[1]);
+							}
+						}
+						postEvent(Coordinator.EVENT_PHASE);
+					}
+					break;
+				case FramedProtocol.LOCK:
+					addOutput(text);
+					if(text.startsWith(FramedProtocol.LOCK_REQUEST)) {
+						//See the text mode above for why this needs a
+						//thread of its own.
+						final String lockName = text.substring(FramedProtocol.LOCK_REQUEST.length());
+						Thread t= new Thread(new Runnable()  {
+							public void run() {
+								myClientScript.coordinator.obtainLock(lockName);
+								myClientScript.lockObtained(lockName);
+							}
+						});
+						t.start();
+					}
+					else if(text.startsWith(FramedProtocol.LOCK_RELEASE)) {
+						myClientScript.coordinator.releaseLock(
+								text.substring(FramedProtocol.LOCK_RELEASE.length()));
+					}
+					break;
+				case FramedProtocol.NEED_SCRIPT:
+					//The client does not have the script cached.
+					if(text.equals(getScriptHash())) {
+						sendFrame(FramedProtocol.SCRIPT, javascript);
+					}
+					else {
+						log.error("client asks for unknown script " + text);
+					}
+					break;
+				default:
+					addOutput(text);
+					postEvent(Coordinator.EVENT_OUTPUT);
+				}
+			}
+		}
+		
+		private void addOutput(String line) {
+			synchronized(outputBuffer) {
+				outputBuffer.add(line);
+			}
+		}
+		
+		private void postEvent(String eventName) {
+			Event event = new Event();
+			event.eventName=eventName;
+			event.source=myClientScript;
+			coordinator.queueEvent(event);
+		}
 	
 	};
 	
@@ -191,15 +368,45 @@ public class ClientScript implements EventSource {
 				client = new JREClientConnector();
 			}
 			
-			scriptWriter = new OutputStreamWriter(client.getOutputStream());
-			writeConfiguration(scriptWriter);
-			scriptWriter.write(javascript);
-			scriptWriter.flush();
+			OutputStream clientOut = client.getOutputStream();
+			scriptWriter = new OutputStreamWriter(clientOut);
+			boolean useFrames = !"text".equals(properties.getProperty("client.protocol", "framed"));
+			if(useFrames) {
+				scriptWriter.write(FramedProtocol.HELLO + "\n");
+				scriptWriter.flush();
+			}
 			StreamMonitorThread streamMonitor = new StreamMonitorThread(client.getInputStream(),this);
 			
 			
 			Thread monitorThread = new Thread(streamMonitor);
 			monitorThread.start();
+			
+			if(useFrames && waitForProtocol()) {
+				//The configuration differs from database to database,
+				//the script itself is sent by hash if the client may
+				//have it cached already (client.script.cache).
+				StringWriter configuration = new StringWriter();
+				writeConfiguration(configuration);
+				boolean byHash = !"false".equals(properties.getProperty("client.script.cache", "true"));
+				synchronized(this) {
+					frameStream = new BufferedOutputStream(clientOut);
+					if(byHash) {
+						scriptHash = FramedProtocol.scriptHash(javascript);
+					}
+				}
+				sendFrame(FramedProtocol.SCRIPT, configuration.toString());
+				if(byHash) {
+					sendFrame(FramedProtocol.SCRIPT_HASH, scriptHash);
+				}
+				else {
+					sendFrame(FramedProtocol.SCRIPT, javascript);
+				}
+			}
+			else {
+				writeConfiguration(scriptWriter);
+				scriptWriter.write(javascript);
+				scriptWriter.flush();
+			}
 			try {
 				runningLock.acquire();
 			}
@@ -228,6 +435,65 @@ public class ClientScript implements EventSource {
 		}
 		
 	}
+	/**
+	 * Records which protocol the client speaks. Only the first call
+	 * counts.
+	 * 
+	 * @return true if the protocol is the one asked for
+	 */
+	private synchronized boolean setProtocol(boolean framed) {
+		if(this.framed == null) {
+			this.framed = framed;
+			protocolKnown.countDown();
+		}
+		return this.framed == framed;
+	}
+	
+	/**
+	 * Waits for the client to answer the handshake. A client that says
+	 * nothing within client.handshake.timeout milliseconds (default
+	 * 1000) is taken to only speak text. Clients in this JVM and worker
+	 * clients are already running when the handshake is sent, so a
+	 * client that knows the protocol answers right away, while every
+	 * job on an older worker client waits the full timeout.
+	 * 
+	 * @return true if the client speaks the framed protocol
+	 */
+	private boolean waitForProtocol() {
+		long timeout = Long.parseLong(properties.getProperty("client.handshake.timeout", "1000"));
+		try {
+			if(!protocolKnown.await(timeout, TimeUnit.MILLISECONDS)) {
+				log.warn("no answer to the protocol handshake, sending the script as text");
+			}
+		}
+		catch(InterruptedException e) {
+			log.error("interrupted waiting for the protocol handshake",e);
+		}
+		return !setProtocol(false);
+	}
+	
+	/**
+	 * Cuts the connection to a client that can no longer be talked
+	 * to, so that it sees the end of its input and the job ends.
+	 */
+	private void abortClient() {
+		try {
+			client.getOutputStream().close();
+		}
+		catch(IOException e) {
+			log.debug("exception closing the client stream",e);
+		}
+		client.stop();
+	}
+	
+	/**
+	 * Sends one frame to a client speaking the framed protocol.
+	 */
+	private synchronized void sendFrame(int type, String text) throws IOException {
+		FramedProtocol.writeFrame(frameStream, type, text);
+		frameStream.flush();
+	}
+	
 	public String getOutput() {
 		
 		synchronized(outputBuffer) {
@@ -240,6 +506,100 @@ public class ClientScript implements EventSource {
 		
 		 
 	}
+	
+	/**
+	 * Returns the phase the named client group last announced, or null
+	 * if the group did not run with phases (yet).
+	 */
+	public String getPhase(String groupName) {
+		synchronized(groupPhases) {
+			return groupPhases.get(groupName);
+		}
+	}
+	
+	/**
+	 * Decodes a STATS line and adds it to the time series of its group.
+	 * 
+	 * @return false if the line could not be decoded
+	 */
+	private boolean addStats(String line) {
+		synchronized(groupStats) {
+			try {
+				String groupName = line.trim().split(" ", 2)[0];
+				List<StatsSample> series = groupStats.get(groupName);
+				StatsSample previous = null;
+				if(series == null) {
+					series = new ArrayList<StatsSample>();
+					groupStats.put(groupName, series);
+				}
+				else if(!series.isEmpty()) {
+					previous = series.get(series.size()-1);
+				}
+				LatencyHistogram[] histogram = new LatencyHistogram[1];
+				StatsSample sample = StatsSample.parse(line, previous, histogram);
+				if(previous != null && sample.sequence <= previous.sequence) {
+					//The group was launched again.
+					groupStatsTotal.remove(groupName);
+				}
+				series.add(sample);
+				LatencyHistogram total = groupStatsTotal.get(groupName);
+				if(total == null) {
+					total = new LatencyHistogram();
+					groupStatsTotal.put(groupName, total);
+				}
+				total.add(histogram[0]);
+				return true;
+			}
+			catch(IllegalArgumentException e) {
+				log.warn("ignoring bad statistics line:"+line);
+				return false;
+			}
+		}
+	}
+	
+	/**
+	 * Returns a copy of the statistics samples the named client group
+	 * reported so far (one per interval, oldest first).
+	 */
+	public List<StatsSample> getStatsSeries(String groupName) {
+		synchronized(groupStats) {
+			List<StatsSample> series = groupStats.get(groupName);
+			if(series == null) {
+				return new ArrayList<StatsSample>();
+			}
+			return new ArrayList<StatsSample>(series);
+		}
+	}
+	
+	/**
+	 * Returns the most recent statistics sample of the named client group,
+	 * or null if it did not report any yet.
+	 */
+	public StatsSample getLatestStats(String groupName) {
+		synchronized(groupStats) {
+			List<StatsSample> series = groupStats.get(groupName);
+			if(series == null || series.isEmpty()) {
+				return null;
+			}
+			return series.get(series.size()-1);
+		}
+	}
+	
+	/**
+	 * Returns the latency histogram of all statistics samples of the
+	 * current launch of the named client group, or null.
+	 */
+	public LatencyHistogram getStatsTotal(String groupName) {
+		synchronized(groupStats) {
+			LatencyHistogram total = groupStatsTotal.get(groupName);
+			if(total == null) {
+				return null;
+			}
+			LatencyHistogram result = new LatencyHistogram();
+			result.add(total);
+			return result;
+		}
+	}
 	public void setProperties(Properties properties) {
 		this.properties = properties;
 	}
@@ -286,8 +646,14 @@ public class ClientScript implements EventSource {
 		if(scriptWriter != null && !localFinished) {  
 			try {
 				log.info("asking the client script to stop");			
-					scriptWriter.write("quit();\n");
-					scriptWriter.close();
+					if(isFramed()) {
+						sendFrame(FramedProtocol.CONTROL, FramedProtocol.QUIT);
+						frameStream.close();
+					}
+					else {
+						scriptWriter.write("quit();\n");
+						scriptWriter.close();
+					}
 				}
 		
 				catch(IOException e) {
@@ -303,7 +669,12 @@ public class ClientScript implements EventSource {
 	
 	public synchronized void lockObtained(String lockName)  {
 		try {
-			scriptWriter.write("LOCK_OBTAINED:" + lockName + "\n");
+			if(isFramed()) {
+				sendFrame(FramedProtocol.LOCK, FramedProtocol.LOCK_OBTAINED + lockName);
+			}
+			else {
+				scriptWriter.write("LOCK_OBTAINED:" + lockName + "\n");
+			}
 		}
 		catch(IOException e) {
 			//Could not write to output, somewhat serious.
@@ -312,6 +683,14 @@ public class ClientScript implements EventSource {
 		}
 	}
 	
+	private synchronized String getScriptHash() {
+		return scriptHash;
+	}
+	
+	private synchronized boolean isFramed() {
+		return frameStream != null;
+	}
+	
 	public synchronized boolean isFinished() {
 		return this.isFinished;
 	}
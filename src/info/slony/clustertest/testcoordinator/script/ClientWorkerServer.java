@@ -1,8 +1,11 @@
 package info.slony.clustertest.testcoordinator.script;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.channels.IllegalBlockingModeException;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -13,15 +16,22 @@ import java.util.Set;
 
 import org.apache.log4j.Logger;
 
+import info.slony.clustertest.client.FramedProtocol;
+import info.slony.clustertest.client.Multiplexer;
+
 
 /**
  * 
  * The ClientWorkerServer allows worker clients to connect (through TCIP/IP sockets)
  * and will store a pool of connected clients available for work.
  * 
- * When a worker client is requested from ClientWorkerServer a socket will be returned that
+ * When a worker client is requested from ClientWorkerServer a Job will be returned that
  * is attached to the next available worker client.
  * 
+ * A worker client started with -jobs=n announces this when it connects, and then takes
+ * up to n jobs at once over its one connection (see Multiplexer). Each job gets a channel
+ * on that connection. Other worker clients get one job per connection as before.
+ * 
  */
 public class ClientWorkerServer {
 	private static Logger log = Logger.getLogger(ClientWorkerServer.class);
@@ -53,6 +63,19 @@ public class ClientWorkerServer {
 	 */
 	Set<Socket> workingClients=new HashSet<Socket>();
 
+	/**
+	 * Connections of worker clients that run several jobs at once.
+	 */
+	List<Multiplexer> multiplexedClients=new LinkedList<Multiplexer>();
+
+	/**
+	 * How long (in ms) to wait for a new connection to announce that it runs several
+	 * jobs at once. Other clients send nothing until they get a job, so every
+	 * connection of theirs waits this long before it can take one. An announcement
+	 * that comes later is still caught by getJob().
+	 */
+	private int handshakeTimeout;
+
 	
 	public ClientWorkerServer(Properties properties) {
 		this.properties = properties;
@@ -65,6 +88,7 @@ public class ClientWorkerServer {
 			log.error("unable to parse client port(integer):" + property);
 			throw e;
 		}
+		handshakeTimeout = Integer.parseInt(this.properties.getProperty("client.server.handshake.timeout","100"));
 	}
 	
 	public void start() {
@@ -83,11 +107,8 @@ public class ClientWorkerServer {
 						 * 
 						 * 
 						 */
-						worker.setKeepAlive(true);						
-						synchronized(ClientWorkerServer.this) {
-							waitingClients.add(worker);
-							ClientWorkerServer.this.notify();
-						}
+						worker.setKeepAlive(true);
+						identify(worker);
 					}
 				}
 				catch(IOException e) {
@@ -105,6 +126,104 @@ public class ClientWorkerServer {
 		});
 		acceptorThread.start();
 	}
+
+	/**
+	 * Find out in a thread of its own whether a new worker client runs several jobs
+	 * at once, and add it to the clients waiting for work.
+	 */
+	private void identify(final Socket worker) {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				int jobs = -1;
+				try {
+					worker.setSoTimeout(handshakeTimeout);
+					try {
+						String line = FramedProtocol.readLine(worker.getInputStream());
+						if(line == null) {
+							log.info("worker " + worker.getRemoteSocketAddress().toString() + " disconnected");
+							worker.close();
+							return;
+						}
+						jobs = Multiplexer.parseHello(line);
+						if(jobs < 0) {
+							log.warn("unexpected line from worker " + worker.getRemoteSocketAddress().toString() + ":" + line);
+						}
+					}
+					catch(SocketTimeoutException e) {
+						//An older client, it waits for the test coordinator to speak first.
+					}
+					worker.setSoTimeout(0);
+				}
+				catch(IOException e) {
+					log.error("error identifying worker " + worker.getRemoteSocketAddress().toString(),e);
+					try {
+						worker.close();
+					}
+					catch(IOException e2) {
+					}
+					return;
+				}
+				if(jobs > 0) {
+					addMultiplexedClient(worker,jobs);
+					return;
+				}
+				synchronized(ClientWorkerServer.this) {
+					waitingClients.add(worker);
+					ClientWorkerServer.this.notifyAll();
+				}
+			}
+		},"ClientWorkerServer identify");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Whether a client thought to get one job per connection has sent something.
+	 * Such clients never speak first, so it can only be the announcement of a
+	 * client that runs several jobs at once.
+	 */
+	private boolean announced(Socket worker) {
+		try {
+			return worker.getInputStream().available() > 0;
+		}
+		catch(IOException e) {
+			return false;
+		}
+	}
+
+	private void addMultiplexedClient(Socket worker, int jobs) {
+		final Multiplexer mux;
+		try {
+			mux = new Multiplexer(worker.getInputStream(),worker.getOutputStream(),jobs,true,
+				new Runnable() {
+					public void run() {
+						synchronized(ClientWorkerServer.this) {
+							ClientWorkerServer.this.notifyAll();
+						}
+					}
+				});
+		}
+		catch(IOException e) {
+			log.error("error setting up worker " + worker.getRemoteSocketAddress().toString(),e);
+			return;
+		}
+		log.info("worker " + worker.getRemoteSocketAddress().toString() + " takes " + jobs + " jobs at once");
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				mux.run();
+			}
+		},"Multiplexer " + worker.getRemoteSocketAddress().toString());
+		reader.setDaemon(true);
+		reader.start();
+		synchronized(this) {
+			if(shuttingDown) {
+				mux.close();
+				return;
+			}
+			multiplexedClients.add(mux);
+			this.notifyAll();
+		}
+	}
 	
 	public void stop() {
 		try {
@@ -143,6 +262,14 @@ public class ClientWorkerServer {
 				}
 			}
 		}
+		List<Multiplexer> muxes;
+		synchronized(this) {
+			muxes = new LinkedList<Multiplexer>(multiplexedClients);
+			multiplexedClients.clear();
+		}
+		for(Multiplexer mux : muxes) {
+			mux.close();
+		}
 	}
 	
 	public void releaseWorker(Socket worker) {
@@ -158,24 +285,44 @@ public class ClientWorkerServer {
 		}
 	}
 	
-	public Socket getWorker() {
+	public void releaseJob(Job job) {
+		if(job.channel != null) {
+			job.channel.close();
+		}
+		else {
+			releaseWorker(job.socket);
+		}
+	}
+	
+	/**
+	 * Waits for a worker client that can take a job.
+	 * A free channel on a client that runs several jobs at once is preferred over a
+	 * client of its own.
+	 * 
+	 * @return The job, or null if the server is shutting down.
+	 */
+	public Job getJob() {
 		synchronized(this) {
-			Socket worker = null;
-			while(waitingClients.isEmpty() && !shuttingDown) {
-				try {
-					log.debug("waiting for a client");
-					this.wait();
-					if(shuttingDown) {
-						return null;
-					}
-					if(waitingClients.isEmpty()) {
+			while(!shuttingDown) {
+				for(Iterator<Multiplexer> iter = multiplexedClients.iterator(); iter.hasNext();) {
+					Multiplexer mux = iter.next();
+					if(mux.isClosed()) {
+						log.info("The worker connection has closed");
+						iter.remove();
 						continue;
 					}
-					worker = waitingClients.get(0);
-			
-					if(worker.isInputShutdown() || worker.isOutputShutdown()) {
+					if(mux.getOpenChannels() < mux.getJobs()) {
+						Multiplexer.Channel channel = mux.open();
+						if(channel != null) {
+							log.info("returning job " + channel.getId() + " of a multiplexed worker");
+							return new Job(null,channel);
+						}
+					}
+				}
+				while(!waitingClients.isEmpty()) {
+					Socket worker = waitingClients.remove(0);
+					if(worker.isClosed() || worker.isInputShutdown() || worker.isOutputShutdown()) {
 						//The worker is no longer around.
-						waitingClients.remove(0);
 						log.info("The worker connection has closed");
 						try {
 							worker.close();
@@ -183,19 +330,50 @@ public class ClientWorkerServer {
 						catch(IOException e) {
 							//expected since the socket is mostly shutdown.
 						}
-						worker=null;
+						continue;
 					}
-					
+					if(announced(worker)) {
+						//It took longer than handshakeTimeout to say
+						//that it runs several jobs at once.
+						log.info("late announcement from worker " + worker.getRemoteSocketAddress().toString());
+						identify(worker);
+						continue;
+					}
+					workingClients.add(worker);
+					log.info("returning a worker");
+					return new Job(worker,null);
+				}
+				try {
+					log.debug("waiting for a client");
+					this.wait();
 				}
 				catch(InterruptedException e) {
 					log.info("thread interrupted",e);
 				}
-				
 			}//while
-			worker = waitingClients.remove(0);
-			workingClients.add(worker);
-			log.info("returning a worker");
-			return worker;
+			return null;
+		}
+	}
+
+	/**
+	 * A job assigned to a worker client: either the connection to a client of its
+	 * own or a channel on a client that runs several jobs at once.
+	 */
+	public static class Job {
+		private final Socket socket;
+		private final Multiplexer.Channel channel;
+		
+		Job(Socket socket, Multiplexer.Channel channel) {
+			this.socket=socket;
+			this.channel=channel;
+		}
+		
+		public InputStream getInputStream() throws IOException {
+			return channel != null ? channel.getInputStream() : socket.getInputStream();
+		}
+		
+		public OutputStream getOutputStream() throws IOException {
+			return channel != null ? channel.getOutputStream() : socket.getOutputStream();
 		}
 	}
 }
@@ -0,0 +1,78 @@
+package info.slony.clustertest.testcoordinator.script;
+
+import info.slony.clustertest.client.LatencyHistogram;
+
+/**
+ *
+ * One interval of the statistics a client group reports while it runs
+ * (a STATS line of the client). Latencies are in milliseconds and
+ * cover the transactions that finished within the interval.
+ *
+ */
+public class StatsSample {
+	public String groupName;
+	public int sequence;
+	/**
+	 * Milliseconds since the group was launched, as seen by the client.
+	 */
+	public long elapsed;
+	/**
+	 * Milliseconds since the previous sample of the group.
+	 */
+	public long interval;
+	/**
+	 * Coordinator time (System.currentTimeMillis()) the sample arrived.
+	 */
+	public long received;
+	/**
+	 * The phase of the group, or null if it does not use phases.
+	 */
+	public String phase;
+	public long count;
+	public long errors;
+	public double tps;
+	public double mean;
+	public double p50;
+	public double p90;
+	public double p99;
+	public double max;
+
+	/**
+	 * Decodes a STATS line into a sample and the interval histogram.
+	 *
+	 * @param line  the line without the STATS: prefix
+	 * @param previous  the previous sample of the same group or null
+	 * @param histogram  receives the decoded histogram in element 0
+	 */
+	static StatsSample parse(String line, StatsSample previous,
+			LatencyHistogram[] histogram) {
+		String[] fields = line.trim().split(" ", 5);
+		if(fields.length != 5) {
+			throw new IllegalArgumentException("bad STATS line: " + line);
+		}
+		StatsSample sample = new StatsSample();
+		LatencyHistogram h = LatencyHistogram.decode(fields[4]);
+		sample.groupName = fields[0];
+		sample.sequence = Integer.parseInt(fields[1]);
+		sample.elapsed = Long.parseLong(fields[2]);
+		sample.phase = fields[3].equals("-") ? null : fields[3];
+		sample.received = System.currentTimeMillis();
+		sample.interval = (previous == null || previous.elapsed > sample.elapsed) ?
+				sample.elapsed : sample.elapsed - previous.elapsed;
+		sample.count = h.getCount();
+		sample.errors = h.getErrors();
+		sample.tps = sample.interval > 0 ? sample.count * 1000.0 / sample.interval : 0.0;
+		sample.mean = LatencyHistogram.millis(Math.round(h.getMean()));
+		sample.p50 = LatencyHistogram.millis(h.getPercentile(50.0));
+		sample.p90 = LatencyHistogram.millis(h.getPercentile(90.0));
+		sample.p99 = LatencyHistogram.millis(h.getPercentile(99.0));
+		sample.max = LatencyHistogram.millis(h.getMax());
+		histogram[0] = h;
+		return sample;
+	}
+
+	public String toString() {
+		return groupName + " #" + sequence + " " + count + " tx " +
+			errors + " errors " + tps + " tps p99 " + p99 + " ms";
+	}
+}
@@ -3,7 +3,6 @@ package info.slony.clustertest.testcoordinator.script;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.Socket;
 import java.nio.channels.Selector;
 
 /**
@@ -20,14 +19,14 @@ public class WorkerPoolClientConnector implements ClientConnector {
 	private InputStream inputStream;
 	private OutputStream outputStream;
 	private ClientWorkerServer server;
-	private Socket socket;
+	private ClientWorkerServer.Job job;
 	
 	public WorkerPoolClientConnector(ClientWorkerServer server)  throws IOException {
 		this.server=server;
-		socket = server.getWorker();
-		if(socket != null) {
-			inputStream=this.socket.getInputStream();
-			outputStream = this.socket.getOutputStream();
+		job = server.getJob();
+		if(job != null) {
+			inputStream=this.job.getInputStream();
+			outputStream = this.job.getOutputStream();
 		}
 		
 	}
@@ -43,7 +42,9 @@ public class WorkerPoolClientConnector implements ClientConnector {
 		
 	}
 	public void stop() {
-		server.releaseWorker(socket);
+		if(job != null) {
+			server.releaseJob(job);
+		}
 	}
 	
 }